@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2010 Ken Ellinwood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kellinwood.zipio;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Chooses the alignment of the data of stored entries written by ZipOutput.  Stored data is
+ * 4-byte aligned as zipalign does, except that native libraries (*.so) are aligned on a page
+ * boundary so they can be mapped directly from the APK.  The page size is 4096 by default, and
+ * can be set to 16384 for devices with 16 KB pages.  The first matching glob rule wins.
+ */
+public class AlignmentPolicy {
+
+    public static final int DEFAULT_ALIGNMENT = 4;
+    public static final int PAGE_ALIGNMENT_4K = 4096;
+    public static final int PAGE_ALIGNMENT_16K = 16384;
+
+    static class Rule {
+        Pattern pattern;
+        int alignment;
+    }
+
+    List<Rule> rules = new ArrayList<Rule>();
+    int defaultAlignment = DEFAULT_ALIGNMENT;
+    int nativeLibraryAlignment = PAGE_ALIGNMENT_4K;
+
+    /** Sets the alignment of stored entries matching no rule. */
+    public AlignmentPolicy setDefaultAlignment( int alignment) {
+        this.defaultAlignment = checkAlignment( alignment);
+        return this;
+    }
+
+    public int getDefaultAlignment() {
+        return defaultAlignment;
+    }
+
+    /** Sets the alignment of stored *.so entries matching no rule, e.g., PAGE_ALIGNMENT_16K. */
+    public AlignmentPolicy setNativeLibraryAlignment( int alignment) {
+        this.nativeLibraryAlignment = checkAlignment( alignment);
+        return this;
+    }
+
+    public int getNativeLibraryAlignment() {
+        return nativeLibraryAlignment;
+    }
+
+    /** Aligns stored entries whose path matches the glob, in which '*' and '?' match within one
+     *  directory level and '**' matches across levels, e.g., "assets/**.bin".
+     */
+    public AlignmentPolicy addRule( String glob, int alignment) {
+        Rule rule = new Rule();
+        rule.pattern = CompressionPolicy.globToPattern( glob);
+        rule.alignment = checkAlignment( alignment);
+        rules.add( rule);
+        return this;
+    }
+
+    private static int checkAlignment( int alignment) {
+        if (alignment < 1 || alignment > 0xFFFF) throw new IllegalArgumentException( "Invalid alignment: " + alignment);
+        return alignment;
+    }
+
+    /** Returns the alignment of the entry's data if it is stored. */
+    public int getAlignment( ZioEntry entry)
+    {
+        String name = entry.getName();
+        for (Rule rule : rules) {
+            if (rule.pattern.matcher( name).matches()) return rule.alignment;
+        }
+        if (name.endsWith( ".so")) return nativeLibraryAlignment;
+        return defaultAlignment;
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2010 Ken Ellinwood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kellinwood.zipio;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Data source for a zip file that is already in memory, in a byte array or a heap or direct
+ * ByteBuffer.  ZipInput decodes headers and entry data directly from the buffer, the same way
+ * it does for a memory mapped file.
+ */
+public class ByteBufferDataSource implements ZipDataSource
+{
+    String name;
+    ByteBuffer buffer;
+
+    public ByteBufferDataSource( byte[] data) {
+        this( ByteBuffer.wrap( data));
+    }
+
+    /** Uses the bytes between the buffer's position and limit.  The buffer is not copied, and
+     *  its position and limit are not changed.
+     */
+    public ByteBufferDataSource( ByteBuffer data) {
+        this( data, "<memory>");
+    }
+
+    public ByteBufferDataSource( ByteBuffer data, String name) {
+        this.name = name;
+        this.buffer = data.slice();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long length() {
+        return buffer.capacity();
+    }
+
+    public int read( ByteBuffer dst, long position) {
+        if (position >= buffer.capacity()) return -1;
+        int length = (int)Math.min( dst.remaining(), buffer.capacity() - position);
+        ByteBuffer view = buffer.duplicate();
+        view.position( (int)position);
+        view.limit( (int)position + length);
+        dst.put( view);
+        return length;
+    }
+
+    public ByteBuffer getBuffer() {
+        return buffer.duplicate();
+    }
+
+    public FileChannel getChannel() {
+        return null;
+    }
+
+    public void close() {
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2010 Ken Ellinwood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kellinwood.zipio;
+
+/**
+ * Computes the CRC32 of two concatenated blocks of data from the CRCs of each block and the
+ * length of the second, so the blocks can be checksummed separately.  This is a port of zlib's
+ * crc32_combine(), which applies the CRC polynomial to len2 zero bytes by repeatedly squaring a
+ * 32x32 bit matrix over GF(2).
+ */
+public class CRC32Combine {
+
+    private static final int GF2_DIM = 32;
+
+    private static int gf2MatrixTimes( int[] mat, int vec) {
+        int sum = 0;
+        int i = 0;
+        while (vec != 0) {
+            if ((vec & 1) != 0) sum ^= mat[i];
+            vec >>>= 1;
+            i++;
+        }
+        return sum;
+    }
+
+    private static void gf2MatrixSquare( int[] square, int[] mat) {
+        for (int n = 0; n < GF2_DIM; n++) square[n] = gf2MatrixTimes( mat, mat[n]);
+    }
+
+    /** Returns the CRC32 of block1 followed by block2, given crc1 of block1, crc2 of block2, and
+     *  the length of block2.
+     */
+    public static int combine( int crc1, int crc2, long len2)
+    {
+        if (len2 <= 0) return crc1;
+
+        int[] even = new int[GF2_DIM];
+        int[] odd = new int[GF2_DIM];
+
+        // Operator for one zero bit in odd.
+        odd[0] = 0xedb88320;
+        int row = 1;
+        for (int n = 1; n < GF2_DIM; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+
+        gf2MatrixSquare( even, odd); // two zero bits
+        gf2MatrixSquare( odd, even); // four zero bits
+
+        // Apply len2 zero bytes to crc1, the first square puts the operator for one zero byte in even.
+        do {
+            gf2MatrixSquare( even, odd);
+            if ((len2 & 1) != 0) crc1 = gf2MatrixTimes( even, crc1);
+            len2 >>= 1;
+            if (len2 == 0) break;
+
+            gf2MatrixSquare( odd, even);
+            if ((len2 & 1) != 0) crc1 = gf2MatrixTimes( odd, crc1);
+            len2 >>= 1;
+        } while (len2 != 0);
+
+        return crc1 ^ crc2;
+    }
+}
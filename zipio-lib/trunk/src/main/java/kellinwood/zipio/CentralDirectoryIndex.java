@@ -0,0 +1,353 @@
+/*
+ * Copyright (C) 2010 Ken Ellinwood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kellinwood.zipio;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Compact index over a central directory.  Instead of a ZioEntry object per entry the raw
+ * directory bytes are kept (on the heap, or in the file mapping when the ZipInput is memory
+ * mapped) together with parallel primitive arrays of the values needed to locate the data.
+ * Names are found through an open-addressing hash table over the raw name bytes, and
+ * ZioEntry objects are only created when an entry is accessed.
+ */
+public class CentralDirectoryIndex
+{
+    ZipInput zipInput;
+    ByteBuffer directory;
+    int count;
+
+    int[] nameOffsets;
+    long[] localHeaderOffsets;
+    long[] compressedSizes;
+    long[] sizes;
+    int[] crcs;
+
+    // Slots hold (entry index + 1), zero means empty.
+    int[] hashTable;
+    int hashMask;
+
+    // Entries hidden by a later entry with the same name.
+    BitSet replaced = new BitSet();
+    int numReplaced = 0;
+
+    Map<String,ZioEntry> entryMap = null;
+
+    public CentralDirectoryIndex( ZipInput zipInput, ByteBuffer directory, int count)
+    {
+        this.zipInput = zipInput;
+        this.directory = directory.duplicate().order( ByteOrder.LITTLE_ENDIAN);
+        this.count = count;
+
+        nameOffsets = new int[count];
+        localHeaderOffsets = new long[count];
+        compressedSizes = new long[count];
+        sizes = new long[count];
+        crcs = new int[count];
+
+        int tableSize = Integer.highestOneBit( Math.max( count, 1) * 2 - 1) << 1;
+        hashTable = new int[tableSize];
+        hashMask = tableSize - 1;
+
+        ByteBuffer buf = this.directory;
+        int pos = buf.position();
+        for (int i = 0; i < count; i++) {
+            if (buf.limit() - pos < 46 || buf.getInt( pos) != 0x02014b50) {
+                throw new IllegalStateException( String.format("Central directory entry %d not found at offset %d in %s", i, pos, zipInput.getFilename()));
+            }
+            crcs[i] = buf.getInt( pos + 16);
+            compressedSizes[i] = buf.getInt( pos + 20) & 0xFFFFFFFFL;
+            sizes[i] = buf.getInt( pos + 24) & 0xFFFFFFFFL;
+            int nameLen = buf.getShort( pos + 28) & 0xFFFF;
+            int extraLen = buf.getShort( pos + 30) & 0xFFFF;
+            int commentLen = buf.getShort( pos + 32) & 0xFFFF;
+            localHeaderOffsets[i] = buf.getInt( pos + 42) & 0xFFFFFFFFL;
+            nameOffsets[i] = pos + 46;
+
+            if (sizes[i] == ZioEntry.ZIP64_LIMIT || compressedSizes[i] == ZioEntry.ZIP64_LIMIT || localHeaderOffsets[i] == ZioEntry.ZIP64_LIMIT) {
+                readZip64ExtraField( i, pos + 46 + nameLen, extraLen);
+            }
+
+            insert( i, nameLen);
+            pos += 46 + nameLen + extraLen + commentLen;
+        }
+    }
+
+    private void readZip64ExtraField( int i, int extraStart, int extraLen)
+    {
+        int pos = extraStart;
+        int end = extraStart + extraLen;
+        while (end - pos >= 4) {
+            short headerId = directory.getShort( pos);
+            int dataLen = directory.getShort( pos + 2) & 0xFFFF;
+            pos += 4;
+            if (headerId == ZioEntry.ZIP64_EXTRA_ID) {
+                int fieldEnd = Math.min( pos + dataLen, end);
+                if (sizes[i] == ZioEntry.ZIP64_LIMIT && fieldEnd - pos >= 8) { sizes[i] = directory.getLong( pos); pos += 8; }
+                if (compressedSizes[i] == ZioEntry.ZIP64_LIMIT && fieldEnd - pos >= 8) { compressedSizes[i] = directory.getLong( pos); pos += 8; }
+                if (localHeaderOffsets[i] == ZioEntry.ZIP64_LIMIT && fieldEnd - pos >= 8) { localHeaderOffsets[i] = directory.getLong( pos); }
+                return;
+            }
+            pos += dataLen;
+        }
+    }
+
+    private int hash( int offset, int length)
+    {
+        int h = 0;
+        for (int j = 0; j < length; j++) {
+            h = 31 * h + directory.get( offset + j);
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private int hash( byte[] name)
+    {
+        int h = 0;
+        for (int j = 0; j < name.length; j++) {
+            h = 31 * h + name[j];
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private boolean nameEquals( int i, int offset, int length)
+    {
+        if (getNameLength( i) != length) return false;
+        int nameOffset = nameOffsets[i];
+        for (int j = 0; j < length; j++) {
+            if (directory.get( nameOffset + j) != directory.get( offset + j)) return false;
+        }
+        return true;
+    }
+
+    private boolean nameEquals( int i, byte[] name)
+    {
+        if (getNameLength( i) != name.length) return false;
+        int nameOffset = nameOffsets[i];
+        for (int j = 0; j < name.length; j++) {
+            if (directory.get( nameOffset + j) != name[j]) return false;
+        }
+        return true;
+    }
+
+    private void insert( int i, int nameLen)
+    {
+        int slot = hash( nameOffsets[i], nameLen) & hashMask;
+        while (hashTable[slot] != 0) {
+            int other = hashTable[slot] - 1;
+            if (nameEquals( other, nameOffsets[i], nameLen)) {
+                // Same behavior as the map, the last entry with a given name wins.
+                replaced.set( other);
+                numReplaced += 1;
+                break;
+            }
+            slot = (slot + 1) & hashMask;
+        }
+        hashTable[slot] = i + 1;
+    }
+
+    private boolean nameEquals( int i, String name)
+    {
+        if (getNameLength( i) != name.length()) return false;
+        int nameOffset = nameOffsets[i];
+        for (int j = 0; j < name.length(); j++) {
+            if (directory.get( nameOffset + j) != name.charAt( j)) return false;
+        }
+        return true;
+    }
+
+    /** Returns the index of the entry with the given name, or -1 if there is no such entry.
+     *  ASCII names, the usual case, are probed without encoding them to bytes.
+     */
+    public int find( String name)
+    {
+        int length = name.length();
+        boolean ascii = true;
+        int h = 0;
+        for (int j = 0; j < length; j++) {
+            char c = name.charAt( j);
+            if (c >= 0x80) {
+                ascii = false;
+                break;
+            }
+            h = 31 * h + c;
+        }
+        if (ascii) {
+            int slot = (h ^ (h >>> 16)) & hashMask;
+            while (hashTable[slot] != 0) {
+                int i = hashTable[slot] - 1;
+                if (nameEquals( i, name)) return i;
+                slot = (slot + 1) & hashMask;
+            }
+            return -1;
+        }
+
+        byte[] key = name.getBytes();
+        int slot = hash( key) & hashMask;
+        while (hashTable[slot] != 0) {
+            int i = hashTable[slot] - 1;
+            if (nameEquals( i, key)) return i;
+            slot = (slot + 1) & hashMask;
+        }
+        return -1;
+    }
+
+    /** Returns the number of records in the central directory. */
+    public int getCount() {
+        return count;
+    }
+
+    /** Returns a new ZioEntry decoded from the i'th record.  Each call creates a new object, so
+     *  changes made to a returned entry are not seen by subsequent lookups.
+     */
+    public ZioEntry getEntry( int i)
+    {
+        ByteBuffer record = directory.duplicate().order( ByteOrder.LITTLE_ENDIAN);
+        record.position( nameOffsets[i] - 46);
+        return ZioEntry.read( zipInput, record);
+    }
+
+    public String getName( int i)
+    {
+        byte[] name = new byte[getNameLength( i)];
+        ByteBuffer view = directory.duplicate();
+        view.position( nameOffsets[i]);
+        view.get( name);
+        return new String( name);
+    }
+
+    public int getNameOffset( int i) {
+        return nameOffsets[i];
+    }
+
+    public int getNameLength( int i) {
+        return directory.getShort( nameOffsets[i] - 18) & 0xFFFF;
+    }
+
+    public long getLocalHeaderOffset( int i) {
+        return localHeaderOffsets[i];
+    }
+
+    public long getCompressedSize( int i) {
+        return compressedSizes[i];
+    }
+
+    public long getSize( int i) {
+        return sizes[i];
+    }
+
+    public int getCrc32( int i) {
+        return crcs[i];
+    }
+
+    /** Returns a read-only map view of the index, in central directory order.  Iterating over
+     *  the keys only decodes names, and values are created as they are requested.
+     */
+    public Map<String,ZioEntry> asMap()
+    {
+        if (entryMap == null) entryMap = new EntryMap();
+        return entryMap;
+    }
+
+    class EntryMap extends AbstractMap<String,ZioEntry>
+    {
+        Set<Map.Entry<String,ZioEntry>> entrySet = null;
+
+        @Override
+        public ZioEntry get( Object key) {
+            if (!(key instanceof String)) return null;
+            int i = find( (String)key);
+            return i < 0 ? null : getEntry( i);
+        }
+
+        @Override
+        public boolean containsKey( Object key) {
+            return (key instanceof String) && find( (String)key) >= 0;
+        }
+
+        @Override
+        public int size() {
+            return count - numReplaced;
+        }
+
+        @Override
+        public Set<Map.Entry<String,ZioEntry>> entrySet() {
+            if (entrySet == null) {
+                entrySet = new AbstractSet<Map.Entry<String,ZioEntry>>() {
+                    @Override
+                    public Iterator<Map.Entry<String,ZioEntry>> iterator() {
+                        return new EntryIterator();
+                    }
+
+                    @Override
+                    public int size() {
+                        return EntryMap.this.size();
+                    }
+                };
+            }
+            return entrySet;
+        }
+    }
+
+    class EntryIterator implements Iterator<Map.Entry<String,ZioEntry>>
+    {
+        int next = replaced.nextClearBit( 0);
+
+        public boolean hasNext() {
+            return next < count;
+        }
+
+        public Map.Entry<String,ZioEntry> next() {
+            if (next >= count) throw new NoSuchElementException();
+            IndexEntry entry = new IndexEntry( next);
+            next = replaced.nextClearBit( next + 1);
+            return entry;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    class IndexEntry implements Map.Entry<String,ZioEntry>
+    {
+        int i;
+
+        IndexEntry( int i) {
+            this.i = i;
+        }
+
+        public String getKey() {
+            return getName( i);
+        }
+
+        public ZioEntry getValue() {
+            return getEntry( i);
+        }
+
+        public ZioEntry setValue( ZioEntry value) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
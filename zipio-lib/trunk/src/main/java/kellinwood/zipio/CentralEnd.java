@@ -16,6 +16,8 @@
 package kellinwood.zipio;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 import kellinwood.logging.LoggerInterface;
 import kellinwood.logging.LoggerManager;
@@ -25,13 +27,17 @@ public class CentralEnd
     public int signature = 0x06054b50; // end of central dir signature    4 bytes
     public short numberThisDisk = 0;   // number of this disk             2 bytes     
     public short centralStartDisk = 0; // number of the disk with the start of the central directory  2 bytes
-    public short numCentralEntries;    // total number of entries in the central directory on this disk  2 bytes
-    public short totalCentralEntries;  // total number of entries in the central directory           2 bytes
+    public int numCentralEntries;      // total number of entries in the central directory on this disk  2 bytes (8 in ZIP64)
+    public int totalCentralEntries;    // total number of entries in the central directory           2 bytes (8 in ZIP64)
 
-    public int centralDirectorySize;   // size of the central directory   4 bytes
-    public int centralStartOffset;     // offset of start of central directory with respect to the starting disk number        4 bytes
+    public long centralDirectorySize;  // size of the central directory   4 bytes (8 in ZIP64)
+    public long centralStartOffset;    // offset of start of central directory with respect to the starting disk number        4 bytes (8 in ZIP64)
     public String fileComment;         // .ZIP file comment       (variable size)
 
+    public static final int ZIP64_END_SIGNATURE = 0x06064b50;
+    public static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    public static final int ZIP64_LOCATOR_SIZE = 20;
+
     private static LoggerInterface log;
 
     public static CentralEnd read(ZipInput input) throws IOException
@@ -46,7 +52,28 @@ public class CentralEnd
 
         CentralEnd entry = new CentralEnd();
 
-        entry.doRead( input);
+        ByteBuffer record = ByteBuffer.wrap( input.readBytes( 18)).order( ByteOrder.LITTLE_ENDIAN);
+        int zipFileCommentLen = entry.doRead( record);
+        entry.fileComment = input.readString(zipFileCommentLen);
+        if (getLogger().isDebugEnabled()) log.debug( ".ZIP file comment: " + entry.fileComment);
+        return entry;
+    }
+
+    /** Decodes the record at the buffer's current position, which should be the start of the
+     *  signature.  Returns null if the signature doesn't match.  The buffer must be little-endian.
+     */
+    public static CentralEnd read(ByteBuffer buffer)
+    {
+        if (buffer.remaining() < 22 || buffer.getInt( buffer.position()) != 0x06054b50) return null;
+        buffer.getInt();
+
+        CentralEnd entry = new CentralEnd();
+
+        int zipFileCommentLen = entry.doRead( buffer);
+        byte[] comment = new byte[Math.min( zipFileCommentLen, buffer.remaining())];
+        buffer.get( comment);
+        entry.fileComment = new String( comment);
+        if (getLogger().isDebugEnabled()) log.debug( ".ZIP file comment: " + entry.fileComment);
         return entry;
     }
 
@@ -56,34 +83,80 @@ public class CentralEnd
     }
 
 
-    private void doRead( ZipInput input) throws IOException
+    /** Decodes the fields following the signature and returns the length of the file comment. */
+    private int doRead( ByteBuffer input)
     {
 
         boolean debug = getLogger().isDebugEnabled();
 
-        numberThisDisk = input.readShort();
+        numberThisDisk = input.getShort();
         if (debug) log.debug( String.format("This disk number: 0x%04x", numberThisDisk));
 
-        centralStartDisk = input.readShort();
+        centralStartDisk = input.getShort();
         if (debug) log.debug( String.format("Central dir start disk number: 0x%04x", centralStartDisk));
 
-        numCentralEntries = input.readShort();
+        numCentralEntries = input.getShort() & 0xFFFF;
         if (debug) log.debug( String.format("Central entries on this disk: 0x%04x", numCentralEntries));
 
-        totalCentralEntries = input.readShort();
+        totalCentralEntries = input.getShort() & 0xFFFF;
         if (debug) log.debug( String.format("Total number of central entries: 0x%04x", totalCentralEntries));
 
-        centralDirectorySize = input.readInt();
+        centralDirectorySize = input.getInt() & 0xFFFFFFFFL;
         if (debug) log.debug( String.format("Central directory size: 0x%08x", centralDirectorySize));
 
-        centralStartOffset = input.readInt();
+        centralStartOffset = input.getInt() & 0xFFFFFFFFL;
         if (debug) log.debug( String.format("Central directory offset: 0x%08x", centralStartOffset));
 
-        short zipFileCommentLen = input.readShort();
-        fileComment = input.readString(zipFileCommentLen);
-        if (debug) log.debug( ".ZIP file comment: " + fileComment);
+        return input.getShort() & 0xFFFF;
+    }
 
+    /** Decodes the ZIP64 end of central directory locator at the buffer's current position and
+     *  returns the file offset of the ZIP64 end of central directory record, or -1 if the
+     *  locator signature doesn't match (i.e., this isn't a ZIP64 archive).
+     */
+    public static long readZip64Locator( ByteBuffer buffer)
+    {
+        if (buffer.remaining() < ZIP64_LOCATOR_SIZE || buffer.getInt() != ZIP64_LOCATOR_SIGNATURE) return -1;
+        buffer.getInt(); // number of the disk with the start of the ZIP64 end of central directory
+        return buffer.getLong();
+    }
 
+    /** Reads the ZIP64 end of central directory record at the input's current position, replacing
+     *  the entry counts, directory size and offset decoded from the regular record.
+     */
+    public void readZip64( ZipInput input) throws IOException
+    {
+        long position = input.getFilePointer();
+        ByteBuffer record = ByteBuffer.wrap( input.readBytes( 56)).order( ByteOrder.LITTLE_ENDIAN);
+        if (record.getInt() != ZIP64_END_SIGNATURE) {
+            throw new IllegalStateException( String.format("ZIP64 end of central directory not found at pos=0x%016x", position));
+        }
+
+        boolean debug = getLogger().isDebugEnabled();
+
+        record.getLong();  // size of the remaining record
+        record.getShort(); // version made by
+        record.getShort(); // version needed to extract
+        record.getInt();   // number of this disk
+        record.getInt();   // number of the disk with the start of the central directory
+
+        numCentralEntries = (int)record.getLong();
+        if (debug) log.debug( String.format("ZIP64 central entries on this disk: %d", numCentralEntries));
+
+        totalCentralEntries = (int)record.getLong();
+        if (debug) log.debug( String.format("ZIP64 total number of central entries: %d", totalCentralEntries));
+
+        centralDirectorySize = record.getLong();
+        if (debug) log.debug( String.format("ZIP64 central directory size: 0x%016x", centralDirectorySize));
+
+        centralStartOffset = record.getLong();
+        if (debug) log.debug( String.format("ZIP64 central directory offset: 0x%016x", centralStartOffset));
+    }
+
+    /** Returns true if any value is too large for the regular end of central directory record. */
+    public boolean isZip64()
+    {
+        return totalCentralEntries >= 0xFFFF || centralDirectorySize >= ZioEntry.ZIP64_LIMIT || centralStartOffset >= ZioEntry.ZIP64_LIMIT;
     }
 
 
@@ -92,13 +165,36 @@ public class CentralEnd
 
         boolean debug = getLogger().isDebugEnabled();
 
+        boolean zip64 = isZip64();
+        if (zip64) {
+
+            long zip64EndOffset = output.getFilePointer();
+            if (debug) getLogger().debug( String.format("Writing ZIP64 end of central directory at 0x%016x", zip64EndOffset));
+
+            output.writeInt( ZIP64_END_SIGNATURE);
+            output.writeLong( 44);  // size of the remaining record
+            output.writeShort( ZioEntry.ZIP64_VERSION);
+            output.writeShort( ZioEntry.ZIP64_VERSION);
+            output.writeInt( numberThisDisk);
+            output.writeInt( centralStartDisk);
+            output.writeLong( numCentralEntries);
+            output.writeLong( totalCentralEntries);
+            output.writeLong( centralDirectorySize);
+            output.writeLong( centralStartOffset);
+
+            output.writeInt( ZIP64_LOCATOR_SIGNATURE);
+            output.writeInt( 0);    // number of the disk with the start of the ZIP64 end of central directory
+            output.writeLong( zip64EndOffset);
+            output.writeInt( 1);    // total number of disks
+        }
+
         output.writeInt( signature);
         output.writeShort( numberThisDisk);
         output.writeShort( centralStartDisk);
-        output.writeShort( numCentralEntries);
-        output.writeShort( totalCentralEntries);
-        output.writeInt( centralDirectorySize );
-        output.writeInt( centralStartOffset );
+        output.writeShort( (short)Math.min( numCentralEntries, 0xFFFF));
+        output.writeShort( (short)Math.min( totalCentralEntries, 0xFFFF));
+        output.writeInt( (int)Math.min( centralDirectorySize, ZioEntry.ZIP64_LIMIT));
+        output.writeInt( (int)Math.min( centralStartOffset, ZioEntry.ZIP64_LIMIT));
         output.writeShort( (short)fileComment.length());
         output.writeString( fileComment);
 
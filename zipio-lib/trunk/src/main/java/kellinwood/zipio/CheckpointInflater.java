@@ -0,0 +1,395 @@
+/*
+ * Copyright (C) 2010 Ken Ellinwood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kellinwood.zipio;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.ZipException;
+
+/**
+ * Inflates raw deflate data, for InflateIndex.  Unlike java.util.zip.Inflater it can start in
+ * the middle of the data, at the bit where a block begins, given the 32KB of output before it,
+ * and it exposes that state at each block boundary so it can be recorded.  read() returns early
+ * at block boundaries, after which atBlockBoundary() is true until the next read.
+ *
+ * Huffman codes of up to FAST_BITS bits are decoded with a lookup table, and longer ones bit by
+ * bit from the canonical code counts, as in zlib's puff.c.
+ */
+class CheckpointInflater extends InputStream {
+
+    static final int WINDOW_SIZE = 32768;
+    static final int WINDOW_MASK = WINDOW_SIZE - 1;
+
+    static final int MAX_BITS = 15;
+    static final int FAST_BITS = 9;
+
+    static final int[] LENGTH_BASE = { 3, 4, 5, 6, 7, 8, 9, 10, 11, 13, 15, 17, 19, 23, 27, 31,
+                                       35, 43, 51, 59, 67, 83, 99, 115, 131, 163, 195, 227, 258 };
+    static final int[] LENGTH_EXTRA = { 0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 2, 2,
+                                        3, 3, 3, 3, 4, 4, 4, 4, 5, 5, 5, 5, 0 };
+    static final int[] DISTANCE_BASE = { 1, 2, 3, 4, 5, 7, 9, 13, 17, 25, 33, 49, 65, 97, 129, 193,
+                                         257, 385, 513, 769, 1025, 1537, 2049, 3073, 4097, 6145,
+                                         8193, 12289, 16385, 24577 };
+    static final int[] DISTANCE_EXTRA = { 0, 0, 0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 6, 6,
+                                          7, 7, 8, 8, 9, 9, 10, 10, 11, 11, 12, 12, 13, 13 };
+    static final int[] CODE_LENGTH_ORDER = { 16, 17, 18, 0, 8, 7, 9, 6, 10, 5, 11, 4, 12, 3, 13, 2, 14, 1, 15 };
+
+    static final int HEADER = 0;
+    static final int STORED = 1;
+    static final int CODES = 2;
+    static final int DONE = 3;
+
+    /** A canonical Huffman code. */
+    static class Huffman {
+        short[] count = new short[MAX_BITS + 1];
+        short[] symbol;
+        // (length << 16) | symbol for codes of up to FAST_BITS bits, indexed by their bit-reversed
+        // code and every following bit pattern, 0 for longer codes.
+        int[] fast = new int[1 << FAST_BITS];
+
+        Huffman( int[] lengths, int offset, int n) throws ZipException
+        {
+            symbol = new short[n];
+            for (int i = 0; i < n; i++) count[lengths[offset + i]]++;
+            if (count[0] == n) return;
+
+            int left = 1;
+            for (int len = 1; len <= MAX_BITS; len++) {
+                left <<= 1;
+                left -= count[len];
+                if (left < 0) throw new ZipException( "Invalid Huffman code lengths, over-subscribed");
+            }
+
+            short[] offs = new short[MAX_BITS + 1];
+            int[] nextCode = new int[MAX_BITS + 1];
+            int code = 0;
+            for (int len = 1; len < MAX_BITS; len++) {
+                offs[len + 1] = (short)(offs[len] + count[len]);
+            }
+            for (int len = 1; len <= MAX_BITS; len++) {
+                nextCode[len] = code;
+                code = (code + count[len]) << 1;
+            }
+            for (int i = 0; i < n; i++) {
+                int len = lengths[offset + i];
+                if (len == 0) continue;
+                symbol[offs[len]++] = (short)i;
+                int c = nextCode[len]++;
+                if (len <= FAST_BITS) {
+                    int reversed = Integer.reverse( c) >>> (32 - len);
+                    for (int j = reversed; j < fast.length; j += 1 << len) fast[j] = (len << 16) | i;
+                }
+            }
+        }
+    }
+
+    static Huffman fixedLengths;
+    static Huffman fixedDistances;
+
+    static {
+        int[] lengths = new int[288 + 30];
+        for (int i = 0; i < 144; i++) lengths[i] = 8;
+        for (int i = 144; i < 256; i++) lengths[i] = 9;
+        for (int i = 256; i < 280; i++) lengths[i] = 7;
+        for (int i = 280; i < 288; i++) lengths[i] = 8;
+        for (int i = 288; i < lengths.length; i++) lengths[i] = 5;
+        try {
+            fixedLengths = new Huffman( lengths, 0, 288);
+            fixedDistances = new Huffman( lengths, 288, 30);
+        }
+        catch (ZipException x) {
+            throw new IllegalStateException( x.getMessage(), x);
+        }
+    }
+
+    InputStream in;
+    byte[] inBuffer = new byte[16384];
+    int inPosition = 0;
+    int inLength = 0;
+    long bytesIn = 0;
+    long bitBuffer = 0;
+    int bitCount = 0;
+
+    byte[] window = new byte[WINDOW_SIZE];
+    int windowPosition = 0;
+    int windowFill = 0;
+    long totalOut;
+
+    int mode = HEADER;
+    boolean lastBlock = false;
+    int storedRemaining;
+    Huffman lengthCode;
+    Huffman distanceCode;
+    int copyLength = 0;
+    int copyDistance;
+    // A literal decoded ahead by read(), not yet output.
+    int pendingLiteral = -1;
+
+    /** Inflates the data from the start. */
+    CheckpointInflater( InputStream in) throws IOException
+    {
+        this( in, 0, new byte[0], 0);
+    }
+
+    /** Inflates starting at the given bit of the stream's first byte, with the output that came
+     *  before, up to 32KB, in dictionary, and totalOut bytes of output so far.
+     */
+    CheckpointInflater( InputStream in, int bitOffset, byte[] dictionary, long totalOut) throws IOException
+    {
+        this.in = in;
+        this.totalOut = totalOut;
+        int length = Math.min( dictionary.length, WINDOW_SIZE);
+        System.arraycopy( dictionary, dictionary.length - length, window, 0, length);
+        windowPosition = length & WINDOW_MASK;
+        windowFill = length;
+        if (bitOffset > 0) bits( bitOffset);
+    }
+
+    /** Returns true between blocks, where the state can be recorded as a checkpoint. */
+    boolean atBlockBoundary() {
+        return mode == HEADER && !lastBlock && copyLength == 0;
+    }
+
+    /** Returns the position of the next bit to be decoded, from the start of the stream. */
+    long getBitPosition() {
+        return bytesIn * 8 - bitCount;
+    }
+
+    long getTotalOut() {
+        return totalOut;
+    }
+
+    /** Returns the last 32KB of output, or all of it if less. */
+    byte[] getWindow() {
+        byte[] copy = new byte[windowFill];
+        int start = (windowPosition - windowFill) & WINDOW_MASK;
+        int first = Math.min( windowFill, WINDOW_SIZE - start);
+        System.arraycopy( window, start, copy, 0, first);
+        System.arraycopy( window, 0, copy, first, windowFill - first);
+        return copy;
+    }
+
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        int numRead;
+        while ((numRead = read( one, 0, 1)) == 0);
+        return numRead < 0 ? -1 : one[0] & 0xFF;
+    }
+
+    public int read( byte[] b, int off, int len) throws IOException
+    {
+        if (len == 0) return 0;
+        int n = 0;
+        while (n < len) {
+            if (copyLength > 0) {
+                int count = Math.min( copyLength, len - n);
+                for (int i = 0; i < count; i++) {
+                    byte value = window[(windowPosition - copyDistance) & WINDOW_MASK];
+                    window[windowPosition] = value;
+                    windowPosition = (windowPosition + 1) & WINDOW_MASK;
+                    b[off + n++] = value;
+                }
+                copyLength -= count;
+                totalOut += count;
+                windowFill = Math.min( WINDOW_SIZE, windowFill + count);
+                continue;
+            }
+            switch (mode) {
+            case HEADER:
+                if (n > 0) return n;
+                if (lastBlock) {
+                    mode = DONE;
+                    return -1;
+                }
+                readBlockHeader();
+                break;
+            case STORED:
+                if (storedRemaining == 0) {
+                    mode = HEADER;
+                    break;
+                }
+                b[off + n++] = emit( (byte)bits( 8));
+                storedRemaining -= 1;
+                break;
+            case CODES:
+                int literal = pendingLiteral >= 0 ? pendingLiteral : decodeSymbol();
+                pendingLiteral = -1;
+                if (literal >= 0) b[off + n++] = emit( (byte)literal);
+                break;
+            default:
+                return n > 0 ? n : -1;
+            }
+        }
+        // The buffer is full.  Look ahead for the end of the block, so a block ending exactly
+        // here is reported by atBlockBoundary() now instead of being passed by the next read.
+        if (copyLength == 0) {
+            if (mode == STORED && storedRemaining == 0) mode = HEADER;
+            else if (mode == CODES && pendingLiteral < 0) pendingLiteral = decodeSymbol();
+        }
+        return n;
+    }
+
+    /** Decodes the next symbol of a compressed block.  Returns a literal, or sets up a copy or
+     *  the end of the block and returns -1.
+     */
+    private int decodeSymbol() throws IOException
+    {
+        int symbol = decode( lengthCode);
+        if (symbol < 256) return symbol;
+        if (symbol == 256) {
+            mode = HEADER;
+            return -1;
+        }
+        symbol -= 257;
+        if (symbol >= 29) throw new ZipException( "Invalid literal/length code");
+        copyLength = LENGTH_BASE[symbol] + bits( LENGTH_EXTRA[symbol]);
+        symbol = decode( distanceCode);
+        if (symbol >= 30) throw new ZipException( "Invalid distance code");
+        copyDistance = DISTANCE_BASE[symbol] + bits( DISTANCE_EXTRA[symbol]);
+        if (copyDistance > windowFill) throw new ZipException( "Invalid distance too far back");
+        return -1;
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private byte emit( byte value) {
+        window[windowPosition] = value;
+        windowPosition = (windowPosition + 1) & WINDOW_MASK;
+        if (windowFill < WINDOW_SIZE) windowFill++;
+        totalOut++;
+        return value;
+    }
+
+    private void readBlockHeader() throws IOException
+    {
+        lastBlock = bits( 1) == 1;
+        int type = bits( 2);
+        if (type == 0) {
+            // Stored blocks start at a byte boundary.
+            bits( bitCount & 7);
+            int length = bits( 16);
+            if ((bits( 16) ^ 0xFFFF) != length) throw new ZipException( "Invalid stored block lengths");
+            storedRemaining = length;
+            mode = STORED;
+        }
+        else if (type == 1) {
+            lengthCode = fixedLengths;
+            distanceCode = fixedDistances;
+            mode = CODES;
+        }
+        else if (type == 2) {
+            readDynamicCodes();
+            mode = CODES;
+        }
+        else throw new ZipException( "Invalid block type");
+    }
+
+    private void readDynamicCodes() throws IOException
+    {
+        int numLengths = bits( 5) + 257;
+        int numDistances = bits( 5) + 1;
+        int numCodeLengths = bits( 4) + 4;
+        if (numLengths > 286 || numDistances > 30) throw new ZipException( "Invalid dynamic block code counts");
+
+        int[] lengths = new int[19];
+        for (int i = 0; i < numCodeLengths; i++) lengths[CODE_LENGTH_ORDER[i]] = bits( 3);
+        Huffman codeLengthCode = new Huffman( lengths, 0, 19);
+
+        lengths = new int[numLengths + numDistances];
+        int index = 0;
+        while (index < lengths.length) {
+            int symbol = decode( codeLengthCode);
+            if (symbol < 16) {
+                lengths[index++] = symbol;
+                continue;
+            }
+            int value = 0;
+            int repeat;
+            if (symbol == 16) {
+                if (index == 0) throw new ZipException( "Invalid repeat of no code length");
+                value = lengths[index - 1];
+                repeat = 3 + bits( 2);
+            }
+            else if (symbol == 17) repeat = 3 + bits( 3);
+            else repeat = 11 + bits( 7);
+            if (index + repeat > lengths.length) throw new ZipException( "Too many code lengths");
+            while (repeat-- > 0) lengths[index++] = value;
+        }
+        if (lengths[256] == 0) throw new ZipException( "Missing end-of-block code");
+        lengthCode = new Huffman( lengths, 0, numLengths);
+        distanceCode = new Huffman( lengths, numLengths, numDistances);
+    }
+
+    private int decode( Huffman huffman) throws IOException
+    {
+        fill();
+        int entry = huffman.fast[(int)bitBuffer & ((1 << FAST_BITS) - 1)];
+        int length = entry >>> 16;
+        if (entry != 0 && length <= bitCount) {
+            bitBuffer >>>= length;
+            bitCount -= length;
+            return entry & 0xFFFF;
+        }
+
+        int code = 0;
+        int first = 0;
+        int index = 0;
+        for (int len = 1; len <= MAX_BITS; len++) {
+            code |= bits( 1);
+            int count = huffman.count[len];
+            if (code - count < first) return huffman.symbol[index + (code - first)];
+            index += count;
+            first += count;
+            first <<= 1;
+            code <<= 1;
+        }
+        throw new ZipException( "Invalid Huffman code");
+    }
+
+    private int bits( int n) throws IOException
+    {
+        if (n == 0) return 0;
+        if (bitCount < n) {
+            fill();
+            if (bitCount < n) throw new EOFException( "Unexpected end of compressed data");
+        }
+        int value = (int)(bitBuffer & ((1L << n) - 1));
+        bitBuffer >>>= n;
+        bitCount -= n;
+        return value;
+    }
+
+    /** Loads whole bytes into the bit buffer while there is room and input. */
+    private void fill() throws IOException
+    {
+        while (bitCount <= 56) {
+            if (inPosition == inLength) {
+                inLength = in.read( inBuffer, 0, inBuffer.length);
+                inPosition = 0;
+                if (inLength <= 0) {
+                    inLength = 0;
+                    return;
+                }
+            }
+            bitBuffer |= (long)(inBuffer[inPosition++] & 0xFF) << bitCount;
+            bitCount += 8;
+            bytesIn++;
+        }
+    }
+}
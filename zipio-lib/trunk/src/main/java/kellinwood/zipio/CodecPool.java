@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2010 Ken Ellinwood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kellinwood.zipio;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Bounded pool of the raw (nowrap) Inflater and Deflater instances used for entry data.  Each
+ * instance holds native zlib memory until end() is called, so instead of leaving that to the
+ * finalizer the entry streams borrow from here and give the instance back when closed.
+ * Instances beyond the pool's capacity are ended when they are released.  The pool is split
+ * into stripes selected by thread id to keep contention low.
+ */
+public class CodecPool
+{
+    static final int NUM_STRIPES = Integer.highestOneBit( Math.max( Runtime.getRuntime().availableProcessors(), 1) * 2 - 1);
+
+    static volatile int maxPerStripe = 4;
+
+    static final Stripe[] stripes = new Stripe[NUM_STRIPES];
+    static {
+        for (int i = 0; i < NUM_STRIPES; i++) stripes[i] = new Stripe();
+    }
+
+    static final AtomicLong inflaterHits = new AtomicLong();
+    static final AtomicLong inflaterMisses = new AtomicLong();
+    static final AtomicLong deflaterHits = new AtomicLong();
+    static final AtomicLong deflaterMisses = new AtomicLong();
+
+    static class Stripe {
+        Inflater[] inflaters = new Inflater[0];
+        int numInflaters = 0;
+        Deflater[] deflaters = new Deflater[0];
+        int numDeflaters = 0;
+    }
+
+    private static Stripe stripe() {
+        return stripes[(int)Thread.currentThread().getId() & (NUM_STRIPES - 1)];
+    }
+
+    /** Returns a reset nowrap Inflater, from the pool if one is available. */
+    public static Inflater getInflater()
+    {
+        Stripe stripe = stripe();
+        synchronized (stripe) {
+            if (stripe.numInflaters > 0) {
+                Inflater inflater = stripe.inflaters[--stripe.numInflaters];
+                stripe.inflaters[stripe.numInflaters] = null;
+                inflaterHits.incrementAndGet();
+                return inflater;
+            }
+        }
+        inflaterMisses.incrementAndGet();
+        return new Inflater( true);
+    }
+
+    /** Returns the inflater to the pool, or ends it if the pool is full.  The inflater must not
+     *  be used by the caller afterwards.
+     */
+    public static void release( Inflater inflater)
+    {
+        if (inflater == null) return;
+        inflater.reset();
+        Stripe stripe = stripe();
+        synchronized (stripe) {
+            if (stripe.numInflaters < maxPerStripe) {
+                if (stripe.inflaters.length < maxPerStripe) {
+                    Inflater[] grown = new Inflater[maxPerStripe];
+                    System.arraycopy( stripe.inflaters, 0, grown, 0, stripe.numInflaters);
+                    stripe.inflaters = grown;
+                }
+                stripe.inflaters[stripe.numInflaters++] = inflater;
+                return;
+            }
+        }
+        inflater.end();
+    }
+
+    /** Returns a reset nowrap Deflater with the given level and the default strategy. */
+    public static Deflater getDeflater( int level)
+    {
+        return getDeflater( level, Deflater.DEFAULT_STRATEGY);
+    }
+
+    /** Returns a reset nowrap Deflater with the given level and strategy, from the pool if one
+     *  is available.
+     */
+    public static Deflater getDeflater( int level, int strategy)
+    {
+        Deflater deflater = null;
+        Stripe stripe = stripe();
+        synchronized (stripe) {
+            if (stripe.numDeflaters > 0) {
+                deflater = stripe.deflaters[--stripe.numDeflaters];
+                stripe.deflaters[stripe.numDeflaters] = null;
+            }
+        }
+        if (deflater == null) {
+            deflaterMisses.incrementAndGet();
+            deflater = new Deflater( level, true);
+        }
+        else {
+            deflaterHits.incrementAndGet();
+            deflater.setLevel( level);
+        }
+        deflater.setStrategy( strategy);
+        return deflater;
+    }
+
+    /** Returns the deflater to the pool, or ends it if the pool is full.  The deflater must not
+     *  be used by the caller afterwards.
+     */
+    public static void release( Deflater deflater)
+    {
+        if (deflater == null) return;
+        deflater.reset();
+        Stripe stripe = stripe();
+        synchronized (stripe) {
+            if (stripe.numDeflaters < maxPerStripe) {
+                if (stripe.deflaters.length < maxPerStripe) {
+                    Deflater[] grown = new Deflater[maxPerStripe];
+                    System.arraycopy( stripe.deflaters, 0, grown, 0, stripe.numDeflaters);
+                    stripe.deflaters = grown;
+                }
+                stripe.deflaters[stripe.numDeflaters++] = deflater;
+                return;
+            }
+        }
+        deflater.end();
+    }
+
+    /** Sets the number of idle instances of each kind kept per stripe.  Zero disables pooling. */
+    public static void setMaxPerStripe( int max)
+    {
+        if (max < 0) throw new IllegalArgumentException( "Pool size must not be negative: " + max);
+        maxPerStripe = max;
+        clear();
+    }
+
+    public static int getMaxPerStripe() {
+        return maxPerStripe;
+    }
+
+    /** Ends and discards all idle instances. */
+    public static void clear()
+    {
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                for (int i = 0; i < stripe.numInflaters; i++) stripe.inflaters[i].end();
+                for (int i = 0; i < stripe.numDeflaters; i++) stripe.deflaters[i].end();
+                stripe.inflaters = new Inflater[0];
+                stripe.numInflaters = 0;
+                stripe.deflaters = new Deflater[0];
+                stripe.numDeflaters = 0;
+            }
+        }
+    }
+
+    public static long getInflaterHits() {
+        return inflaterHits.get();
+    }
+
+    public static long getInflaterMisses() {
+        return inflaterMisses.get();
+    }
+
+    public static long getDeflaterHits() {
+        return deflaterHits.get();
+    }
+
+    public static long getDeflaterMisses() {
+        return deflaterMisses.get();
+    }
+
+    public static void resetStatistics() {
+        inflaterHits.set( 0);
+        inflaterMisses.set( 0);
+        deflaterHits.set( 0);
+        deflaterMisses.set( 0);
+    }
+}
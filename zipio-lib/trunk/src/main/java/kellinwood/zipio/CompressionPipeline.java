@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2010 Ken Ellinwood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kellinwood.zipio;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compresses the entries given to ZipOutput in parallel mode on a pool of worker threads.  The
+ * entries are written by the thread using the ZipOutput, in the order they were submitted, as
+ * soon as each one and all before it are done.  Submitting blocks while the uncompressed data
+ * of the pending entries exceeds the in-flight limit.
+ */
+class CompressionPipeline {
+
+    static class PendingEntry {
+        ZioEntry entry;
+        Future<ZioEntry> future;
+        long bytes;
+    }
+
+    ZipOutput output;
+    ExecutorService executor;
+    long maxInFlightBytes;
+    long inFlightBytes = 0;
+    LinkedList<PendingEntry> pending = new LinkedList<PendingEntry>();
+
+    CompressionPipeline( ZipOutput output, int threads, long maxInFlightBytes)
+    {
+        this.output = output;
+        this.maxInFlightBytes = maxInFlightBytes;
+        executor = Executors.newFixedThreadPool( threads, new ThreadFactory() {
+            int count = 0;
+            public synchronized Thread newThread( Runnable r) {
+                Thread thread = new Thread( r, "zipio-compress-" + (++count));
+                thread.setDaemon( true);
+                return thread;
+            }
+        });
+    }
+
+    /** Queues an entry whose data is compressed by a worker thread. */
+    void submit( final ZioEntry entry, final byte[] content) throws IOException
+    {
+        final CompressionPolicy policy = output.getCompressionPolicy();
+        PendingEntry p = new PendingEntry();
+        p.entry = entry;
+        p.bytes = content.length;
+        p.future = executor.submit( new Callable<ZioEntry>() {
+            public ZioEntry call() throws IOException {
+                if (policy != null) policy.apply( entry, content);
+                OutputStream out = entry.getOutputStream();
+                out.write( content);
+                entry.closeOutputStream();
+                return entry;
+            }
+        });
+        add( p);
+    }
+
+    /** Queues an entry that is ready to write, keeping its place in the output order. */
+    void submit( ZioEntry entry) throws IOException
+    {
+        PendingEntry p = new PendingEntry();
+        p.entry = entry;
+        add( p);
+    }
+
+    private void add( PendingEntry p) throws IOException
+    {
+        pending.add( p);
+        inFlightBytes += p.bytes;
+        while (!pending.isEmpty() && (inFlightBytes > maxInFlightBytes || isDone( pending.getFirst()))) {
+            writeNext();
+        }
+    }
+
+    private static boolean isDone( PendingEntry p) {
+        return p.future == null || p.future.isDone();
+    }
+
+    /** Writes the oldest pending entry, waiting for its compression to finish. */
+    private void writeNext() throws IOException
+    {
+        PendingEntry p = pending.removeFirst();
+        inFlightBytes -= p.bytes;
+        if (p.future != null) {
+            try {
+                p.future.get();
+            }
+            catch (InterruptedException x) {
+                Thread.currentThread().interrupt();
+                throw new IOException( "Interrupted while compressing " + p.entry.getName());
+            }
+            catch (ExecutionException x) {
+                Throwable cause = x.getCause();
+                if (cause instanceof IOException) throw (IOException)cause;
+                if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+                throw new IllegalStateException( "Failed to compress " + p.entry.getName(), cause);
+            }
+        }
+        output.writeEntry( p.entry);
+    }
+
+    /** Writes all pending entries. */
+    void drain() throws IOException
+    {
+        while (!pending.isEmpty()) writeNext();
+    }
+
+    /** Shuts down the workers after their running tasks finish.  Entries still pending, e.g.,
+     *  after drain() failed, are dropped and their compression is cancelled if not yet started.
+     *  The temporary files of dropped entries that spilled are deleted.
+     */
+    void shutdown()
+    {
+        for (PendingEntry p : pending) {
+            if (p.future != null) p.future.cancel( false);
+        }
+        executor.shutdown();
+        try {
+            executor.awaitTermination( Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+        }
+        for (PendingEntry p : pending) p.entry.dispose();
+        pending.clear();
+        inFlightBytes = 0;
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2010 Ken Ellinwood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kellinwood.zipio;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+
+/**
+ * Chooses the compression method, deflate level and strategy of new entries.  Rules are matched
+ * by file extension, path glob and/or size, the first matching rule wins, and entries matching
+ * no rule get the default level and strategy.  A level of Deflater.NO_COMPRESSION means the
+ * entry is stored.  Optionally, an entry that would be deflated is stored instead if a fast
+ * compression of its first few KB doesn't make them smaller, as with already compressed media.
+ *
+ * Subclasses can override apply() to make other decisions.
+ */
+public class CompressionPolicy {
+
+    public static final String PRESET_FAST = "fast";
+    public static final String PRESET_BALANCED = "balanced";
+    public static final String PRESET_MAX = "max";
+
+    /** Extensions of file formats that are already compressed. */
+    public static final String[] COMPRESSED_EXTENSIONS = {
+        "png", "jpg", "jpeg", "gif", "webp", "ogg", "mp3", "mp4", "m4a", "aac", "3gp", "amr", "webm",
+        "zip", "jar", "apk", "gz", "xz", "bz2", "7z"
+    };
+
+    /** Entries Android needs stored, for page-aligned loading of native libraries in place and
+     *  memory mapping of the resource table.  Every preset stores them.
+     */
+    public static final String[] ALWAYS_STORED_GLOBS = {
+        "**.so", "resources.arsc"
+    };
+
+    static class Rule {
+        String extension;
+        Pattern pattern;
+        long minSize;
+        long maxSize;
+        int level;
+        int strategy;
+
+        boolean matches( String name, long size) {
+            if (extension != null && !name.toLowerCase().endsWith( extension)) return false;
+            if (pattern != null && !pattern.matcher( name).matches()) return false;
+            if (minSize > 0 && (size < 0 || size < minSize)) return false;
+            if (maxSize >= 0 && (size < 0 || size > maxSize)) return false;
+            return true;
+        }
+    }
+
+    List<Rule> rules = new ArrayList<Rule>();
+    int defaultLevel;
+    int defaultStrategy;
+    int sampleSize = 0;
+    double maxSampleRatio = 1.0;
+
+    /** Deflates everything at the given level and strategy until rules are added. */
+    public CompressionPolicy( int defaultLevel, int defaultStrategy) {
+        this.defaultLevel = defaultLevel;
+        this.defaultStrategy = defaultStrategy;
+    }
+
+    /** Deflates everything with Deflater.BEST_COMPRESSION, as entries always were before. */
+    public CompressionPolicy() {
+        this( Deflater.BEST_COMPRESSION, Deflater.DEFAULT_STRATEGY);
+    }
+
+    /** Returns a new policy for the named preset:
+     *  fast - level 1, already compressed formats and incompressible data are stored.
+     *  balanced - level 6, already compressed formats and incompressible data are stored.
+     *  max - level 9 for everything else.
+     *  All of them store the entries matching ALWAYS_STORED_GLOBS.
+     */
+    public static CompressionPolicy getPreset( String name)
+    {
+        int level;
+        if (PRESET_FAST.equals( name)) level = Deflater.BEST_SPEED;
+        else if (PRESET_BALANCED.equals( name)) level = 6;
+        else if (PRESET_MAX.equals( name)) level = Deflater.BEST_COMPRESSION;
+        else throw new IllegalArgumentException( "Unknown compression preset: " + name);
+
+        CompressionPolicy policy = new CompressionPolicy( level, Deflater.DEFAULT_STRATEGY);
+        for (String glob : ALWAYS_STORED_GLOBS) {
+            policy.addGlobRule( glob, Deflater.NO_COMPRESSION, Deflater.DEFAULT_STRATEGY);
+        }
+        if (PRESET_MAX.equals( name)) return policy;
+
+        for (String extension : COMPRESSED_EXTENSIONS) {
+            policy.addExtensionRule( extension, Deflater.NO_COMPRESSION, Deflater.DEFAULT_STRATEGY);
+        }
+        policy.setSampleCheck( 4096, 0.95);
+        return policy;
+    }
+
+    /** Matches entries whose name ends with "." + extension, ignoring case. */
+    public CompressionPolicy addExtensionRule( String extension, int level, int strategy) {
+        Rule rule = newRule( level, strategy);
+        rule.extension = "." + extension.toLowerCase();
+        rules.add( rule);
+        return this;
+    }
+
+    /** Matches entries whose path matches the glob, in which '*' and '?' match within one
+     *  directory level and '**' matches across levels, e.g., "res/raw/*" or "assets/**".
+     */
+    public CompressionPolicy addGlobRule( String glob, int level, int strategy) {
+        Rule rule = newRule( level, strategy);
+        rule.pattern = globToPattern( glob);
+        rules.add( rule);
+        return this;
+    }
+
+    /** Matches entries with at least minSize and at most maxSize bytes of uncompressed data, where
+     *  -1 means no maximum.  Entries of unknown size never match a size rule.
+     */
+    public CompressionPolicy addSizeRule( long minSize, long maxSize, int level, int strategy) {
+        Rule rule = newRule( level, strategy);
+        rule.minSize = minSize;
+        rule.maxSize = maxSize;
+        rules.add( rule);
+        return this;
+    }
+
+    /** Matches entries by glob (or any path if null) and size range together. */
+    public CompressionPolicy addRule( String glob, long minSize, long maxSize, int level, int strategy) {
+        Rule rule = newRule( level, strategy);
+        if (glob != null) rule.pattern = globToPattern( glob);
+        rule.minSize = minSize;
+        rule.maxSize = maxSize;
+        rules.add( rule);
+        return this;
+    }
+
+    /** Stores an entry that would be deflated if compressing the first sampleSize bytes of its
+     *  data at the fastest level gives more than maxRatio times their size.  Zero turns it off.
+     */
+    public CompressionPolicy setSampleCheck( int sampleSize, double maxRatio) {
+        this.sampleSize = sampleSize;
+        this.maxSampleRatio = maxRatio;
+        return this;
+    }
+
+    public int getSampleSize() {
+        return sampleSize;
+    }
+
+    private static Rule newRule( int level, int strategy) {
+        Rule rule = new Rule();
+        rule.minSize = 0;
+        rule.maxSize = -1;
+        rule.level = level;
+        rule.strategy = strategy;
+        return rule;
+    }
+
+    static Pattern globToPattern( String glob)
+    {
+        StringBuilder regex = new StringBuilder();
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '*') {
+                if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                    regex.append( ".*");
+                    i++;
+                }
+                else regex.append( "[^/]*");
+            }
+            else if (c == '?') regex.append( "[^/]");
+            else regex.append( Pattern.quote( String.valueOf( c)));
+        }
+        return Pattern.compile( regex.toString());
+    }
+
+    /** Sets the compression of a new entry with the given data. */
+    public void apply( ZioEntry entry, byte[] content) {
+        apply( entry, content.length, content, content.length);
+    }
+
+    /** Sets the compression method, level and strategy of a new entry before its data is
+     *  written.  The size is -1 if unknown, and the sample holds the first sampleLength bytes of
+     *  the data, or is null if they aren't available.
+     */
+    public void apply( ZioEntry entry, long size, byte[] sample, int sampleLength)
+    {
+        int level = defaultLevel;
+        int strategy = defaultStrategy;
+        for (Rule rule : rules) {
+            if (rule.matches( entry.getName(), size)) {
+                level = rule.level;
+                strategy = rule.strategy;
+                break;
+            }
+        }
+
+        if (size == 0 || level == Deflater.NO_COMPRESSION ||
+            (sample != null && sampleSize > 0 && isIncompressible( sample, Math.min( sampleLength, sampleSize))))
+        {
+            entry.setCompression( 0);
+            return;
+        }
+        entry.setCompression( 8);
+        entry.setLevel( level);
+        entry.setStrategy( strategy);
+    }
+
+    private boolean isIncompressible( byte[] sample, int length)
+    {
+        if (length <= 0) return false;
+        Deflater deflater = CodecPool.getDeflater( Deflater.BEST_SPEED);
+        try {
+            deflater.setInput( sample, 0, length);
+            deflater.finish();
+            // Compressing stops early once the output exceeds the limit.
+            int limit = (int)(length * maxSampleRatio) + 1;
+            byte[] buffer = new byte[Math.min( limit, 8192)];
+            int count = 0;
+            while (!deflater.finished() && count < limit) {
+                count += deflater.deflate( buffer);
+            }
+            return count >= limit;
+        }
+        finally {
+            CodecPool.release( deflater);
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2010 Ken Ellinwood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kellinwood.zipio;
+
+import java.lang.ref.SoftReference;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Least recently used cache of the uncompressed data of a ZipInput's entries, bounded by the
+ * total number of bytes, see ZipInput.setDataCache().  Data is keyed by the offset of the
+ * entry's local header and held through soft references, so the garbage collector can also
+ * clear it when memory runs low.  Callers get their own copy of the cached data.  All methods
+ * are thread safe.
+ */
+public class DataCache {
+
+    static class Item {
+        SoftReference<byte[]> data;
+        int length;
+    }
+
+    long maxBytes;
+    long bytes = 0;
+    // Access ordered, so iteration starts at the least recently used entry.
+    LinkedHashMap<Long,Item> items = new LinkedHashMap<Long,Item>( 16, 0.75f, true);
+
+    long hits = 0;
+    long misses = 0;
+    long evictions = 0;
+    long cleared = 0;
+
+    DataCache( long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /** Returns a copy of the data cached for the entry, or null. */
+    byte[] get( ZioEntry entry)
+    {
+        byte[] data = null;
+        synchronized (this) {
+            Item item = items.get( entry.getLocalHeaderOffset());
+            if (item != null) {
+                data = item.data.get();
+                if (data == null) {
+                    items.remove( entry.getLocalHeaderOffset());
+                    bytes -= item.length;
+                    cleared += 1;
+                }
+            }
+            if (data == null) {
+                misses += 1;
+                return null;
+            }
+            hits += 1;
+        }
+        return data.clone();
+    }
+
+    /** Caches a copy of the entry's data, evicting least recently used data to make room. */
+    void put( ZioEntry entry, byte[] data)
+    {
+        if (data.length > maxBytes) return;
+        Item item = new Item();
+        item.data = new SoftReference<byte[]>( data.clone());
+        item.length = data.length;
+        synchronized (this) {
+            Item previous = items.put( entry.getLocalHeaderOffset(), item);
+            if (previous != null) bytes -= previous.length;
+            bytes += item.length;
+            Iterator<Map.Entry<Long,Item>> iterator = items.entrySet().iterator();
+            while (bytes > maxBytes && iterator.hasNext()) {
+                Item eldest = iterator.next().getValue();
+                iterator.remove();
+                bytes -= eldest.length;
+                evictions += 1;
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        items.clear();
+        bytes = 0;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /** Returns the number of bytes cached, including data the garbage collector has cleared
+     *  but that hasn't been looked up since.
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized int getNumEntries() {
+        return items.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /** Returns the number of entries evicted to stay within the size limit. */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /** Returns the number of entries found cleared by the garbage collector. */
+    public synchronized long getCleared() {
+        return cleared;
+    }
+
+    public synchronized void resetStatistics() {
+        hits = 0;
+        misses = 0;
+        evictions = 0;
+        cleared = 0;
+    }
+}
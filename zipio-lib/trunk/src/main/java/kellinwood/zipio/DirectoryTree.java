@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2010 Ken Ellinwood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kellinwood.zipio;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Trie of the directories in a zip file, built from the entry names, so the children of a
+ * directory are listed without scanning every entry.  Each node maps the names of its children
+ * to their nodes, in sorted order, where directory names end with '/'.  Directories that have
+ * no entry of their own are included, as in "res/" for an entry named "res/raw/a.ogg".
+ */
+class DirectoryTree {
+
+    static class Node {
+        TreeMap<String,Node> children = null;
+
+        Node child( String name) {
+            if (children == null) children = new TreeMap<String,Node>();
+            Node node = children.get( name);
+            if (node == null) {
+                node = new Node();
+                children.put( name, node);
+            }
+            return node;
+        }
+    }
+
+    static final SortedSet<String> EMPTY = Collections.unmodifiableSortedSet( new TreeSet<String>());
+
+    Node root = new Node();
+
+    DirectoryTree( Collection<String> names)
+    {
+        for (String name : names) add( name);
+    }
+
+    private void add( String name)
+    {
+        Node node = root;
+        int start = 0;
+        while (start < name.length()) {
+            int slash = name.indexOf( '/', start);
+            // Names with empty components (e.g., "a//b") are listed only down to that point.
+            if (slash == start) return;
+            if (slash < 0) {
+                node.child( name.substring( start));
+                return;
+            }
+            node = node.child( name.substring( start, slash + 1));
+            start = slash + 1;
+        }
+    }
+
+    /** Returns the sorted names of the children of the directory with the given path, which is
+     *  empty or ends with '/'.  The result is empty if there is no such directory.
+     */
+    SortedSet<String> list( String path)
+    {
+        Node node = root;
+        int start = 0;
+        while (node != null && start < path.length()) {
+            int slash = path.indexOf( '/', start);
+            if (node.children == null) return EMPTY;
+            node = node.children.get( path.substring( start, slash + 1));
+            start = slash + 1;
+        }
+        if (node == null || node.children == null) return EMPTY;
+        return Collections.unmodifiableSortedSet( node.children.navigableKeySet());
+    }
+}
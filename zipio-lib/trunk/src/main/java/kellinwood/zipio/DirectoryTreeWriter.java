@@ -0,0 +1,299 @@
+/*
+ * Copyright (C) 2010 Ken Ellinwood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kellinwood.zipio;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes the files under a directory to a ZipOutput, for ZipOutput.writeTree().  The directory
+ * levels are listed in parallel, then the files are written in name order.  Each file is read
+ * once, by a worker thread that compresses it and computes its CRC as it goes, and the entries
+ * are written as they complete.  Only as many files as there are workers are open and in memory
+ * at a time.  Files larger than the spill threshold are streamed straight into the output
+ * instead, so they aren't copied to a temporary file first.
+ */
+class DirectoryTreeWriter {
+
+    static class Item implements Comparable<Item> {
+        String name;
+        File file;
+
+        Item( String name, File file) {
+            this.name = name;
+            this.file = file;
+        }
+
+        public int compareTo( Item other) {
+            return name.compareTo( other.name);
+        }
+    }
+
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    ZipOutput output;
+    ExecutorService executor;
+    int threads;
+
+    DirectoryTreeWriter( ZipOutput output, int threads)
+    {
+        this.output = output;
+        this.threads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    }
+
+    void write( File dir, String prefix) throws IOException
+    {
+        if (!dir.isDirectory()) throw new IOException( "Not a directory: " + dir);
+        executor = Executors.newFixedThreadPool( threads, new ThreadFactory() {
+            int count = 0;
+            public synchronized Thread newThread( Runnable r) {
+                Thread thread = new Thread( r, "zipio-tree-" + (++count));
+                thread.setDaemon( true);
+                return thread;
+            }
+        });
+        try {
+            writeItems( walk( dir, prefix));
+        }
+        finally {
+            // The reads not started after a failure were cancelled.  Let the running ones finish
+            // rather than interrupting them, which could hide the first error.
+            executor.shutdown();
+            try {
+                executor.awaitTermination( Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            }
+            catch (InterruptedException x) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    static void cancel( List<? extends Future<?>> futures) {
+        for (Future<?> future : futures) future.cancel( false);
+    }
+
+    /** Lists the tree one level at a time, with the directories of each level listed in parallel.
+     *  Returns the files and the empty directories, whose names end with "/", sorted by name.
+     *  Links to a directory that contains them, e.g., "a/loop -> ..", are left out since
+     *  following them would never end.
+     */
+    List<Item> walk( File dir, String prefix) throws IOException
+    {
+        List<Item> items = new ArrayList<Item>();
+        List<Item> level = new ArrayList<Item>();
+        level.add( new Item( prefix, dir));
+        while (!level.isEmpty()) {
+            List<Future<File[]>> listings = new ArrayList<Future<File[]>>();
+            for (final Item item : level) {
+                listings.add( executor.submit( new Callable<File[]>() {
+                    public File[] call() throws IOException {
+                        File[] children = item.file.listFiles();
+                        if (children == null) throw new IOException( "Failed to list " + item.file);
+                        String path = withSeparator( item.file.getCanonicalPath());
+                        List<File> result = new ArrayList<File>( children.length);
+                        for (File child : children) {
+                            if (child.isDirectory() && path.startsWith( withSeparator( child.getCanonicalPath()))) continue;
+                            result.add( child);
+                        }
+                        return result.toArray( new File[result.size()]);
+                    }
+                }));
+            }
+            List<Item> nextLevel = new ArrayList<Item>();
+            boolean listed = false;
+            try {
+                for (int i = 0; i < level.size(); i++) {
+                    Item item = level.get( i);
+                    File[] children = waitFor( listings.get( i));
+                    if (children.length == 0 && item.name.length() > 0) items.add( item);
+                    for (File child : children) {
+                        if (child.isDirectory()) nextLevel.add( new Item( item.name + child.getName() + "/", child));
+                        else if (child.isFile()) items.add( new Item( item.name + child.getName(), child));
+                    }
+                }
+                listed = true;
+            }
+            finally {
+                if (!listed) cancel( listings);
+            }
+            level = nextLevel;
+        }
+        Collections.sort( items);
+        return items;
+    }
+
+    static String withSeparator( String path) {
+        return path.endsWith( File.separator) ? path : path + File.separator;
+    }
+
+    /** Writes the items in order, keeping up to one read in progress per worker. */
+    void writeItems( List<Item> items) throws IOException
+    {
+        long spillThreshold = ZioEntry.getSpillThreshold();
+        LinkedList<Future<ZioEntry>> pending = new LinkedList<Future<ZioEntry>>();
+        int next = 0;
+        boolean written = false;
+        try {
+            while (next < items.size() || !pending.isEmpty()) {
+                // Large files are streamed in their place, after the entries before them.
+                if (pending.isEmpty() && isLarge( items.get( next), spillThreshold)) {
+                    stream( items.get( next++));
+                    continue;
+                }
+                while (next < items.size() && pending.size() < threads && !isLarge( items.get( next), spillThreshold)) {
+                    final Item item = items.get( next++);
+                    pending.add( executor.submit( new Callable<ZioEntry>() {
+                        public ZioEntry call() throws IOException {
+                            return read( item);
+                        }
+                    }));
+                }
+                output.writeEntry( waitFor( pending.removeFirst()));
+            }
+            written = true;
+        }
+        finally {
+            if (!written) {
+                cancel( pending);
+                dispose( pending);
+            }
+        }
+    }
+
+    /** Deletes the temporary files of entries read but not written, after their reads finish. */
+    static void dispose( List<Future<ZioEntry>> futures)
+    {
+        for (Future<ZioEntry> future : futures) {
+            if (future.isCancelled()) continue;
+            try {
+                future.get().dispose();
+            }
+            catch (InterruptedException x) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            catch (ExecutionException x) {
+                // Reported by the read that failed first, if at all.
+            }
+        }
+    }
+
+    static boolean isLarge( Item item, long spillThreshold) {
+        return !item.name.endsWith("/") && item.file.length() > spillThreshold;
+    }
+
+    /** Reads a file into a new entry, compressing it according to the output's policy. */
+    ZioEntry read( Item item) throws IOException
+    {
+        ZioEntry entry = newEntry( item);
+        if (item.name.endsWith("/")) {
+            entry.getOutputStream();
+            entry.closeOutputStream();
+            return entry;
+        }
+        InputStream in = new FileInputStream( item.file);
+        try {
+            CompressionPolicy policy = output.getCompressionPolicy();
+            int sampleSize = sampleSize( policy, item.file.length());
+            byte[] buffer = new byte[Math.max( BUFFER_SIZE, sampleSize)];
+            int count = readSample( in, buffer, sampleSize);
+            if (policy != null) policy.apply( entry, item.file.length(), buffer, count);
+            OutputStream entryOut = entry.getOutputStream();
+            entryOut.write( buffer, 0, count);
+            while ((count = in.read( buffer)) > 0) entryOut.write( buffer, 0, count);
+            entry.closeOutputStream();
+        }
+        finally {
+            in.close();
+        }
+        return entry;
+    }
+
+    /** Streams a file straight into the output. */
+    void stream( Item item) throws IOException
+    {
+        InputStream in = new FileInputStream( item.file);
+        try {
+            int sampleSize = sampleSize( output.getCompressionPolicy(), item.file.length());
+            byte[] buffer = new byte[Math.max( BUFFER_SIZE, sampleSize)];
+            int count = readSample( in, buffer, sampleSize);
+            OutputStream entryOut = output.beginEntry( newEntry( item), item.file.length(), buffer, count);
+            entryOut.write( buffer, 0, count);
+            while ((count = in.read( buffer)) > 0) entryOut.write( buffer, 0, count);
+            entryOut.close();
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    /** Returns the number of bytes from the start of a file the policy looks at, if any. */
+    static int sampleSize( CompressionPolicy policy, long length) {
+        if (policy == null) return 0;
+        return (int)Math.min( Math.max( policy.getSampleSize(), 0), length);
+    }
+
+    /** Reads up to sampleSize bytes into the buffer, and returns the number read. */
+    static int readSample( InputStream in, byte[] buffer, int sampleSize) throws IOException
+    {
+        int count = 0;
+        while (count < sampleSize) {
+            int n = in.read( buffer, count, sampleSize - count);
+            if (n < 0) break;
+            count += n;
+        }
+        return count;
+    }
+
+    ZioEntry newEntry( Item item)
+    {
+        ZioEntry entry = new ZioEntry( item.name);
+        entry.setTime( item.file.lastModified());
+        if (item.name.endsWith("/")) entry.setCompression( 0);
+        return entry;
+    }
+
+    private static <T> T waitFor( Future<T> future) throws IOException
+    {
+        try {
+            return future.get();
+        }
+        catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+            throw new IOException( "Interrupted while adding files");
+        }
+        catch (ExecutionException x) {
+            Throwable cause = x.getCause();
+            if (cause instanceof IOException) throw (IOException)cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+            throw new IllegalStateException( "Failed to add files", cause);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2010 Ken Ellinwood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kellinwood.zipio;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/** Data source that reads a file, or any open FileChannel, with positional channel reads. */
+public class FileDataSource implements ZipDataSource
+{
+    String name;
+    RandomAccessFile file = null;
+    FileChannel channel;
+
+    public FileDataSource( String filename) throws IOException
+    {
+        this.name = filename;
+        file = new RandomAccessFile( new File( filename), "r");
+        channel = file.getChannel();
+    }
+
+    /** Reads from the channel starting at file position zero.  Closing this source closes
+     *  the channel.
+     */
+    public FileDataSource( FileChannel channel, String name)
+    {
+        this.name = name;
+        this.channel = channel;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long length() throws IOException {
+        return channel.size();
+    }
+
+    public int read( ByteBuffer dst, long position) throws IOException {
+        return channel.read( dst, position);
+    }
+
+    public ByteBuffer getBuffer() {
+        return null;
+    }
+
+    public FileChannel getChannel() {
+        return channel;
+    }
+
+    public void close() throws IOException {
+        if (file != null) file.close();
+        else channel.close();
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2010 Ken Ellinwood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kellinwood.zipio;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * Index of checkpoints into the compressed data of a deflated entry, so reading can start at
+ * any uncompressed offset without inflating everything before it, as in zlib's zran.c.  Each
+ * checkpoint records the bit where a deflate block begins, its uncompressed offset and the
+ * 32KB of output before it, and they are placed about every spacing bytes of output during
+ * one pass over the data.  Reading from an offset then inflates at most spacing bytes before
+ * it, plus the rest of the block it is in.
+ *
+ * An index can be kept on its entry with ZioEntry.buildInflateIndex(), or written next to the
+ * archive with write() and attached to the entry again after read().
+ */
+public class InflateIndex {
+
+    public static final long DEFAULT_SPACING = 1024 * 1024;
+
+    private static final int MAGIC = 0x5a494458; // "ZIDX"
+    private static final int VERSION = 1;
+
+    static class Checkpoint {
+        long out;
+        long bit;
+        byte[] window;
+    }
+
+    long compressedSize;
+    long size;
+    int crc32;
+    long spacing;
+    List<Checkpoint> checkpoints = new ArrayList<Checkpoint>();
+
+    private InflateIndex() {
+    }
+
+    /** Builds the index of a deflated entry with a checkpoint about every spacing bytes of
+     *  uncompressed data.  The data is checked against the entry's size and CRC on the way.
+     */
+    public static InflateIndex build( ZioEntry entry, long spacing) throws IOException
+    {
+        if (entry.getCompression() == 0) throw new IllegalArgumentException( "Entry is not compressed: " + entry.getName());
+        if (spacing < CheckpointInflater.WINDOW_SIZE) {
+            throw new IllegalArgumentException( String.format("Spacing %d is smaller than the %d byte window", spacing, CheckpointInflater.WINDOW_SIZE));
+        }
+        CheckpointInflater inflater = new CheckpointInflater( entry.getRawInputStream());
+        InflateIndex index = new InflateIndex();
+        index.compressedSize = entry.getCompressedSize();
+        index.size = entry.getSize();
+        index.crc32 = entry.getCrc32();
+        index.spacing = spacing;
+        index.add( 0, 0, new byte[0]);
+        try {
+            CRC32 crc = new CRC32();
+            byte[] buffer = new byte[64 * 1024];
+            long next = spacing;
+            int numRead;
+            while ((numRead = inflater.read( buffer, 0, buffer.length)) >= 0) {
+                crc.update( buffer, 0, numRead);
+                if (inflater.atBlockBoundary() && inflater.getTotalOut() >= next) {
+                    index.add( inflater.getTotalOut(), inflater.getBitPosition(), inflater.getWindow());
+                    next = inflater.getTotalOut() + spacing;
+                }
+            }
+            if (inflater.getTotalOut() != index.size || (int)crc.getValue() != index.crc32) {
+                throw new ZipException( String.format("Entry %s inflated to %d bytes with CRC 0x%08x, expected %d bytes with CRC 0x%08x",
+                                                      entry.getName(), inflater.getTotalOut(), (int)crc.getValue(), index.size, index.crc32));
+            }
+        }
+        finally {
+            inflater.close();
+        }
+        return index;
+    }
+
+    private void add( long out, long bit, byte[] window)
+    {
+        Checkpoint checkpoint = new Checkpoint();
+        checkpoint.out = out;
+        checkpoint.bit = bit;
+        checkpoint.window = window;
+        checkpoints.add( checkpoint);
+    }
+
+    public long getSpacing() {
+        return spacing;
+    }
+
+    public int getNumCheckpoints() {
+        return checkpoints.size();
+    }
+
+    /** Returns true if the index was built from data with the entry's sizes and CRC. */
+    public boolean matches( ZioEntry entry) {
+        return entry.getCompression() != 0 && entry.getCompressedSize() == compressedSize &&
+            entry.getSize() == size && entry.getCrc32() == crc32;
+    }
+
+    /** Returns a stream of the entry's uncompressed data, starting at the given offset. */
+    public InputStream getInputStream( ZioEntry entry, long offset) throws IOException
+    {
+        if (!matches( entry)) throw new IllegalArgumentException( "Index doesn't match entry " + entry.getName());
+        if (offset < 0 || offset > size) throw new IllegalArgumentException( String.format("Offset %d is outside of the entry, size=%d", offset, size));
+
+        // The last checkpoint at or before the offset.
+        int low = 0;
+        int high = checkpoints.size() - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (checkpoints.get( mid).out <= offset) low = mid;
+            else high = mid - 1;
+        }
+        Checkpoint checkpoint = checkpoints.get( low);
+
+        InputStream raw = entry.getRawInputStream();
+        skipFully( raw, checkpoint.bit / 8);
+        CheckpointInflater inflater = new CheckpointInflater( raw, (int)(checkpoint.bit % 8), checkpoint.window, checkpoint.out);
+        skipFully( inflater, offset - checkpoint.out);
+        return inflater;
+    }
+
+    static void skipFully( InputStream in, long n) throws IOException
+    {
+        byte[] buffer = null;
+        while (n > 0) {
+            long skipped = in.skip( n);
+            if (skipped <= 0) {
+                if (buffer == null) buffer = new byte[(int)Math.min( n, 64 * 1024)];
+                skipped = in.read( buffer, 0, (int)Math.min( n, buffer.length));
+                if (skipped < 0) throw new EOFException( "Unexpected end of data");
+            }
+            n -= skipped;
+        }
+    }
+
+    /** Writes the index, with the windows compressed, to the stream, which is left open. */
+    public void write( OutputStream out) throws IOException
+    {
+        DataOutputStream header = new DataOutputStream( out);
+        header.writeInt( MAGIC);
+        header.writeInt( VERSION);
+        header.flush();
+        Deflater deflater = CodecPool.getDeflater( Deflater.DEFAULT_COMPRESSION);
+        try {
+            DeflaterOutputStream deflated = new DeflaterOutputStream( out, deflater);
+            DataOutputStream data = new DataOutputStream( deflated);
+            data.writeLong( compressedSize);
+            data.writeLong( size);
+            data.writeInt( crc32);
+            data.writeLong( spacing);
+            data.writeInt( checkpoints.size());
+            for (Checkpoint checkpoint : checkpoints) {
+                data.writeLong( checkpoint.out);
+                data.writeLong( checkpoint.bit);
+                data.writeInt( checkpoint.window.length);
+                data.write( checkpoint.window);
+            }
+            data.flush();
+            deflated.finish();
+        }
+        finally {
+            CodecPool.release( deflater);
+        }
+    }
+
+    /** Reads an index written by write(). */
+    public static InflateIndex read( InputStream in) throws IOException
+    {
+        DataInputStream header = new DataInputStream( in);
+        if (header.readInt() != MAGIC) throw new ZipException( "Not an inflate index");
+        int version = header.readInt();
+        if (version != VERSION) throw new ZipException( "Unsupported inflate index version " + version);
+
+        Inflater inflater = CodecPool.getInflater();
+        try {
+            DataInputStream data = new DataInputStream( new InflaterInputStream( in, inflater));
+            InflateIndex index = new InflateIndex();
+            index.compressedSize = data.readLong();
+            index.size = data.readLong();
+            index.crc32 = data.readInt();
+            index.spacing = data.readLong();
+            int count = data.readInt();
+            for (int i = 0; i < count; i++) {
+                long out = data.readLong();
+                long bit = data.readLong();
+                int length = data.readInt();
+                if (length < 0 || length > CheckpointInflater.WINDOW_SIZE) throw new ZipException( "Invalid inflate index window");
+                byte[] window = new byte[length];
+                data.readFully( window);
+                index.add( out, bit, window);
+            }
+            if (index.checkpoints.isEmpty()) throw new ZipException( "Inflate index has no checkpoints");
+            return index;
+        }
+        finally {
+            CodecPool.release( inflater);
+        }
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2010 Ken Ellinwood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kellinwood.zipio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * Computes the CRC32 of large data on several threads.  The data is split into chunks whose
+ * CRCs are computed separately, from slices of a buffer or from mapped regions of a file so the
+ * data isn't copied, and then merged with CRC32Combine.  Data smaller than PARALLEL_THRESHOLD
+ * is checksummed on the calling thread.
+ *
+ * The chunks are computed on the shared pool of ParallelDeflaterOutputStream, and by the calling
+ * thread, which takes the chunks that no pool thread has started, so a busy pool slows the
+ * computation down but can't stall it.
+ */
+public class ParallelCRC32 {
+
+    public static final int CHUNK_SIZE = 4 * 1024 * 1024;
+    public static final long PARALLEL_THRESHOLD = 2L * CHUNK_SIZE;
+
+    /** Returns length bytes of the data starting at offset. */
+    interface Chunks {
+        ByteBuffer get( long offset, int length) throws IOException;
+    }
+
+    private static final boolean UPDATE_BUFFER = hasUpdateBuffer();
+
+    private static boolean hasUpdateBuffer() {
+        try {
+            CRC32.class.getMethod( "update", ByteBuffer.class);
+            return true;
+        }
+        catch (NoSuchMethodException x) {
+            return false;
+        }
+    }
+
+    /** Returns the CRC32 of the buffer's remaining bytes, without changing its position. */
+    public static int compute( final ByteBuffer data)
+    {
+        final ByteBuffer source = data.duplicate();
+        final int start = source.position();
+        try {
+            return compute( new Chunks() {
+                public ByteBuffer get( long offset, int length) {
+                    ByteBuffer chunk = source.duplicate();
+                    chunk.position( start + (int)offset);
+                    chunk.limit( start + (int)offset + length);
+                    return chunk;
+                }
+            }, source.remaining());
+        }
+        catch (IOException x) {
+            // Slicing a buffer doesn't do any I/O.
+            throw new IllegalStateException( x.getMessage(), x);
+        }
+    }
+
+    /** Returns the CRC32 of length bytes of the file, starting at position. */
+    public static int compute( final FileChannel channel, final long position, long length) throws IOException
+    {
+        return compute( new Chunks() {
+            public ByteBuffer get( long offset, int length) throws IOException {
+                return channel.map( FileChannel.MapMode.READ_ONLY, position + offset, length);
+            }
+        }, length);
+    }
+
+    /** Returns the CRC32 of length bytes of the input, starting at position.  Inputs that aren't
+     *  mapped or backed by a file are read on the calling thread.
+     */
+    static int compute( final ZipInput input, final long position, long length) throws IOException
+    {
+        if (input.mapped != null) return compute( input.slice( position, (int)length));
+        if (input.channel != null) return compute( input.channel, position, length);
+        CRC32 crc = new CRC32();
+        ByteBuffer buffer = ByteBuffer.allocate( (int)Math.min( length, 64 * 1024));
+        long remaining = length;
+        long offset = position;
+        while (remaining > 0) {
+            buffer.clear();
+            buffer.limit( (int)Math.min( buffer.capacity(), remaining));
+            input.readFully( buffer, offset);
+            buffer.flip();
+            update( crc, buffer);
+            offset += buffer.limit();
+            remaining -= buffer.limit();
+        }
+        return (int)crc.getValue();
+    }
+
+    private static int compute( final Chunks chunks, final long length) throws IOException
+    {
+        if (length < PARALLEL_THRESHOLD) {
+            CRC32 crc = new CRC32();
+            for (long offset = 0; offset < length; offset += CHUNK_SIZE) {
+                update( crc, chunks.get( offset, (int)Math.min( CHUNK_SIZE, length - offset)));
+            }
+            return (int)crc.getValue();
+        }
+
+        final int numChunks = (int)((length + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        final int[] crcs = new int[numChunks];
+        final AtomicInteger nextChunk = new AtomicInteger( 0);
+        final CountDownLatch done = new CountDownLatch( numChunks);
+        final Throwable[] error = new Throwable[1];
+        Runnable worker = new Runnable() {
+            public void run() {
+                int i;
+                while ((i = nextChunk.getAndIncrement()) < numChunks) {
+                    try {
+                        long offset = (long)i * CHUNK_SIZE;
+                        CRC32 crc = new CRC32();
+                        update( crc, chunks.get( offset, (int)Math.min( CHUNK_SIZE, length - offset)));
+                        crcs[i] = (int)crc.getValue();
+                    }
+                    catch (Throwable t) {
+                        synchronized (error) {
+                            if (error[0] == null) error[0] = t;
+                        }
+                    }
+                    finally {
+                        done.countDown();
+                    }
+                }
+            }
+        };
+        ExecutorService executor = ParallelDeflaterOutputStream.getDefaultExecutor();
+        int helpers = Math.min( numChunks, Runtime.getRuntime().availableProcessors()) - 1;
+        for (int i = 0; i < helpers; i++) executor.execute( worker);
+        worker.run();
+        try {
+            done.await();
+        }
+        catch (InterruptedException x) {
+            nextChunk.set( numChunks);
+            Thread.currentThread().interrupt();
+            throw new IOException( "Interrupted while computing CRC");
+        }
+        synchronized (error) {
+            if (error[0] instanceof IOException) throw (IOException)error[0];
+            if (error[0] instanceof RuntimeException) throw (RuntimeException)error[0];
+            if (error[0] != null) throw new IllegalStateException( "Failed to compute CRC", error[0]);
+        }
+
+        int crc = crcs[0];
+        for (int i = 1; i < numChunks; i++) {
+            crc = CRC32Combine.combine( crc, crcs[i], Math.min( CHUNK_SIZE, length - (long)i * CHUNK_SIZE));
+        }
+        return crc;
+    }
+
+    /** Updates the CRC with the buffer, directly on Java 8 and Android API level 26, otherwise
+     *  through a small array.
+     */
+    private static void update( CRC32 crc, ByteBuffer buffer)
+    {
+        if (UPDATE_BUFFER) {
+            crc.update( buffer);
+            return;
+        }
+        if (buffer.hasArray()) {
+            crc.update( buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            buffer.position( buffer.limit());
+            return;
+        }
+        byte[] bytes = new byte[Math.min( buffer.remaining(), 64 * 1024)];
+        while (buffer.hasRemaining()) {
+            int length = Math.min( bytes.length, buffer.remaining());
+            buffer.get( bytes, 0, length);
+            crc.update( bytes, 0, length);
+        }
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2010 Ken Ellinwood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kellinwood.zipio;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Raw deflate output stream that compresses fixed-size blocks of its input on several threads,
+ * in the manner of pigz.  Each block is compressed by its own Deflater, using the last 32K of the
+ * previous block as a preset dictionary so little compression is lost, and ends with a sync
+ * flush so the blocks can simply be concatenated into one deflate stream.  The CRC32 of the
+ * input is combined from the CRCs of the blocks.
+ *
+ * Sync flushing requires Deflater.SYNC_FLUSH, which is only available on Java 7 and Android API
+ * level 19 or later.
+ */
+public class ParallelDeflaterOutputStream extends OutputStream {
+
+    public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+
+    static final int DICTIONARY_SIZE = 32768;
+
+    private static ExecutorService defaultExecutor = null;
+
+    static class Block {
+        byte[] data;
+        int length;
+        byte[] dictionary;
+        boolean last;
+
+        byte[] compressed;
+        int compressedLength;
+        int crc;
+    }
+
+    OutputStream out;
+    int level;
+    int strategy = Deflater.DEFAULT_STRATEGY;
+    int blockSize;
+    ExecutorService executor;
+    int maxPendingBlocks;
+
+    byte[] current;
+    int currentLength = 0;
+    byte[] dictionary = null;
+    LinkedList<Future<Block>> pending = new LinkedList<Future<Block>>();
+    LinkedList<byte[]> freeBlocks = new LinkedList<byte[]>();
+
+    int crc = 0;
+    long size = 0;
+    boolean finished = false;
+
+    /** Compresses with the given level and block size on the shared pool, which has a thread
+     *  for each processor.
+     */
+    public ParallelDeflaterOutputStream( OutputStream out, int level, int blockSize) {
+        this( out, level, blockSize, getDefaultExecutor(), 2 * Runtime.getRuntime().availableProcessors());
+    }
+
+    /** Compresses with the given level and block size on the given executor.  Writes blocks
+     *  while more than maxPendingBlocks blocks are waiting to be compressed or written.
+     */
+    public ParallelDeflaterOutputStream( OutputStream out, int level, int blockSize, ExecutorService executor, int maxPendingBlocks)
+    {
+        if (blockSize < DICTIONARY_SIZE) {
+            throw new IllegalArgumentException( String.format("Block size %d is smaller than the %d byte dictionary", blockSize, DICTIONARY_SIZE));
+        }
+        this.out = out;
+        this.level = level;
+        this.blockSize = blockSize;
+        this.executor = executor;
+        this.maxPendingBlocks = Math.max( 1, maxPendingBlocks);
+        current = new byte[blockSize];
+    }
+
+    /** Sets the deflate strategy, before anything is written. */
+    public void setStrategy( int strategy) {
+        this.strategy = strategy;
+    }
+
+    /** Returns the pool of daemon threads shared by streams created without an executor. */
+    public static synchronized ExecutorService getDefaultExecutor()
+    {
+        if (defaultExecutor == null) {
+            defaultExecutor = Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                int count = 0;
+                public synchronized Thread newThread( Runnable r) {
+                    Thread thread = new Thread( r, "zipio-deflate-" + (++count));
+                    thread.setDaemon( true);
+                    return thread;
+                }
+            });
+        }
+        return defaultExecutor;
+    }
+
+    public void write( int b) throws IOException {
+        if (finished) throw new IOException( "write beyond end of stream");
+        if (currentLength == blockSize) submitBlock( false);
+        current[currentLength++] = (byte)b;
+        size += 1;
+    }
+
+    public void write( byte[] b, int off, int len) throws IOException {
+        if (finished) throw new IOException( "write beyond end of stream");
+        size += len;
+        while (len > 0) {
+            // A full block is only submitted once more data arrives, so the last one can be finished.
+            if (currentLength == blockSize) submitBlock( false);
+            int count = Math.min( len, blockSize - currentLength);
+            System.arraycopy( b, off, current, currentLength, count);
+            currentLength += count;
+            off += count;
+            len -= count;
+        }
+    }
+
+    /** Compresses the remaining input and writes all of the compressed data, without closing
+     *  the underlying stream.
+     */
+    public void finish() throws IOException {
+        if (finished) return;
+        finished = true;
+        submitBlock( true);
+        while (!pending.isEmpty()) writeNext();
+    }
+
+    public void close() throws IOException {
+        finish();
+        out.close();
+    }
+
+    /** Returns the CRC32 of the input, which is complete after finish(). */
+    public int getCRC() {
+        return crc;
+    }
+
+    /** Returns the number of bytes written to this stream. */
+    public long getSize() {
+        return size;
+    }
+
+    private void submitBlock( boolean last) throws IOException
+    {
+        final Block block = new Block();
+        block.data = current;
+        block.length = currentLength;
+        block.dictionary = dictionary;
+        block.last = last;
+
+        if (!last) {
+            dictionary = Arrays.copyOfRange( current, currentLength - DICTIONARY_SIZE, currentLength);
+            current = freeBlocks.isEmpty() ? new byte[blockSize] : freeBlocks.removeFirst();
+            currentLength = 0;
+        }
+
+        if (last && block.dictionary == null) {
+            // Input that fits in a single block isn't worth handing to another thread.
+            compress( block, level, strategy);
+            writeBlock( block);
+            return;
+        }
+
+        final int strategy = this.strategy;
+        pending.add( executor.submit( new Callable<Block>() {
+            public Block call() {
+                return compress( block, level, strategy);
+            }
+        }));
+        while (pending.size() > maxPendingBlocks || (!pending.isEmpty() && pending.getFirst().isDone())) {
+            writeNext();
+        }
+    }
+
+    static Block compress( Block block, int level, int strategy)
+    {
+        Deflater deflater = CodecPool.getDeflater( level, strategy);
+        try {
+            if (block.dictionary != null) deflater.setDictionary( block.dictionary);
+            deflater.setInput( block.data, 0, block.length);
+
+            byte[] buffer = new byte[block.length / 2 + 64];
+            int count = 0;
+            if (block.last) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    if (count == buffer.length) buffer = Arrays.copyOf( buffer, buffer.length * 2);
+                    count += deflater.deflate( buffer, count, buffer.length - count);
+                }
+            }
+            else {
+                // Output filling the buffer means there may be more to flush.
+                do {
+                    if (count == buffer.length) buffer = Arrays.copyOf( buffer, buffer.length * 2);
+                    count += deflater.deflate( buffer, count, buffer.length - count, Deflater.SYNC_FLUSH);
+                } while (count == buffer.length);
+            }
+            block.compressed = buffer;
+            block.compressedLength = count;
+
+            CRC32 blockCrc = new CRC32();
+            blockCrc.update( block.data, 0, block.length);
+            block.crc = (int)blockCrc.getValue();
+            return block;
+        }
+        finally {
+            CodecPool.release( deflater);
+        }
+    }
+
+    /** Writes the oldest pending block, waiting for it to be compressed. */
+    private void writeNext() throws IOException
+    {
+        Block block;
+        try {
+            block = pending.removeFirst().get();
+        }
+        catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+            throw new IOException( "Interrupted while compressing");
+        }
+        catch (ExecutionException x) {
+            Throwable cause = x.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+            throw new IllegalStateException( "Block compression failed", cause);
+        }
+        writeBlock( block);
+        if (block.data.length == blockSize && freeBlocks.size() < maxPendingBlocks) freeBlocks.add( block.data);
+    }
+
+    private void writeBlock( Block block) throws IOException
+    {
+        out.write( block.compressed, 0, block.compressedLength);
+        crc = CRC32Combine.combine( crc, block.crc, block.length);
+    }
+}
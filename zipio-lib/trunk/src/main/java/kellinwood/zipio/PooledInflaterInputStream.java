@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2010 Ken Ellinwood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kellinwood.zipio;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Inflater stream that borrows its Inflater from the CodecPool.  The inflater is given back
+ * when the end of the data is reached or the stream is closed, whichever comes first, so
+ * callers that read to the end without closing don't hold on to it.
+ */
+class PooledInflaterInputStream extends InflaterInputStream {
+
+    boolean released = false;
+
+    public PooledInflaterInputStream( InputStream in) {
+        super( in, CodecPool.getInflater());
+    }
+
+    private void releaseInflater() {
+        if (released) return;
+        released = true;
+        CodecPool.release( inf);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        // Once released the inflater may belong to another stream, so don't touch it.
+        if (released) return -1;
+        int numRead = super.read( b, off, len);
+        if (numRead < 0) releaseInflater();
+        return numRead;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            super.close();
+        }
+        finally {
+            releaseInflater();
+        }
+    }
+}
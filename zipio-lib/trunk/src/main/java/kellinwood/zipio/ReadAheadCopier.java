@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2010 Ken Ellinwood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kellinwood.zipio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Copies entries read from zip files to a ZipOutput while a reader thread reads the raw data
+ * of the entries that come next, so reading and writing overlap instead of taking turns.
+ * The data is read into a fixed ring of reusable direct buffers, which bounds the memory used
+ * and makes the reader wait when it gets too far ahead.
+ *
+ * Usage: start() with the entries in the order they'll be written, write() each of them in
+ * that order, then close(), which also stops the reader if the copy is abandoned.  The output
+ * must not be in parallel compression mode.
+ */
+public class ReadAheadCopier {
+
+    static class Chunk {
+        ZioEntry entry;
+        ByteBuffer buffer;
+        boolean last;
+        Throwable error;
+    }
+
+    public static final int DEFAULT_NUM_BUFFERS = 8;
+    public static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+
+    BlockingQueue<ByteBuffer> freeBuffers;
+    BlockingQueue<Chunk> chunks;
+    Thread reader = null;
+    volatile boolean stopped = false;
+
+    // The first chunk of the entry being written, taken before it is written.
+    Chunk next = null;
+    boolean entryDone = true;
+
+    public ReadAheadCopier() {
+        this( DEFAULT_NUM_BUFFERS, DEFAULT_BUFFER_SIZE);
+    }
+
+    /** Reads ahead up to numBuffers buffers of bufferSize bytes. */
+    public ReadAheadCopier( int numBuffers, int bufferSize)
+    {
+        if (numBuffers < 1 || bufferSize < 1) throw new IllegalArgumentException( String.format("Invalid buffers: %d x %d bytes", numBuffers, bufferSize));
+        freeBuffers = new ArrayBlockingQueue<ByteBuffer>( numBuffers);
+        for (int i = 0; i < numBuffers; i++) freeBuffers.add( ByteBuffer.allocateDirect( bufferSize));
+        // Empty entries don't take a buffer, so there can be more chunks than buffers.
+        chunks = new ArrayBlockingQueue<Chunk>( numBuffers + 64);
+    }
+
+    /** Starts reading the data of the entries, in the order they will be written.  Entries that
+     *  aren't read from a file, e.g., new entries, are passed over by the reader.
+     */
+    public void start( List<ZioEntry> entries)
+    {
+        if (reader != null) throw new IllegalStateException( "Already started");
+        final List<ZioEntry> order = new ArrayList<ZioEntry>( entries);
+        reader = new Thread( new Runnable() {
+            public void run() {
+                readEntries( order);
+            }
+        }, "zipio-read-ahead");
+        reader.setDaemon( true);
+        reader.start();
+    }
+
+    private void readEntries( List<ZioEntry> entries)
+    {
+        try {
+            for (ZioEntry entry : entries) {
+                if (stopped) return;
+                ZipInput input = entry.getZipInput();
+                long remaining = entry.getCompressedSize();
+                if (input == null || remaining == 0) {
+                    put( entry, null, true);
+                    continue;
+                }
+                if (entry.getDataPosition() < 0) entry.readLocalHeader();
+                long position = entry.getDataPosition();
+                while (remaining > 0) {
+                    ByteBuffer buffer = freeBuffers.take();
+                    if (stopped) return;
+                    buffer.clear();
+                    buffer.limit( (int)Math.min( buffer.capacity(), remaining));
+                    input.readFully( buffer, position);
+                    buffer.flip();
+                    position += buffer.remaining();
+                    remaining -= buffer.remaining();
+                    put( entry, buffer, remaining == 0);
+                }
+            }
+        }
+        catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+        }
+        catch (Throwable t) {
+            Chunk chunk = new Chunk();
+            chunk.error = t;
+            chunk.last = true;
+            try {
+                chunks.put( chunk);
+            }
+            catch (InterruptedException x) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void put( ZioEntry entry, ByteBuffer buffer, boolean last) throws InterruptedException
+    {
+        Chunk chunk = new Chunk();
+        chunk.entry = entry;
+        chunk.buffer = buffer;
+        chunk.last = last;
+        chunks.put( chunk);
+    }
+
+    private Chunk take( ZioEntry entry) throws IOException
+    {
+        Chunk chunk;
+        try {
+            chunk = chunks.take();
+        }
+        catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+            throw new IOException( "Interrupted while reading " + entry.getName());
+        }
+        if (chunk.error != null) {
+            if (chunk.error instanceof IOException) throw (IOException)chunk.error;
+            if (chunk.error instanceof RuntimeException) throw (RuntimeException)chunk.error;
+            throw new IllegalStateException( "Failed to read " + entry.getName(), chunk.error);
+        }
+        if (chunk.entry != entry) {
+            throw new IllegalStateException( String.format("Entry %s written out of order, expected %s", entry.getName(), chunk.entry.getName()));
+        }
+        return chunk;
+    }
+
+    private void release( Chunk chunk)
+    {
+        if (chunk.buffer != null) freeBuffers.offer( chunk.buffer);
+        if (chunk.last) entryDone = true;
+    }
+
+    /** Writes the next entry to the output, with output.write(entry).  If the output doesn't
+     *  need the entry's raw data, e.g., because it was replaced, the data read is dropped.
+     */
+    public void write( ZioEntry entry, ZipOutput output) throws IOException
+    {
+        if (reader == null) throw new IllegalStateException( "Not started");
+        if (output.pipeline != null) throw new IllegalStateException( "Output is in parallel compression mode");
+
+        // Waiting for the first chunk also means the reader is done with the local header.
+        next = take( entry);
+        entryDone = false;
+        entry.readAhead = this;
+        try {
+            output.write( entry);
+        }
+        finally {
+            entry.readAhead = null;
+        }
+        if (next != null) {
+            release( next);
+            next = null;
+        }
+        while (!entryDone) release( take( entry));
+    }
+
+    /** Called by the entry to write its data from the buffers read ahead. */
+    void writeData( ZioEntry entry, ZipOutput output) throws IOException
+    {
+        while (!entryDone) {
+            Chunk chunk = next != null ? next : take( entry);
+            next = null;
+            if (chunk.buffer != null) output.writeBytes( chunk.buffer);
+            release( chunk);
+        }
+    }
+
+    /** Stops the reader.  It isn't interrupted, since that would close the input's channel if
+     *  it is in the middle of a read, so the chunks it has read are dropped until it notices.
+     */
+    public void close()
+    {
+        stopped = true;
+        if (reader == null) return;
+        try {
+            while (reader.isAlive()) {
+                Chunk chunk;
+                while ((chunk = chunks.poll()) != null) {
+                    if (chunk.buffer != null) freeBuffers.offer( chunk.buffer);
+                }
+                reader.join( 10);
+            }
+        }
+        catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
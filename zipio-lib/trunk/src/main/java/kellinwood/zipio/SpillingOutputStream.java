@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2010 Ken Ellinwood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kellinwood.zipio;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+import kellinwood.logging.LoggerInterface;
+import kellinwood.logging.LoggerManager;
+
+/**
+ * Buffer for the data of a newly written entry.  Data is kept in memory until it exceeds the
+ * threshold, after which it is moved to a temporary file and the rest is appended there, so
+ * heap use doesn't grow with the size of the entry.
+ */
+public class SpillingOutputStream extends OutputStream {
+
+    static LoggerInterface log;
+
+    static final int FILE_BUFFER_SIZE = 65536;
+
+    long threshold;
+    File spillDirectory;
+    ByteArrayOutputStream memory = new ByteArrayOutputStream();
+    File spillFile = null;
+    OutputStream fileOut = null;
+    long size = 0;
+    boolean closed = false;
+
+    /** The data is kept in memory up to threshold bytes, then written to a temporary file in
+     *  the given directory (or the default temporary directory if null).
+     */
+    public SpillingOutputStream( long threshold, File spillDirectory) {
+        this.threshold = threshold;
+        this.spillDirectory = spillDirectory;
+    }
+
+    private static LoggerInterface getLogger() {
+        if (log == null) log = LoggerManager.getLogger(SpillingOutputStream.class.getName());
+        return log;
+    }
+
+    private void spill() throws IOException
+    {
+        spillFile = File.createTempFile( "zioentry", ".tmp", spillDirectory);
+        if (getLogger().isDebugEnabled()) getLogger().debug( String.format("Spilling %d bytes to %s", size, spillFile));
+        try {
+            fileOut = new BufferedOutputStream( new FileOutputStream( spillFile), FILE_BUFFER_SIZE);
+            memory.writeTo( fileOut);
+        }
+        catch (IOException x) {
+            discard();
+            throw x;
+        }
+        memory = null;
+    }
+
+    /** Closes and deletes the temporary file after a failed write, since the data is lost and
+     *  the owner of the stream may never get to dispose() it.
+     */
+    private void discard()
+    {
+        closed = true;
+        if (fileOut != null) {
+            try { fileOut.close(); } catch (IOException x) {}
+            fileOut = null;
+        }
+        if (spillFile != null && !spillFile.delete()) {
+            getLogger().warning( "Unable to delete temporary file " + spillFile);
+        }
+        spillFile = null;
+        memory = null;
+    }
+
+    @Override
+    public void write( int b) throws IOException {
+        if (fileOut == null && size + 1 > threshold) spill();
+        if (fileOut != null) {
+            try {
+                fileOut.write( b);
+            }
+            catch (IOException x) {
+                discard();
+                throw x;
+            }
+        }
+        else memory.write( b);
+        size += 1;
+    }
+
+    @Override
+    public void write( byte[] b, int off, int len) throws IOException {
+        if (fileOut == null && size + len > threshold) spill();
+        if (fileOut != null) {
+            try {
+                fileOut.write( b, off, len);
+            }
+            catch (IOException x) {
+                discard();
+                throw x;
+            }
+        }
+        else memory.write( b, off, len);
+        size += len;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (fileOut == null) return;
+        try {
+            fileOut.flush();
+        }
+        catch (IOException x) {
+            discard();
+            throw x;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        if (fileOut == null) return;
+        try {
+            fileOut.close();
+        }
+        catch (IOException x) {
+            discard();
+            throw x;
+        }
+    }
+
+    /** Returns the number of bytes written. */
+    public long size() {
+        return size;
+    }
+
+    public boolean isSpilled() {
+        return spillFile != null;
+    }
+
+    /** Returns the data if it is held in memory, or null if it was spilled to a file. */
+    public byte[] toByteArray() {
+        return memory == null ? null : memory.toByteArray();
+    }
+
+    /** Returns a stream over the data.  The stream must be closed before dispose() is called. */
+    public InputStream getInputStream() throws IOException {
+        close();
+        if (spillFile == null) return new java.io.ByteArrayInputStream( memory.toByteArray());
+        return new BufferedInputStream( new FileInputStream( spillFile), FILE_BUFFER_SIZE);
+    }
+
+    /** Writes all the data to the output, copying a spilled file with a channel transfer when
+     *  the output is a file.
+     */
+    public void writeTo( ZipOutput output) throws IOException
+    {
+        close();
+        if (spillFile == null) {
+            output.writeBytes( memory.toByteArray());
+            return;
+        }
+        RandomAccessFile file = new RandomAccessFile( spillFile, "r");
+        try {
+            if (output.transferFrom( file.getChannel(), 0, size)) return;
+
+            byte[] buffer = new byte[FILE_BUFFER_SIZE];
+            long totalCount = 0;
+            while (totalCount < size) {
+                int numRead = file.read( buffer, 0, (int)Math.min( buffer.length, size - totalCount));
+                if (numRead < 0) throw new IllegalStateException( String.format("EOF reached while copying %s with %d bytes left to go", spillFile, size - totalCount));
+                output.writeBytes( buffer, 0, numRead);
+                totalCount += numRead;
+            }
+        }
+        finally {
+            file.close();
+        }
+    }
+
+    /** Deletes the temporary file, if there is one.  The data is no longer available afterwards. */
+    public void dispose() {
+        try { close(); } catch (IOException x) {}
+        if (spillFile != null && !spillFile.delete()) {
+            getLogger().warning( "Unable to delete temporary file " + spillFile);
+        }
+        spillFile = null;
+        memory = null;
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2010 Ken Ellinwood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kellinwood.zipio;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Stream returned by ZipOutput.beginEntry().  The entry's data is compressed straight into the
+ * zip output, and closing the stream completes the entry.  If the entry is stored and the
+ * output can't be patched, the data is buffered instead and the entry written on close, since
+ * readers can't find the end of stored data without its size.
+ */
+class StreamedEntryOutputStream extends OutputStream {
+
+    ZipOutput output;
+    ZioEntry entry;
+    OutputStream downstream;
+    Deflater deflater = null;
+    CRC32 crc = new CRC32();
+    long size = 0;
+    boolean buffered;
+    boolean closed = false;
+
+    StreamedEntryOutputStream( final ZipOutput output, ZioEntry entry, boolean seekable, boolean zip64) throws IOException
+    {
+        this.output = output;
+        this.entry = entry;
+
+        buffered = !seekable && entry.getCompression() == 0;
+        if (buffered) {
+            downstream = entry.getOutputStream();
+            return;
+        }
+
+        entry.beginStreamedEntry( output, !seekable, zip64);
+        OutputStream sink = new OutputStream() {
+            public void write( int b) throws IOException {
+                output.writeBytes( new byte[] { (byte)b });
+            }
+            public void write( byte[] b, int off, int len) throws IOException {
+                output.writeBytes( b, off, len);
+            }
+        };
+        if (entry.getCompression() != 0) {
+            deflater = CodecPool.getDeflater( entry.getLevel(), entry.getStrategy());
+            downstream = new DeflaterOutputStream( sink, deflater, 8192);
+        }
+        else downstream = sink;
+    }
+
+    public void write( int b) throws IOException {
+        downstream.write( b);
+        if (!buffered) crc.update( b);
+        size += 1;
+    }
+
+    public void write( byte[] b, int off, int len) throws IOException {
+        downstream.write( b, off, len);
+        if (!buffered) crc.update( b, off, len);
+        size += len;
+    }
+
+    /** Completes the entry.  Further entries can be written to the output once this returns. */
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        try {
+            if (buffered) downstream.close();
+            else if (deflater != null) ((DeflaterOutputStream)downstream).finish();
+        }
+        finally {
+            CodecPool.release( deflater);
+            deflater = null;
+        }
+        output.endEntry( this);
+    }
+
+    int getCRC() {
+        return (int)crc.getValue();
+    }
+
+    long getSize() {
+        return size;
+    }
+}
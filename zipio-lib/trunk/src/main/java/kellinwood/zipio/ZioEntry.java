@@ -16,16 +16,17 @@
 package kellinwood.zipio;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.File;
 import java.io.OutputStream;
 import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.util.Date;
-import java.util.zip.CRC32;
-import java.util.zip.Inflater;
-import java.util.zip.InflaterInputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.Deflater;
 
 import kellinwood.logging.LoggerInterface;
 import kellinwood.logging.LoggerManager;
@@ -42,23 +43,43 @@ public class ZioEntry implements Cloneable {
     private short modificationTime;
     private short modificationDate;
     private int crc32;
-    private int compressedSize;
-    private int size;
+    private long compressedSize;
+    private long size;
     private String filename;
     private byte[] extraData;
-    private short numAlignBytes = 0;
+    private int alignment = 0;
+    private int inputAlignment = 0;
     private String fileComment;
     private short diskNumberStart;
     private short internalAttributes;
     private int externalAttributes;
     
-    private int localHeaderOffset;
-    private long dataPosition = -1;
+    private long localHeaderOffset;
+    private volatile long dataPosition = -1;
     private byte[] data = null;
     private ZioEntryOutputStream entryOut = null;
+    private SpillingOutputStream spill = null;
+    private int level = Deflater.BEST_COMPRESSION;
+    private int strategy = Deflater.DEFAULT_STRATEGY;
+    private int parallelBlockSize = 0;
+    private ExecutorService parallelExecutor = null;
+    private boolean zip64Local = false;
+    // Set while a ReadAheadCopier is writing the entry, it supplies the prefetched data.
+    ReadAheadCopier readAhead = null;
+    private volatile InflateIndex inflateIndex = null;
     
 
-    private static byte[] alignBytes = new byte[4];
+    /** Android's alignment extra field: the alignment as a 16 bit value followed by padding. */
+    static final short ALIGNMENT_EXTRA_ID = (short)0xD935;
+    static final int ALIGNMENT_FIELD_SIZE = 6;
+
+    private static volatile long spillThreshold = 8 * 1024 * 1024;
+    private static volatile File spillDirectory = null;
+
+    /** Fields larger than this are stored in the ZIP64 extended information extra field. */
+    static final long ZIP64_LIMIT = 0xFFFFFFFFL;
+    static final short ZIP64_EXTRA_ID = 0x0001;
+    static final short ZIP64_VERSION = 45;
     
     private static LoggerInterface log;
 
@@ -87,27 +108,14 @@ public class ZioEntry implements Cloneable {
         filename = name;
         fileComment = "";
         this.compression = 0;
-        this.size = (int)zipInput.getFileLength();
+        this.size = zipInput.getFileLength();
         this.compressedSize = this.size;
 
         if (getLogger().isDebugEnabled()) 
             getLogger().debug(String.format("Computing CRC for %s, size=%d",sourceDataFile,size));
         
-        // compute CRC
-        CRC32 crc = new CRC32();
-
-        byte[] buffer = new byte[8096];
-
-        int numRead = 0;
-        while (numRead != size) {
-            int count = zipInput.read( buffer, 0, Math.min( buffer.length, (this.size - numRead)));
-            if (count > 0) {
-                crc.update( buffer, 0, count);
-                numRead += count;
-            }
-        }
-
-        this.crc32 = (int)crc.getValue();
+        // compute CRC, in parallel chunks if the file is large
+        this.crc32 = ParallelCRC32.compute( zipInput, 0, size);
 
         zipInput.seek(0);
         this.dataPosition = 0;
@@ -117,7 +125,7 @@ public class ZioEntry implements Cloneable {
     
     
 
-    public ZioEntry( String name, String sourceDataFile, short compression, int crc32, int compressedSize, int size)
+    public ZioEntry( String name, String sourceDataFile, short compression, int crc32, long compressedSize, long size)
         throws IOException
     {
         zipInput = new ZipInput( sourceDataFile);
@@ -148,80 +156,62 @@ public class ZioEntry implements Cloneable {
         return clone;
     }
     
+    /** Reads the local header to determine the file position of the entry's data.  The header
+     *  is read with a positional read, so this doesn't move the ZipInput's file pointer and may
+     *  be called by several threads at once.
+     */
     public void readLocalHeader() throws IOException
     {
         ZipInput input = zipInput;
-        int tmp;
         boolean debug = getLogger().isDebugEnabled();
 
-        input.seek( localHeaderOffset);
+        if (debug) getLogger().debug( String.format("FILE POSITION: 0x%08x", localHeaderOffset));
 
-        if (debug) getLogger().debug( String.format("FILE POSITION: 0x%08x", input.getFilePointer()));
+        ByteBuffer header = ByteBuffer.allocate( 30).order( ByteOrder.LITTLE_ENDIAN);
+        input.readFully( header, localHeaderOffset);
+        header.flip();
 
         // 0 	4 	Local file header signature = 0x04034b50
-        int signature = input.readInt();
+        int signature = header.getInt();
         if (signature != 0x04034b50) {
-            throw new IllegalStateException( String.format("Local header not found at pos=0x%08x, file=%s", input.getFilePointer(), filename));
+            throw new IllegalStateException( String.format("Local header not found at pos=0x%08x, file=%s", localHeaderOffset, filename));
         }
 
         // This method is usually called just before the data read, so
-        // its only purpose currently is to position the file pointer
-        // for the data read.  The entry's attributes might also have
-        // been changed since the central dir entry was read (e.g.,
-        // filename), so throw away the values here.
-
-        int tmpInt;
-        short tmpShort;
-        
-        // 4 	2 	Version needed to extract (minimum)
-        /* versionRequired */ tmpShort =  input.readShort();
-        if (debug) log.debug(String.format("Version required: 0x%04x", tmpShort /*versionRequired*/));
-
-        // 6 	2 	General purpose bit flag
-        /* generalPurposeBits */ tmpShort = input.readShort();
-        if (debug) log.debug(String.format("General purpose bits: 0x%04x", tmpShort /* generalPurposeBits */));
-        
-        // 8 	2 	Compression method
-        /* compression */ tmpShort = input.readShort();
-        if (debug) log.debug(String.format("Compression: 0x%04x", tmpShort /* compression */));
-
-        // 10 	2 	File last modification time
-        /* modificationTime */ tmpShort = input.readShort();
-        if (debug) log.debug(String.format("Modification time: 0x%04x", tmpShort /* modificationTime */));
-
-        // 12 	2 	File last modification date
-        /* modificationDate */ tmpShort = input.readShort();
-        if (debug) log.debug(String.format("Modification date: 0x%04x", tmpShort /* modificationDate */));
-
-        // 14 	4 	CRC-32
-        /* crc32 */ tmpInt = input.readInt();
-        if (debug) log.debug(String.format("CRC-32: 0x%04x", tmpInt /*crc32*/));
-
-        // 18 	4 	Compressed size
-        /* compressedSize*/ tmpInt = input.readInt();
-        if (debug) log.debug(String.format("Compressed size: 0x%04x", tmpInt /*compressedSize*/));
+        // its only purpose currently is to locate the data.  The
+        // entry's attributes might also have been changed since the
+        // central dir entry was read (e.g., filename), so throw away
+        // the values here.
 
-        // 22 	4 	Uncompressed size
-        /* size */ tmpInt = input.readInt();
-        if (debug) log.debug(String.format("Size: 0x%04x", tmpInt /*size*/ ));
+        if (debug) {
+            log.debug(String.format("Version required: 0x%04x", header.getShort( 4)));
+            log.debug(String.format("General purpose bits: 0x%04x", header.getShort( 6)));
+            log.debug(String.format("Compression: 0x%04x", header.getShort( 8)));
+            log.debug(String.format("Modification time: 0x%04x", header.getShort( 10)));
+            log.debug(String.format("Modification date: 0x%04x", header.getShort( 12)));
+            log.debug(String.format("CRC-32: 0x%04x", header.getInt( 14)));
+            log.debug(String.format("Compressed size: 0x%04x", header.getInt( 18)));
+            log.debug(String.format("Size: 0x%04x", header.getInt( 22)));
+        }
 
         // 26 	2 	File name length (n)
-        short fileNameLen = input.readShort();
+        int fileNameLen = header.getShort( 26) & 0xFFFF;
         if (debug) log.debug(String.format("File name length: 0x%04x", fileNameLen));
 
         // 28 	2 	Extra field length (m)
-        short extraLen = input.readShort();
+        int extraLen = header.getShort( 28) & 0xFFFF;
         if (debug) log.debug(String.format("Extra length: 0x%04x", extraLen));
 
-        // 30 	n 	File name      
-        String filename = input.readString(fileNameLen);
-        if (debug) log.debug("Filename: " + filename);
-
-        // Extra data
-        byte[] extra = input.readBytes( extraLen);
+        // The alignment field is only in the local header, so look for it there.
+        if (compression == 0 && extraLen >= ALIGNMENT_FIELD_SIZE) {
+            ByteBuffer extra = ByteBuffer.allocate( extraLen).order( ByteOrder.LITTLE_ENDIAN);
+            input.readFully( extra, localHeaderOffset + 30 + fileNameLen);
+            int localAlignment = findAlignment( extra.array());
+            if (localAlignment > 0) inputAlignment = localAlignment;
+        }
 
-        // Record the file position of this entry's data.
-        dataPosition = input.getFilePointer();
+        // Record the file position of this entry's data, which follows the name and extra data.
+        dataPosition = localHeaderOffset + 30 + fileNameLen + extraLen;
         if (debug) log.debug(String.format("Data position: 0x%08x",dataPosition));
 
     }
@@ -232,7 +222,7 @@ public class ZioEntry implements Cloneable {
             readLocalHeader();
         }
         
-        localHeaderOffset = (int)output.getFilePointer();
+        localHeaderOffset = output.getFilePointer();
 
         boolean debug = getLogger().isDebugEnabled();
         
@@ -240,73 +230,58 @@ public class ZioEntry implements Cloneable {
             getLogger().debug( String.format("Writing local header at 0x%08x - %s", localHeaderOffset, filename));
         }
         
-        if (entryOut != null) {
-            entryOut.close();
-            size = entryOut.getSize();
-            data = ((ByteArrayOutputStream)entryOut.getWrappedStream()).toByteArray();
-            compressedSize = data.length;
-            crc32 = entryOut.getCRC();
-        }
+        if (entryOut != null) closeEntryOut();
         
-        output.writeInt( 0x04034b50);
-        output.writeShort( versionRequired);
-        output.writeShort( generalPurposeBits);
-        output.writeShort( compression);
-        output.writeShort( modificationTime);
-        output.writeShort( modificationDate);
-        output.writeInt( crc32);
-        output.writeInt( compressedSize);
-        output.writeInt( size);
-        output.writeShort( (short)filename.length());
-
-        numAlignBytes = 0;
-
-        // Zipalign if the file is uncompressed, i.e., "Stored", and file size is not zero.
-        if (compression == 0) {
-
-            long dataPos = output.getFilePointer() + // current position
-            2 +                                  // plus size of extra data length
-            filename.length() +                  // plus filename
-            extraData.length;                    // plus extra data
-
-            short dataPosMod4 = (short)(dataPos % 4);
-
-            if (dataPosMod4 > 0) {
-                numAlignBytes = (short)(4 - dataPosMod4);
-            }
-        }
-
-        
-        // 28 	2 	Extra field length (m)
-        output.writeShort( (short)(extraData.length + numAlignBytes));
-
-        // 30 	n 	File name
-        output.writeString( filename);
-
-        // Extra data
-        output.writeBytes( extraData);
-
-        // Zipalign bytes
-        if (numAlignBytes > 0) {
-            output.writeBytes( alignBytes, 0, numAlignBytes);
-        }
+        // The local header must carry both sizes in a ZIP64 extra field if either is too large.
+        writeLocalHeader( output, size >= ZIP64_LIMIT || compressedSize >= ZIP64_LIMIT);
 
         if (debug) getLogger().debug(String.format("Data position 0x%08x", output.getFilePointer()));
         if (data != null) {
             output.writeBytes( data);
             if (debug) getLogger().debug(String.format("Wrote %d bytes", data.length));
         }
+        else if (spill != null) {
+            // Stream the spilled data from its temporary file, which isn't needed afterwards.
+            try {
+                spill.writeTo( output);
+                if (debug) getLogger().debug(String.format("Wrote %d spilled bytes", compressedSize));
+            }
+            finally {
+                spill.dispose();
+                spill = null;
+            }
+        }
         else {
 
-            if (debug) getLogger().debug(String.format("Seeking to position 0x%08x", dataPosition));
-            zipInput.seek( dataPosition);
-            
-            int bufferSize = Math.min( compressedSize, 8096);
+            if (readAhead != null) {
+                readAhead.writeData( this, output);
+                if (debug) getLogger().debug(String.format("Wrote %d prefetched bytes", compressedSize));
+                return;
+            }
+
+            // Let the OS copy the data directly between the files when possible.
+            if (output.transferFrom( zipInput.channel, dataPosition, compressedSize)) {
+                if (debug) getLogger().debug(String.format("Transferred %d bytes from position 0x%08x", compressedSize, dataPosition));
+                return;
+            }
+
+            int bufferSize = (int)Math.min( compressedSize, 8096);
             byte[] buffer = new byte[bufferSize];
             long totalCount = 0;
-            
+
+            if (zipInput.isMemoryMapped()) {
+                ByteBuffer src = zipInput.slice( dataPosition, (int)compressedSize);
+                while (src.hasRemaining()) {
+                    int numRead = Math.min( src.remaining(), bufferSize);
+                    src.get( buffer, 0, numRead);
+                    output.writeBytes(buffer, 0, numRead);
+                }
+                if (debug) getLogger().debug(String.format("Wrote %d bytes from mapped input", compressedSize));
+                return;
+            }
+
             while (totalCount != compressedSize) {
-                int numRead = zipInput.in.read( buffer, 0, (int)Math.min( compressedSize -  totalCount, bufferSize));  
+                int numRead = zipInput.read( ByteBuffer.wrap( buffer, 0, (int)Math.min( compressedSize -  totalCount, bufferSize)), dataPosition + totalCount);
                 if (numRead > 0) {
                     output.writeBytes(buffer, 0, numRead);
                     if (debug) getLogger().debug(String.format("Wrote %d bytes", numRead));
@@ -328,27 +303,127 @@ public class ZioEntry implements Cloneable {
             return null;
         }
 
+        // Fetch the fixed size part of the record, then the variable length fields
+        // whose sizes it contains, and decode the whole record from memory.
+        byte[] fixed = input.readBytes( 42);
+        ByteBuffer header = ByteBuffer.wrap( fixed).order( ByteOrder.LITTLE_ENDIAN);
+        int variableLen = (header.getShort( 24) & 0xFFFF) + (header.getShort( 26) & 0xFFFF) + (header.getShort( 28) & 0xFFFF);
+
+        ByteBuffer record = ByteBuffer.allocate( fixed.length + variableLen).order( ByteOrder.LITTLE_ENDIAN);
+        record.put( fixed);
+        record.put( input.readBytes( variableLen));
+        record.flip();
+
         ZioEntry entry = new ZioEntry( input);
 
-        entry.doRead( input);
+        entry.doRead( record);
         return entry;
     }
 
-    private void doRead( ZipInput input) throws IOException
+    /** Decodes the central directory record at the buffer's current position, leaving the
+     *  buffer positioned at the following record.  Returns null if the signature doesn't match.
+     *  The buffer must be little-endian.
+     */
+    public static ZioEntry read(ZipInput input, ByteBuffer directory)
+    {
+        // 0    4   Central directory header signature = 0x02014b50
+        if (directory.remaining() < 46 || directory.getInt( directory.position()) != 0x02014b50) return null;
+        directory.getInt();
+
+        ZioEntry entry = new ZioEntry( input);
+
+        entry.doRead( directory);
+        return entry;
+    }
+
+    /** Decodes a local file header for ZipStreamInput.  The buffer holds the header without
+     *  its signature, followed by the name and extra data.  For entries with a data descriptor
+     *  (general purpose bit 3) the CRC and sizes are not known until setStreamedData() is called.
+     */
+    static ZioEntry readLocal( ByteBuffer header, long localHeaderOffset)
+    {
+        boolean debug = getLogger().isDebugEnabled();
+
+        ZioEntry entry = new ZioEntry( (ZipInput)null);
+        entry.localHeaderOffset = localHeaderOffset;
+        entry.versionRequired = header.getShort();
+        entry.generalPurposeBits = header.getShort();
+        if ((entry.generalPurposeBits & 0xF7F1) != 0x0000) {
+            throw new IllegalStateException("Can't handle general purpose bits == "+String.format("0x%04x",entry.generalPurposeBits));
+        }
+        entry.compression = header.getShort();
+        entry.modificationTime = header.getShort();
+        entry.modificationDate = header.getShort();
+        entry.crc32 = header.getInt();
+        entry.compressedSize = header.getInt() & 0xFFFFFFFFL;
+        entry.size = header.getInt() & 0xFFFFFFFFL;
+        int fileNameLen = header.getShort() & 0xFFFF;
+        int extraLen = header.getShort() & 0xFFFF;
+
+        byte[] nameBytes = new byte[fileNameLen];
+        header.get( nameBytes);
+        entry.filename = new String( nameBytes);
+        entry.fileComment = "";
+
+        entry.extraData = new byte[extraLen];
+        header.get( entry.extraData);
+        entry.zip64Local = entry.readZip64ExtraField( debug);
+        entry.inputAlignment = entry.readAlignmentExtraField();
+
+        if (debug) log.debug(String.format("Local entry %s at 0x%08x, flags=0x%04x, compression=%d", entry.filename, localHeaderOffset,
+                                           entry.generalPurposeBits, entry.compression));
+        return entry;
+    }
+
+    /** Returns true if the local header had a ZIP64 extra field, which makes the sizes in a
+     *  following data descriptor 8 bytes each.
+     */
+    boolean hasZip64LocalHeader() {
+        return zip64Local;
+    }
+
+    /** Sets the raw (possibly compressed) data read by ZipStreamInput along with the values
+     *  from the header or data descriptor.  The data descriptor flag is cleared since the sizes
+     *  are now known and will be written in the local header.
+     */
+    void setStreamedData( byte[] rawData, int crc32, long compressedSize, long size)
+    {
+        this.data = rawData;
+        this.crc32 = crc32;
+        this.compressedSize = compressedSize;
+        this.size = size;
+        generalPurposeBits = (short)(generalPurposeBits & 0x0800);
+    }
+
+    /** Drops the data held by an entry read from a stream once it is no longer available. */
+    void releaseStreamedData() {
+        data = null;
+    }
+
+    /** Copies the values only found in the central directory from the given record. */
+    void setCentralValues( ZioEntry central)
+    {
+        versionMadeBy = central.versionMadeBy;
+        fileComment = central.fileComment;
+        internalAttributes = central.internalAttributes;
+        externalAttributes = central.externalAttributes;
+    }
+
+    private void doRead( ByteBuffer input)
     {
 
         boolean debug = getLogger().isDebugEnabled();
 
         // 4    2   Version needed to extract (minimum)
-        versionMadeBy = input.readShort();
+        versionMadeBy = input.getShort();
         if (debug) log.debug(String.format("Version made by: 0x%04x", versionMadeBy));
 
         // 4    2   Version required
-        versionRequired = input.readShort();
+        versionRequired = input.getShort();
         if (debug) log.debug(String.format("Version required: 0x%04x", versionRequired));
 
         // 6    2   General purpose bit flag
-        generalPurposeBits = input.readShort();
+        generalPurposeBits = input.getShort();
         if (debug) log.debug(String.format("General purpose bits: 0x%04x", generalPurposeBits));
         // Bits 1, 2, 3, and 11 are allowed to be set (first bit is bit zero).  Any others are a problem.
         if ((generalPurposeBits & 0xF7F1) != 0x0000) {
@@ -356,59 +431,66 @@ public class ZioEntry implements Cloneable {
         }
 
         // 8    2   Compression method
-        compression = input.readShort();
+        compression = input.getShort();
         if (debug) log.debug(String.format("Compression: 0x%04x", compression));
 
         // 10   2   File last modification time
-        modificationTime = input.readShort();
+        modificationTime = input.getShort();
         if (debug) log.debug(String.format("Modification time: 0x%04x", modificationTime));
 
         // 12   2   File last modification date
-        modificationDate = input.readShort();
+        modificationDate = input.getShort();
         if (debug) log.debug(String.format("Modification date: 0x%04x", modificationDate));
 
         // 14   4   CRC-32
-        crc32 = input.readInt();
+        crc32 = input.getInt();
         if (debug) log.debug(String.format("CRC-32: 0x%04x", crc32));
 
         // 18   4   Compressed size
-        compressedSize = input.readInt();
+        compressedSize = input.getInt() & 0xFFFFFFFFL;
         if (debug) log.debug(String.format("Compressed size: 0x%04x", compressedSize));
 
         // 22   4   Uncompressed size
-        size = input.readInt();
+        size = input.getInt() & 0xFFFFFFFFL;
         if (debug) log.debug(String.format("Size: 0x%04x", size));
 
         // 26   2   File name length (n)
-        short fileNameLen = input.readShort();
+        int fileNameLen = input.getShort() & 0xFFFF;
         if (debug) log.debug(String.format("File name length: 0x%04x", fileNameLen));
 
         // 28   2   Extra field length (m)
-        short extraLen = input.readShort();
+        int extraLen = input.getShort() & 0xFFFF;
         if (debug) log.debug(String.format("Extra length: 0x%04x", extraLen));
 
-        short fileCommentLen = input.readShort();
+        int fileCommentLen = input.getShort() & 0xFFFF;
         if (debug) log.debug(String.format("File comment length: 0x%04x", fileCommentLen));
 
-        diskNumberStart = input.readShort();
+        diskNumberStart = input.getShort();
         if (debug) log.debug(String.format("Disk number start: 0x%04x", diskNumberStart));
 
-        internalAttributes = input.readShort();
+        internalAttributes = input.getShort();
         if (debug) log.debug(String.format("Internal attributes: 0x%04x", internalAttributes));
 
-        externalAttributes = input.readInt();
+        externalAttributes = input.getInt();
         if (debug) log.debug(String.format("External attributes: 0x%08x", externalAttributes));
 
-        localHeaderOffset = input.readInt();
+        localHeaderOffset = input.getInt() & 0xFFFFFFFFL;
         if (debug) log.debug(String.format("Local header offset: 0x%08x", localHeaderOffset));
 
         // 30   n   File name      
-        filename = input.readString(fileNameLen);
+        byte[] nameBytes = new byte[fileNameLen];
+        input.get( nameBytes);
+        filename = new String( nameBytes);
         if (debug) log.debug("Filename: " + filename);
 
-        extraData = input.readBytes( extraLen);
+        extraData = new byte[extraLen];
+        input.get( extraData);
+        readZip64ExtraField( debug);
+        inputAlignment = readAlignmentExtraField();
 
-        fileComment = input.readString( fileCommentLen);
+        byte[] commentBytes = new byte[fileCommentLen];
+        input.get( commentBytes);
+        fileComment = new String( commentBytes);
         if (debug) log.debug("File comment: " + fileComment);
 
         generalPurposeBits = (short)(generalPurposeBits & 0x0800); // Don't write a data descriptor, preserve UTF-8 encoded filename bit
@@ -422,21 +504,225 @@ public class ZioEntry implements Cloneable {
 
     }
 
+    /** Writes the local header with the current CRC and sizes, followed by alignment bytes for
+     *  stored entries.  If zip64 is set the sizes go in a ZIP64 extra field.
+     */
+    private void writeLocalHeader( ZipOutput output, boolean zip64) throws IOException
+    {
+        output.writeBytes( encodeLocalHeader( output, output.getFilePointer(), zip64));
+    }
+
+    /** Encodes the local header as written at the given position of the output, which determines
+     *  the alignment padding, into a buffer of its exact size.
+     */
+    private ByteBuffer encodeLocalHeader( ZipOutput output, long position, boolean zip64)
+    {
+        byte[] zip64Extra = zip64 ? zip64ExtraField( size, compressedSize, -1) : new byte[0];
+        if (zip64 && versionRequired < ZIP64_VERSION) versionRequired = ZIP64_VERSION;
+
+        // Zipalign if the file is uncompressed, i.e., "Stored".  The data is aligned by the
+        // padding in an alignment extra field, which also records the alignment for later tools.
+        byte[] alignmentExtra = new byte[0];
+        if (compression == 0) {
+
+            long dataPos = position + 28 +       // fixed fields before the extra data length
+            2 +                                  // plus size of extra data length
+            filename.length() +                  // plus filename
+            zip64Extra.length +                  // plus ZIP64 sizes
+            extraData.length;                    // plus extra data
+
+            int alignment = getAlignment( output);
+            int extraLen = zip64Extra.length + extraData.length + ALIGNMENT_FIELD_SIZE + alignment - 1;
+            if (alignment > 1 && extraLen <= 0xFFFF) {
+                int padding = (int)((alignment - (dataPos + ALIGNMENT_FIELD_SIZE) % alignment) % alignment);
+                alignmentExtra = alignmentExtraField( alignment, padding);
+            }
+            else if (alignment > 1) {
+                getLogger().warning( String.format("Not aligning %s, its extra data is too large", filename));
+            }
+        }
+
+        byte[] nameBytes = filename.getBytes();
+        ByteBuffer header = ByteBuffer.allocate( 30 + nameBytes.length + zip64Extra.length + extraData.length + alignmentExtra.length);
+        header.order( ByteOrder.LITTLE_ENDIAN);
+
+        header.putInt( 0x04034b50);
+        header.putShort( versionRequired);
+        header.putShort( generalPurposeBits);
+        header.putShort( compression);
+        header.putShort( modificationTime);
+        header.putShort( modificationDate);
+        header.putInt( crc32);
+        header.putInt( zip64 ? (int)ZIP64_LIMIT : (int)compressedSize);
+        header.putInt( zip64 ? (int)ZIP64_LIMIT : (int)size);
+        header.putShort( (short)filename.length());
+
+        // 28 	2 	Extra field length (m)
+        header.putShort( (short)(zip64Extra.length + extraData.length + alignmentExtra.length));
+
+        // 30 	n 	File name
+        header.put( nameBytes);
+
+        // Extra data
+        header.put( zip64Extra);
+        header.put( extraData);
+
+        header.put( alignmentExtra);
+        header.flip();
+        return header;
+    }
+
+    /** Prepares the entry to be laid out: finishes writing new data, and reads the local header
+     *  of an input entry, which may hold an alignment to keep.
+     */
+    void prepareLayout() throws IOException
+    {
+        if (entryOut != null) closeEntryOut();
+        if (data == null && spill == null && dataPosition < 0 && zipInput != null) readLocalHeader();
+    }
+
+    /** Places the entry at the given position of the output and returns its local header, as
+     *  writeLocalEntry() would write it there.  The data follows the header.
+     */
+    ByteBuffer layoutLocalEntry( ZipOutput output, long position)
+    {
+        ByteBuffer header = encodeLocalHeader( output, position, size >= ZIP64_LIMIT || compressedSize >= ZIP64_LIMIT);
+        localHeaderOffset = position;
+        return header;
+    }
+
+    /** Writes the entry's data at the given position of the output file with positional writes,
+     *  so several entries can be written at once.  The buffer must be backed by an array.
+     */
+    void writeDataAt( ZipOutput output, long position, ByteBuffer buffer) throws IOException
+    {
+        FileChannel channel = output.channel;
+        if (data != null) {
+            ZipOutput.writeFully( channel, ByteBuffer.wrap( data), position);
+            return;
+        }
+        if (spill != null) {
+            InputStream in = spill.getInputStream();
+            try {
+                int numRead;
+                while ((numRead = in.read( buffer.array(), 0, buffer.capacity())) > 0) {
+                    buffer.clear();
+                    buffer.limit( numRead);
+                    position = ZipOutput.writeFully( channel, buffer, position);
+                }
+            }
+            finally {
+                in.close();
+                spill.dispose();
+                spill = null;
+            }
+            return;
+        }
+        // Let the OS copy data larger than the buffer directly between the files.  Smaller data
+        // takes one read and one write either way, and those don't wait for other threads.
+        if (compressedSize > buffer.capacity() && output.transferAt( zipInput.channel, dataPosition, compressedSize, position)) return;
+
+        long source = dataPosition;
+        long remaining = compressedSize;
+        while (remaining > 0) {
+            buffer.clear();
+            buffer.limit( (int)Math.min( buffer.capacity(), remaining));
+            zipInput.readFully( buffer, source);
+            buffer.flip();
+            source += buffer.remaining();
+            remaining -= buffer.remaining();
+            position = ZipOutput.writeFully( channel, buffer, position);
+        }
+    }
+
+    /** Writes the local header of an entry whose data is streamed into the output after it.  The
+     *  CRC and sizes are zero until endStreamedEntry() either patches them into the header or,
+     *  if dataDescriptor is set, writes them in a data descriptor after the data.
+     */
+    void beginStreamedEntry( ZipOutput output, boolean dataDescriptor, boolean zip64) throws IOException
+    {
+        dispose();
+        data = null;
+        crc32 = 0;
+        compressedSize = 0;
+        size = 0;
+        zip64Local = zip64;
+        if (dataDescriptor) generalPurposeBits = (short)(generalPurposeBits | 0x0008);
+        else generalPurposeBits = (short)(generalPurposeBits & ~0x0008);
+
+        localHeaderOffset = output.getFilePointer();
+        writeLocalHeader( output, zip64);
+        dataPosition = output.getFilePointer();
+    }
+
+    /** Records the values of the streamed data, which ends at the output's current position, and
+     *  writes them to the data descriptor or back into the local header.
+     */
+    void endStreamedEntry( ZipOutput output, int crc32, long size) throws IOException
+    {
+        this.crc32 = crc32;
+        this.size = size;
+        this.compressedSize = output.getFilePointer() - dataPosition;
+        if (!zip64Local && (size >= ZIP64_LIMIT || compressedSize >= ZIP64_LIMIT)) {
+            throw new IllegalStateException( String.format("Entry %s is too large for a header without ZIP64 sizes, size=%d", filename, size));
+        }
+
+        if ((generalPurposeBits & 0x0008) != 0) {
+            output.writeInt( 0x08074b50);
+            output.writeInt( crc32);
+            if (zip64Local) {
+                output.writeLong( compressedSize);
+                output.writeLong( size);
+            }
+            else {
+                output.writeInt( (int)compressedSize);
+                output.writeInt( (int)size);
+            }
+            return;
+        }
+
+        ByteBuffer values = ByteBuffer.allocate( 12).order( ByteOrder.LITTLE_ENDIAN);
+        values.putInt( crc32);
+        values.putInt( zip64Local ? (int)ZIP64_LIMIT : (int)compressedSize);
+        values.putInt( zip64Local ? (int)ZIP64_LIMIT : (int)size);
+        values.flip();
+        output.writeAt( values, localHeaderOffset + 14);
+        if (zip64Local) {
+            // The ZIP64 field is the first in the local header's extra data, after the name.
+            ByteBuffer zip64Values = ByteBuffer.wrap( zip64ExtraField( size, compressedSize, -1));
+            zip64Values.position( 4);
+            output.writeAt( zip64Values, localHeaderOffset + 30 + filename.length() + 4);
+        }
+    }
+
     /** Returns the entry's data. */
     public byte[] getData() throws IOException
     {
-        if (data != null) return data;
+        if (entryOut != null) closeEntryOut();
+        if (data != null && compression == 0) return data;
+
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalStateException(String.format("Entry %s is too large to read into memory, size=%d", filename, size));
+        }
+
+        DataCache cache = data == null && spill == null && zipInput != null ? zipInput.dataCache : null;
+        if (cache != null) {
+            byte[] cached = cache.get( this);
+            if (cached != null) return cached;
+        }
         
-        byte[] tmpdata = new byte[size];
+        byte[] tmpdata = new byte[(int)size];
         
         InputStream din = getInputStream();
         int count = 0;
         
         while (count != size) {
-            int numRead = din.read( tmpdata, count, size-count);
+            int numRead = din.read( tmpdata, count, (int)size-count);
             if (numRead < 0) throw new IllegalStateException(String.format("Read failed, expecting %d bytes, got %d instead", size, count));
             count += numRead;
         }
+        din.close();
+        if (cache != null) cache.put( this, tmpdata);
         return tmpdata;
     }
 
@@ -448,22 +734,22 @@ public class ZioEntry implements Cloneable {
     // Returns an input stream for reading the entry's data. 
     public InputStream getInputStream(OutputStream monitorStream) throws IOException {
         
-        if (entryOut != null) {
-            entryOut.close();
-            size = entryOut.getSize();
-            data = ((ByteArrayOutputStream)entryOut.getWrappedStream()).toByteArray();
-            compressedSize = data.length;
-            crc32 = entryOut.getCRC();
-            entryOut = null;
-            InputStream rawis = new ByteArrayInputStream( data);
+        if (entryOut != null) closeEntryOut();
+
+        if (data != null || spill != null) {
+            InputStream rawis = data != null ? new ByteArrayInputStream( data) : spill.getInputStream();
             if (compression == 0) return rawis;
             else {
                 // Hacky, inflate using a sequence of input streams that returns 1 byte more than the actual length of the data.  
                 // This extra dummy byte is required by InflaterInputStream when the data doesn't have the header and crc fields (as it is in zip files). 
-                return new InflaterInputStream( new SequenceInputStream(rawis, new ByteArrayInputStream(new byte[1])), new Inflater( true));
+                return new PooledInflaterInputStream( new SequenceInputStream(rawis, new ByteArrayInputStream(new byte[1])));
             }
         }
         
+        if (zipInput == null) {
+            throw new IllegalStateException( String.format("Data of entry %s is no longer available", filename));
+        }
+
         ZioEntryInputStream dataStream;
         dataStream = new ZioEntryInputStream(this);
         if (monitorStream != null) dataStream.setMonitorStream( monitorStream);
@@ -472,23 +758,150 @@ public class ZioEntry implements Cloneable {
             // an extra "dummy" byte as input. This is required by the ZLIB native library 
             // in order to support certain optimizations.
             dataStream.setReturnDummyByte(true);
-            return new InflaterInputStream( dataStream, new Inflater( true));
+            return new PooledInflaterInputStream( dataStream);
         }
         else return dataStream;
     }
 
+    /** Returns a stream of the entry's data starting at the given uncompressed offset.  Deflated
+     *  data is inflated from the nearest checkpoint before the offset if the entry has an inflate
+     *  index, otherwise from the start.
+     */
+    public InputStream getInputStream( long offset) throws IOException
+    {
+        InflateIndex index = inflateIndex;
+        if (compression != 0 && index != null && index.matches( this)) return index.getInputStream( this, offset);
+        InputStream in = compression == 0 ? getRawInputStream() : getInputStream();
+        InflateIndex.skipFully( in, offset);
+        return in;
+    }
+
+    /** Builds an inflate index of the deflated data with checkpoints about every spacing bytes,
+     *  e.g., InflateIndex.DEFAULT_SPACING, and keeps it for getInputStream(long).
+     */
+    public InflateIndex buildInflateIndex( long spacing) throws IOException
+    {
+        inflateIndex = InflateIndex.build( this, spacing);
+        return inflateIndex;
+    }
+
+    /** Sets an index built earlier, e.g., read from a file, or null to drop it. */
+    public void setInflateIndex( InflateIndex index)
+    {
+        if (index != null && !index.matches( this)) {
+            throw new IllegalArgumentException( "Inflate index doesn't match entry " + filename);
+        }
+        inflateIndex = index;
+    }
+
+    public InflateIndex getInflateIndex() {
+        return inflateIndex;
+    }
+
+    /** Returns a stream of the entry's raw data, i.e., compressed if the entry is. */
+    InputStream getRawInputStream() throws IOException
+    {
+        if (entryOut != null) closeEntryOut();
+        if (data != null) return new ByteArrayInputStream( data);
+        if (spill != null) return spill.getInputStream();
+        if (zipInput == null) {
+            throw new IllegalStateException( String.format("Data of entry %s is no longer available", filename));
+        }
+        return new ZioEntryInputStream( this);
+    }
+
     // Returns an output stream for writing an entry's data.
     public OutputStream getOutputStream() 
     {
-        entryOut = new ZioEntryOutputStream( compression, new ByteArrayOutputStream());
+        // Data written before is replaced, so its temporary file isn't needed anymore.
+        dispose();
+        entryOut = new ZioEntryOutputStream( compression, new SpillingOutputStream( spillThreshold, spillDirectory),
+                                             level, strategy, parallelBlockSize, parallelExecutor);
         return entryOut;
     }
 
+    /** Closes the stream returned by getOutputStream() and takes the entry's values and data from it. */
+    private void closeEntryOut() throws IOException
+    {
+        entryOut.close();
+        size = entryOut.getSize();
+        crc32 = entryOut.getCRC();
+        SpillingOutputStream buffer = (SpillingOutputStream)entryOut.getWrappedStream();
+        compressedSize = buffer.size();
+        if (buffer.isSpilled()) spill = buffer;
+        else data = buffer.toByteArray();
+        entryOut = null;
+    }
+
+    /** Makes the stream returned by getOutputStream() deflate blocks of the given size on
+     *  separate threads of the shared pool, which speeds up the compression of very large
+     *  entries.  Zero turns it off.  Requires Java 7 or Android API level 19.
+     */
+    public void setParallelDeflate( int blockSize) {
+        setParallelDeflate( blockSize, null);
+    }
+
+    /** As above, compressing on the given executor. */
+    public void setParallelDeflate( int blockSize, ExecutorService executor) {
+        parallelBlockSize = blockSize;
+        parallelExecutor = executor;
+    }
+
+    /** Deletes the temporary file of data written to the stream returned by getOutputStream(),
+     *  if it was spilled, for an entry that won't be written after all.  Writing the entry
+     *  deletes the file already.  The new data is no longer available afterwards.
+     */
+    public void dispose()
+    {
+        if (entryOut != null) {
+            SpillingOutputStream buffer = (SpillingOutputStream)entryOut.getWrappedStream();
+            try { entryOut.close(); } catch (IOException x) {}
+            buffer.dispose();
+            entryOut = null;
+        }
+        if (spill != null) spill.dispose();
+        spill = null;
+    }
+
+    /** Completes the data written to the stream returned by getOutputStream(), if any. */
+    void closeOutputStream() throws IOException {
+        if (entryOut != null) closeEntryOut();
+    }
+
+    /** Sets the number of bytes of (compressed) data a new entry keeps in memory before the rest
+     *  is written to a temporary file.  The file is deleted when the entry is written.
+     */
+    public static void setSpillThreshold( long threshold) {
+        spillThreshold = threshold;
+    }
+
+    public static long getSpillThreshold() {
+        return spillThreshold;
+    }
+
+    /** Sets the directory for spilled entry data, or null for the default temporary directory. */
+    public static void setSpillDirectory( File directory) {
+        spillDirectory = directory;
+    }
+
+    public static File getSpillDirectory() {
+        return spillDirectory;
+    }
+
 
     public void write( ZipOutput output) throws IOException {
         boolean debug = getLogger().isDebugEnabled();
 
 
+        // Values that don't fit are saturated and stored in the ZIP64 extra field instead.
+        boolean zip64Size = size >= ZIP64_LIMIT || compressedSize >= ZIP64_LIMIT;
+        boolean zip64Offset = localHeaderOffset >= ZIP64_LIMIT;
+        byte[] zip64Extra = new byte[0];
+        if (zip64Size || zip64Offset) {
+            zip64Extra = zip64ExtraField( zip64Size ? size : -1, zip64Size ? compressedSize : -1, zip64Offset ? localHeaderOffset : -1);
+            if (versionRequired < ZIP64_VERSION) versionRequired = ZIP64_VERSION;
+        }
+
         output.writeInt( 0x02014b50);
         output.writeShort( versionMadeBy);
         output.writeShort( versionRequired);
@@ -497,23 +910,145 @@ public class ZioEntry implements Cloneable {
         output.writeShort( modificationTime);
         output.writeShort( modificationDate);
         output.writeInt( crc32);
-        output.writeInt( compressedSize);
-        output.writeInt( size);
+        output.writeInt( zip64Size ? (int)ZIP64_LIMIT : (int)compressedSize);
+        output.writeInt( zip64Size ? (int)ZIP64_LIMIT : (int)size);
         output.writeShort( (short)filename.length());
-        output.writeShort( (short)(extraData.length + numAlignBytes));
+        output.writeShort( (short)(zip64Extra.length + extraData.length));
         output.writeShort( (short)fileComment.length());
         output.writeShort( diskNumberStart);
         output.writeShort( internalAttributes);
         output.writeInt( externalAttributes);
-        output.writeInt( localHeaderOffset);
+        output.writeInt( zip64Offset ? (int)ZIP64_LIMIT : (int)localHeaderOffset);
         
         output.writeString( filename);
+        output.writeBytes( zip64Extra);
         output.writeBytes( extraData);
-        if (numAlignBytes > 0) output.writeBytes( alignBytes, 0, numAlignBytes);
         output.writeString( fileComment);
 
     }
 
+    /** Builds an alignment extra field with the given number of padding bytes. */
+    private static byte[] alignmentExtraField( int alignment, int padding)
+    {
+        ByteBuffer field = ByteBuffer.allocate( ALIGNMENT_FIELD_SIZE + padding).order( ByteOrder.LITTLE_ENDIAN);
+        field.putShort( ALIGNMENT_EXTRA_ID);
+        field.putShort( (short)(2 + padding));
+        field.putShort( (short)alignment);
+        return field.array();
+    }
+
+    /** Returns the alignment recorded in an alignment extra field, or 0 if there is none. */
+    private static int findAlignment( byte[] extra)
+    {
+        ByteBuffer fields = ByteBuffer.wrap( extra).order( ByteOrder.LITTLE_ENDIAN);
+        while (fields.remaining() >= 4) {
+            short headerId = fields.getShort();
+            int dataLen = fields.getShort() & 0xFFFF;
+            if (dataLen > fields.remaining()) break;
+            if (headerId == ALIGNMENT_EXTRA_ID && dataLen >= 2) return fields.getShort( fields.position()) & 0xFFFF;
+            fields.position( fields.position() + dataLen);
+        }
+        return 0;
+    }
+
+    /** Removes an alignment extra field from the extra data, since a new one is generated when
+     *  the entry is written, and returns the alignment it recorded or 0 if there was none.
+     */
+    private int readAlignmentExtraField()
+    {
+        ByteBuffer extra = ByteBuffer.wrap( extraData).order( ByteOrder.LITTLE_ENDIAN);
+        while (extra.remaining() >= 4) {
+            int fieldStart = extra.position();
+            short headerId = extra.getShort();
+            int dataLen = extra.getShort() & 0xFFFF;
+            if (dataLen > extra.remaining()) break;
+            if (headerId != ALIGNMENT_EXTRA_ID) {
+                extra.position( extra.position() + dataLen);
+                continue;
+            }
+            int recorded = dataLen >= 2 ? extra.getShort( extra.position()) & 0xFFFF : 0;
+
+            byte[] remaining = new byte[extraData.length - 4 - dataLen];
+            System.arraycopy( extraData, 0, remaining, 0, fieldStart);
+            System.arraycopy( extraData, fieldStart + 4 + dataLen, remaining, fieldStart, extraData.length - fieldStart - 4 - dataLen);
+            extraData = remaining;
+            return recorded;
+        }
+        return 0;
+    }
+
+    /** Returns the alignment for the entry's data if it is stored: the alignment set on the
+     *  entry, otherwise the larger of the output's policy and the alignment recorded when the
+     *  entry was read, so re-signing keeps it.
+     */
+    int getAlignment( ZipOutput output)
+    {
+        if (alignment > 0) return alignment;
+        AlignmentPolicy policy = output.getAlignmentPolicy();
+        int policyAlignment = policy != null ? policy.getAlignment( this) : AlignmentPolicy.DEFAULT_ALIGNMENT;
+        return Math.max( policyAlignment, inputAlignment);
+    }
+
+    /** Sets the alignment of the entry's data when stored, overriding the output's alignment
+     *  policy.  Zero means the policy decides.
+     */
+    public void setAlignment( int alignment) {
+        if (alignment < 0 || alignment > 0xFFFF) throw new IllegalArgumentException( "Invalid alignment: " + alignment);
+        this.alignment = alignment;
+    }
+
+    public int getAlignment() {
+        return alignment;
+    }
+
+    /** Builds a ZIP64 extended information extra field holding the values which aren't negative,
+     *  in the order required by the specification.
+     */
+    private static byte[] zip64ExtraField( long size, long compressedSize, long localHeaderOffset)
+    {
+        int dataLen = (size >= 0 ? 8 : 0) + (compressedSize >= 0 ? 8 : 0) + (localHeaderOffset >= 0 ? 8 : 0);
+        ByteBuffer field = ByteBuffer.allocate( 4 + dataLen).order( ByteOrder.LITTLE_ENDIAN);
+        field.putShort( ZIP64_EXTRA_ID);
+        field.putShort( (short)dataLen);
+        if (size >= 0) field.putLong( size);
+        if (compressedSize >= 0) field.putLong( compressedSize);
+        if (localHeaderOffset >= 0) field.putLong( localHeaderOffset);
+        return field.array();
+    }
+
+    /** Replaces saturated central directory values with those from the ZIP64 extra field, then
+     *  removes that field from the extra data since it is regenerated when the entry is written.
+     *  Returns true if the field was present.
+     */
+    private boolean readZip64ExtraField( boolean debug)
+    {
+        ByteBuffer extra = ByteBuffer.wrap( extraData).order( ByteOrder.LITTLE_ENDIAN);
+        while (extra.remaining() >= 4) {
+            int fieldStart = extra.position();
+            short headerId = extra.getShort();
+            int dataLen = extra.getShort() & 0xFFFF;
+            if (dataLen > extra.remaining()) break;
+            if (headerId != ZIP64_EXTRA_ID) {
+                extra.position( extra.position() + dataLen);
+                continue;
+            }
+
+            ByteBuffer field = (ByteBuffer)extra.slice().limit( dataLen);
+            field.order( ByteOrder.LITTLE_ENDIAN);
+            if (size == ZIP64_LIMIT && field.remaining() >= 8) size = field.getLong();
+            if (compressedSize == ZIP64_LIMIT && field.remaining() >= 8) compressedSize = field.getLong();
+            if (localHeaderOffset == ZIP64_LIMIT && field.remaining() >= 8) localHeaderOffset = field.getLong();
+            if (debug) log.debug(String.format("ZIP64 size=%d, compressed size=%d, local header offset=0x%016x", size, compressedSize, localHeaderOffset));
+
+            byte[] remaining = new byte[extraData.length - 4 - dataLen];
+            System.arraycopy( extraData, 0, remaining, 0, fieldStart);
+            System.arraycopy( extraData, fieldStart + 4 + dataLen, remaining, fieldStart, extraData.length - fieldStart - 4 - dataLen);
+            extraData = remaining;
+            return true;
+        }
+        return false;
+    }
+
     /*
      * Returns timetamp in Java format
      */
@@ -565,6 +1100,24 @@ public class ZioEntry implements Cloneable {
         this.compression = (short)compression;
     }
 
+    /** Sets the deflate level used by getOutputStream(), Deflater.BEST_COMPRESSION by default. */
+    public void setLevel( int level) {
+        this.level = level;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    /** Sets the deflate strategy used by getOutputStream(). */
+    public void setStrategy( int strategy) {
+        this.strategy = strategy;
+    }
+
+    public int getStrategy() {
+        return strategy;
+    }
+
     public short getVersionMadeBy() {
         return versionMadeBy;
     }
@@ -585,11 +1138,11 @@ public class ZioEntry implements Cloneable {
         return crc32;
     }
 
-    public int getCompressedSize() {
+    public long getCompressedSize() {
         return compressedSize;
     }
 
-    public int getSize() {
+    public long getSize() {
         return size;
     }
 
@@ -613,7 +1166,7 @@ public class ZioEntry implements Cloneable {
         return externalAttributes;
     }
 
-    public int getLocalHeaderOffset() {
+    public long getLocalHeaderOffset() {
         return localHeaderOffset;
     }
 
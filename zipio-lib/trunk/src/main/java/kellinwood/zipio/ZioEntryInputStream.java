@@ -18,7 +18,7 @@ package kellinwood.zipio;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 
 import kellinwood.logging.LoggerInterface;
 import kellinwood.logging.LoggerManager;
@@ -27,9 +27,12 @@ import kellinwood.logging.LoggerManager;
 /** Input stream used to read just the data from a zip file entry. */
 public class ZioEntryInputStream extends InputStream {
 
-    RandomAccessFile raf;
-    int size;
-    int offset;
+    ZipInput zipInput;
+    ByteBuffer mapped;
+    // Absolute file position of the next byte, streams don't share the file pointer.
+    long position;
+    long size;
+    long offset;
     LoggerInterface log;
     boolean debug;
     boolean returnDummyByte = false;
@@ -41,18 +44,15 @@ public class ZioEntryInputStream extends InputStream {
         debug = log.isDebugEnabled();
         offset = 0;
         size = entry.getCompressedSize();
-        raf = entry.getZipInput().in;
-        long dpos = entry.getDataPosition();
-        if (dpos >= 0) {
-            if (debug) log.debug(String.format("Seeking to %d", entry.getDataPosition()));
-            raf.seek( entry.getDataPosition());
+        zipInput = entry.getZipInput();
+        if (entry.getDataPosition() < 0) entry.readLocalHeader();
+        if (zipInput.isMemoryMapped()) {
+            // Read the data straight from the mapping via a view that has its own position.
+            mapped = zipInput.slice( entry.getDataPosition(), (int)size);
+            return;
         }
-        else {
-            // seeks to, then reads, the local header, causing the 
-            // file pointer to be positioned at the start of the data.
-            entry.readLocalHeader();
-        }
-        
+        position = entry.getDataPosition();
+        if (debug) log.debug(String.format("Reading from position %d", position));
     }
 
     public void setReturnDummyByte( boolean returnExtraByte) {
@@ -75,7 +75,7 @@ public class ZioEntryInputStream extends InputStream {
 
     @Override
     public int available() throws IOException {
-        int available = size - offset;
+        int available = (int)Math.min( size - offset, Integer.MAX_VALUE);
         if (debug) log.debug(String.format("Available = %d", available));
         if (available == 0 && returnDummyByte) return 1;
         else return available;
@@ -90,7 +90,12 @@ public class ZioEntryInputStream extends InputStream {
             }
             else return -1;
         }
-        int b = raf.read();
+        int b;
+        if (mapped != null) b = mapped.get() & 0xFF;
+        else {
+            byte[] one = new byte[1];
+            b = (readAt( one, 0, 1) == 1) ? (one[0] & 0xFF) : -1;
+        }
         if (b >= 0) {
             if (monitor != null) monitor.write(b);
             if (debug) log.debug("Read 1 byte");
@@ -115,7 +120,12 @@ public class ZioEntryInputStream extends InputStream {
             else return -1;
         }        
         int numToRead = Math.min( len, available());
-        int numRead = raf.read(b, off, numToRead);
+        int numRead;
+        if (mapped != null) {
+            mapped.get( b, off, numToRead);
+            numRead = numToRead;
+        }
+        else numRead = readAt( b, off, numToRead);
         if (numRead > 0) {
             if (monitor != null) monitor.write(b, off, numRead);
             offset += numRead;
@@ -124,6 +134,12 @@ public class ZioEntryInputStream extends InputStream {
         return numRead;
     }
 
+    private int readAt(byte[] b, int off, int len) throws IOException {
+        int numRead = zipInput.read( ByteBuffer.wrap( b, off, len), position);
+        if (numRead > 0) position += numRead;
+        return numRead;
+    }
+
     @Override
     public int read(byte[] b) throws IOException {
         return readBytes( b, 0, b.length);
@@ -131,8 +147,10 @@ public class ZioEntryInputStream extends InputStream {
 
     @Override
     public long skip(long n) throws IOException {
-        long numToSkip = Math.min( n, available());
-        raf.seek( raf.getFilePointer() + numToSkip);
+        long numToSkip = Math.min( n, size - offset);
+        if (mapped != null) mapped.position( mapped.position() + (int)numToSkip);
+        else position += numToSkip;
+        offset += numToSkip;
         if (debug) log.debug(String.format("Skipped %d bytes", numToSkip));                
         return numToSkip;
     }
@@ -18,29 +18,61 @@ package kellinwood.zipio;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
 import java.util.zip.CRC32;
 import java.util.zip.Deflater;
 import java.util.zip.DeflaterOutputStream;
 
 public class ZioEntryOutputStream extends OutputStream {
-    int size = 0;  // tracks uncompressed size of data
+    long size = 0;  // tracks uncompressed size of data
     CRC32 crc = new CRC32();
     int crcValue = 0;
     OutputStream wrapped;
     OutputStream downstream;
+    Deflater deflater = null;
+    ParallelDeflaterOutputStream parallel = null;
+    boolean closed = false;
     
     public ZioEntryOutputStream( int compression, OutputStream wrapped) 
+    {
+        this( compression, wrapped, Deflater.BEST_COMPRESSION, Deflater.DEFAULT_STRATEGY, 0, null);
+    }
+
+    /** Data is deflated with the given level and strategy.  If parallelBlockSize is greater than
+     *  zero, it is deflated in blocks of that size on the given executor (or the shared pool if
+     *  null), and the CRC is computed there too.
+     */
+    public ZioEntryOutputStream( int compression, OutputStream wrapped, int level, int strategy, int parallelBlockSize, ExecutorService executor)
     {
         this.wrapped = wrapped;
-        if (compression != 0)
-            downstream = new DeflaterOutputStream( wrapped, new Deflater( Deflater.BEST_COMPRESSION, true));
+        if (compression != 0 && parallelBlockSize > 0) {
+            if (executor == null) parallel = new ParallelDeflaterOutputStream( wrapped, level, parallelBlockSize);
+            else parallel = new ParallelDeflaterOutputStream( wrapped, level, parallelBlockSize, executor,
+                                                              2 * Runtime.getRuntime().availableProcessors());
+            parallel.setStrategy( strategy);
+            downstream = parallel;
+            crc = null;
+        }
+        else if (compression != 0) {
+            deflater = CodecPool.getDeflater( level, strategy);
+            downstream = new DeflaterOutputStream( wrapped, deflater);
+        }
         else downstream = wrapped;
     }
     
     public void close() throws IOException {
-        downstream.flush();
-        downstream.close();
-        crcValue = (int)crc.getValue();
+        if (closed) return;
+        closed = true;
+        try {
+            downstream.flush();
+            downstream.close();
+        }
+        finally {
+            // The deflater goes back to the pool, it is not used after finish().
+            CodecPool.release( deflater);
+            deflater = null;
+        }
+        crcValue = parallel != null ? parallel.getCRC() : (int)crc.getValue();
     }
 
     public int getCRC() {
@@ -53,23 +85,23 @@ public class ZioEntryOutputStream extends OutputStream {
 
     public void write(byte[] b) throws IOException {
         downstream.write(b);
-        crc.update(b);
+        if (crc != null) crc.update(b);
         size += b.length;
     }
 
     public void write(byte[] b, int off, int len) throws IOException {
         downstream.write( b, off, len);
-        crc.update( b, off, len);
+        if (crc != null) crc.update( b, off, len);
         size += len;
     }
 
     public void write(int b) throws IOException {
         downstream.write( b);
-        crc.update( b);
+        if (crc != null) crc.update( b);
         size += 1;
     }
 
-    public int getSize() {
+    public long getSize() {
         return size;
     }
 
@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2010 Ken Ellinwood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kellinwood.zipio;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Random access source of the bytes of a zip file, read by ZipInput.  All reads are
+ * positional, so implementations must allow read() to be called from several threads at once.
+ */
+public interface ZipDataSource extends Closeable
+{
+    /** Returns a name for the source, used in messages (e.g., the file name). */
+    public String getName();
+
+    /** Returns the total number of bytes in the source. */
+    public long length() throws IOException;
+
+    /** Reads bytes into dst starting at the given position.  Returns the number of bytes
+     *  read, or -1 if the position is at or beyond the end of the source.
+     */
+    public int read( ByteBuffer dst, long position) throws IOException;
+
+    /** Returns the whole source as a buffer whose position zero is the start of the data, or
+     *  null if the source isn't held in memory.  The returned buffer is not modified by ZipInput.
+     */
+    public ByteBuffer getBuffer();
+
+    /** Returns the file channel behind the source, or null if there isn't one.  ZipInput uses
+     *  it to memory map the file and to copy entry data without going through the heap.
+     */
+    public FileChannel getChannel();
+}
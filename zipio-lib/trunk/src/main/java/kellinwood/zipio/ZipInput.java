@@ -16,20 +16,24 @@
 package kellinwood.zipio;
 
 import java.io.Closeable;
-import java.io.File;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
 import java.util.Collection;
 import java.util.Date;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.jar.Manifest;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 
 import kellinwood.logging.LoggerInterface;
@@ -42,20 +46,84 @@ public class ZipInput implements Closeable
 {
     static LoggerInterface log;
 
+    /** Option flag: map the file into memory, see ZipInput(String,boolean). */
+    public static final int MEMORY_MAPPED = 0x01;
+
+    /** Option flag: keep the central directory in a CentralDirectoryIndex instead of a
+     *  ZioEntry per entry.  getEntries() then returns a read-only view which creates
+     *  ZioEntry objects on access.
+     */
+    public static final int COMPACT_INDEX = 0x02;
+
     public String inputFilename;
-    RandomAccessFile in = null;
+    ZipDataSource source;
+    FileChannel channel = null;
+    ByteBuffer mapped = null;
     long fileLength;
+    long filePointer = 0;
     int scanIterations = 0;
+    ByteBuffer eocdBuffer = null;
 
-    Map<String,ZioEntry> zioEntries = new LinkedHashMap<String,ZioEntry>();
+    int options;
+    Map<String,ZioEntry> zioEntries = new EntryMap();
+    CentralDirectoryIndex index = null;
+    DirectoryTree directoryTree = null;
     CentralEnd centralEnd;
     Manifest manifest;
+    volatile DataCache dataCache = null;
 
     public ZipInput( String filename) throws IOException
     {
-        this.inputFilename = filename;
-        in = new RandomAccessFile( new File( inputFilename), "r");
-        fileLength = in.length();
+        this( filename, false);
+    }
+
+    /** Opens the file for reading.  If memoryMapped is true the file is mapped into memory
+     *  and header fields and entry data are decoded directly from the mapping.  Files that
+     *  can't be mapped (e.g., larger than 2GB) are read with regular file I/O instead.
+     */
+    public ZipInput( String filename, boolean memoryMapped) throws IOException
+    {
+        this( filename, memoryMapped ? MEMORY_MAPPED : 0);
+    }
+
+    /** Opens the file for reading with the given combination of option flags
+     *  (MEMORY_MAPPED, COMPACT_INDEX).
+     */
+    public ZipInput( String filename, int options) throws IOException
+    {
+        this( new FileDataSource( filename), options);
+    }
+
+    /** Reads the zip file from the given source, e.g., a ByteBufferDataSource for a zip file
+     *  that is already in memory.  Sources held in memory are always read directly from their
+     *  buffer, while MEMORY_MAPPED applies to sources backed by a file channel.
+     */
+    public ZipInput( ZipDataSource source, int options) throws IOException
+    {
+        this.source = source;
+        this.inputFilename = source.getName();
+        this.options = options;
+        channel = source.getChannel();
+        fileLength = source.length();
+        ByteBuffer buffer = source.getBuffer();
+        if (buffer != null) mapped = buffer.duplicate().order( ByteOrder.LITTLE_ENDIAN);
+        else if (channel != null && (options & MEMORY_MAPPED) != 0) mapFile();
+    }
+
+    private void mapFile()
+    {
+        if (fileLength > Integer.MAX_VALUE) {
+            getLogger().warning( String.format("Not mapping %s, file too large (%d bytes)", inputFilename, fileLength));
+            return;
+        }
+        try {
+            MappedByteBuffer buffer = channel.map( FileChannel.MapMode.READ_ONLY, 0, fileLength);
+            buffer.order( ByteOrder.LITTLE_ENDIAN);
+            mapped = buffer;
+        }
+        catch (IOException x) {
+            getLogger().warning( String.format("Unable to map %s, using file reads instead: %s", inputFilename, x.getMessage()));
+        }
     }
 
     private static LoggerInterface getLogger() {
@@ -71,8 +139,41 @@ public class ZipInput implements Closeable
         return fileLength;
     }
     
+    /** Returns true if headers and data are decoded directly from memory, either because the
+     *  file is mapped or because the source is held in memory.
+     */
+    public boolean isMemoryMapped() {
+        return mapped != null;
+    }
+
+    public ZipDataSource getSource() {
+        return source;
+    }
+
     public static ZipInput read( String filename) throws IOException {
-        ZipInput zipInput = new ZipInput( filename);
+        return read( filename, false);
+    }
+
+    public static ZipInput read( String filename, boolean memoryMapped) throws IOException {
+        return read( filename, memoryMapped ? MEMORY_MAPPED : 0);
+    }
+
+    public static ZipInput read( String filename, int options) throws IOException {
+        return read( new FileDataSource( filename), options);
+    }
+
+    /** Reads a zip file that is held in memory. */
+    public static ZipInput read( byte[] data) throws IOException {
+        return read( new ByteBufferDataSource( data), 0);
+    }
+
+    /** Reads a zip file from the bytes between the buffer's position and limit. */
+    public static ZipInput read( ByteBuffer data) throws IOException {
+        return read( new ByteBufferDataSource( data), 0);
+    }
+
+    public static ZipInput read( ZipDataSource source, int options) throws IOException {
+        ZipInput zipInput = new ZipInput( source, options);
         zipInput.doRead();
         return zipInput;
     }
@@ -82,9 +183,22 @@ public class ZipInput implements Closeable
         return zioEntries.get(filename);
     }
     
+    /** Returns the entries keyed by name, in central directory order.  When the
+     *  COMPACT_INDEX option is used the map is read-only and each lookup returns a newly
+     *  created ZioEntry, so iterating over it doesn't keep every entry in memory.
+     */
     public Map<String,ZioEntry> getEntries() {
         return zioEntries;
     }
+
+    public CentralEnd getCentralEnd() {
+        return centralEnd;
+    }
+
+    /** Returns the compact central directory index, or null if COMPACT_INDEX wasn't requested. */
+    public CentralDirectoryIndex getIndex() {
+        return index;
+    }
     
     /** Returns the names of immediate children in the directory with the given name.
      *  The path value must end with a "/" character.  Use a value of "/" 
@@ -95,18 +209,101 @@ public class ZipInput implements Closeable
         if (!path.endsWith("/")) throw new IllegalArgumentException("Invalid path -- does not end with '/'");
         
         if (path.startsWith("/")) path = path.substring(1);
-       
-        Pattern p = Pattern.compile( String.format("^%s([^/]+/?).*", path));
-        
-        Set<String> names = new TreeSet<String>();
-        
-        for (String name : zioEntries.keySet()) {
-            Matcher m = p.matcher(name);
-            if (m.matches()) names.add(m.group(1));
+
+        // A copy, so callers can keep modifying the result as before.  Copying a sorted set
+        // into a TreeSet takes linear time.
+        return new TreeSet<String>( getDirectoryTree().list( path));
+    }
+
+    /** Returns the directory trie, built on first use and again after the entries change. */
+    private synchronized DirectoryTree getDirectoryTree()
+    {
+        if (directoryTree == null) directoryTree = new DirectoryTree( zioEntries.keySet());
+        return directoryTree;
+    }
+
+    private synchronized void invalidateDirectoryTree() {
+        directoryTree = null;
+    }
+
+    /** The entries map returned by getEntries(), which drops the directory trie whenever an
+     *  entry is added or removed, including through its views and their iterators.
+     */
+    class EntryMap extends AbstractMap<String,ZioEntry>
+    {
+        Map<String,ZioEntry> map = new LinkedHashMap<String,ZioEntry>();
+        Set<Map.Entry<String,ZioEntry>> entrySet = null;
+
+        public int size() {
+            return map.size();
+        }
+
+        public boolean containsKey( Object key) {
+            return map.containsKey( key);
+        }
+
+        public ZioEntry get( Object key) {
+            return map.get( key);
+        }
+
+        public ZioEntry put( String key, ZioEntry value) {
+            if (!map.containsKey( key)) invalidateDirectoryTree();
+            return map.put( key, value);
+        }
+
+        public ZioEntry remove( Object key) {
+            if (map.containsKey( key)) invalidateDirectoryTree();
+            return map.remove( key);
+        }
+
+        public void clear() {
+            invalidateDirectoryTree();
+            map.clear();
+        }
+
+        public Set<Map.Entry<String,ZioEntry>> entrySet()
+        {
+            if (entrySet == null) {
+                entrySet = new AbstractSet<Map.Entry<String,ZioEntry>>() {
+                    public int size() {
+                        return map.size();
+                    }
+
+                    public Iterator<Map.Entry<String,ZioEntry>> iterator() {
+                        final Iterator<Map.Entry<String,ZioEntry>> i = map.entrySet().iterator();
+                        return new Iterator<Map.Entry<String,ZioEntry>>() {
+                            public boolean hasNext() {
+                                return i.hasNext();
+                            }
+
+                            public Map.Entry<String,ZioEntry> next() {
+                                return i.next();
+                            }
+
+                            public void remove() {
+                                i.remove();
+                                invalidateDirectoryTree();
+                            }
+                        };
+                    }
+                };
+            }
+            return entrySet;
         }
-        return names;
     }
     
+    /** Caches the data returned by ZioEntry.getData() for the entries of this file, up to
+     *  maxBytes of it, dropping the least recently used data first.  Zero turns the cache off.
+     */
+    public void setDataCache( long maxBytes) {
+        dataCache = maxBytes > 0 ? new DataCache( maxBytes) : null;
+    }
+
+    /** Returns the data cache, for its statistics, or null if there is none. */
+    public DataCache getDataCache() {
+        return dataCache;
+    }
+
     public Manifest getManifest() throws IOException {
         if (manifest == null) {
             ZioEntry e = zioEntries.get("META-INF/MANIFEST.MF");
@@ -128,13 +325,15 @@ public class ZipInput implements Closeable
 
         byte[] scanBuf = new byte[scanSize];
 
-        in.seek( fileLength - scanSize);
+        seek( fileLength - scanSize);
 
-        in.readFully( scanBuf);
+        readFully( scanBuf);
 
         for (int i = scanSize - 22; i >= 0; i--) {
             scanIterations += 1;
             if (scanBuf[i] == 0x50 && scanBuf[i+1] == 0x4b && scanBuf[i+2] == 0x05 && scanBuf[i+3] == 0x06) {
+                // Keep the scanned bytes so the EOCD record can be decoded without another read.
+                eocdBuffer = ByteBuffer.wrap( scanBuf, i, scanSize - i).order( ByteOrder.LITTLE_ENDIAN);
                 return fileLength - scanSize + i;
             }
         }
@@ -148,8 +347,28 @@ public class ZipInput implements Closeable
         try {
 
             long posEOCDR = scanForEOCDR( 256);
-            in.seek( posEOCDR);
-            centralEnd = CentralEnd.read( this);
+            int eocdIndex = eocdBuffer.position();
+            centralEnd = CentralEnd.read( eocdBuffer);
+
+            // A ZIP64 archive has a locator immediately preceding the EOCD record, usually
+            // within the bytes already scanned.
+            if (posEOCDR >= CentralEnd.ZIP64_LOCATOR_SIZE) {
+                ByteBuffer locator;
+                if (eocdIndex >= CentralEnd.ZIP64_LOCATOR_SIZE) {
+                    locator = eocdBuffer.duplicate().order( ByteOrder.LITTLE_ENDIAN);
+                    locator.position( eocdIndex - CentralEnd.ZIP64_LOCATOR_SIZE);
+                }
+                else {
+                    seek( posEOCDR - CentralEnd.ZIP64_LOCATOR_SIZE);
+                    locator = ByteBuffer.wrap( readBytes( CentralEnd.ZIP64_LOCATOR_SIZE)).order( ByteOrder.LITTLE_ENDIAN);
+                }
+                long zip64EndOffset = CentralEnd.readZip64Locator( locator);
+                if (zip64EndOffset >= 0) {
+                    seek( zip64EndOffset);
+                    centralEnd.readZip64( this);
+                }
+            }
+            eocdBuffer = null;
 
             boolean debug = getLogger().isDebugEnabled();
             if (debug) {
@@ -160,10 +379,23 @@ public class ZipInput implements Closeable
                 ZipListingHelper.listHeader( getLogger());
             }
 
-            in.seek( centralEnd.centralStartOffset);            
+            ByteBuffer directory = readCentralDirectory();
+
+            if ((options & COMPACT_INDEX) != 0) {
+                index = new CentralDirectoryIndex( this, directory, centralEnd.totalCentralEntries);
+                zioEntries = index.asMap();
+                if (debug) {
+                    for (ZioEntry entry : zioEntries.values()) ZipListingHelper.listEntry( getLogger(), entry);
+                }
+                return;
+            }
 
             for (int i = 0; i < centralEnd.totalCentralEntries; i++) {
-                ZioEntry entry = ZioEntry.read(this);
+                ZioEntry entry = ZioEntry.read(this, directory);
+                if (entry == null) {
+                    throw new IllegalStateException( String.format("Central directory entry %d not found at offset %d in %s",
+                                                                   i, centralEnd.centralStartOffset + directory.position(), inputFilename));
+                }
                 zioEntries.put( entry.getName(), entry);
                 if (debug) ZipListingHelper.listEntry( getLogger(), entry);
             }
@@ -174,60 +406,116 @@ public class ZipInput implements Closeable
         }    	
     }
 
+    /** Returns the whole central directory as a little-endian buffer, read with a single I/O
+     *  operation (or viewed directly from the mapping when the file is memory mapped).
+     */
+    ByteBuffer readCentralDirectory() throws IOException
+    {
+        if (centralEnd.centralDirectorySize > Integer.MAX_VALUE) {
+            throw new IllegalStateException( String.format("Central directory too large in %s, size=%d", inputFilename, centralEnd.centralDirectorySize));
+        }
+        if (mapped != null) return slice( centralEnd.centralStartOffset, (int)centralEnd.centralDirectorySize);
+
+        byte[] directory = new byte[(int)centralEnd.centralDirectorySize];
+        seek( centralEnd.centralStartOffset);
+        readFully( directory);
+        return ByteBuffer.wrap( directory).order( ByteOrder.LITTLE_ENDIAN);
+    }
+
     @Override
     public void close() {
-        if (in != null) try { in.close(); } catch( Throwable t) {}
+        mapped = null;
+        if (source != null) try { source.close(); } catch( Throwable t) {}
     }
 
     public long getFilePointer() throws IOException {
-        return in.getFilePointer(); 
+        if (mapped != null) return mapped.position();
+        return filePointer; 
     }
 
     public void seek( long position) throws IOException {
-        in.seek(position);
+        if (mapped != null) mapped.position( (int)position);
+        else filePointer = position;
+    }
+
+    /** Returns a little-endian view of length bytes of the mapped file starting at position.
+     *  The view has its own position and limit, so it may be read independently of this ZipInput.
+     *  Only valid when isMemoryMapped() returns true.
+     */
+    ByteBuffer slice( long position, int length) {
+        ByteBuffer view = mapped.duplicate();
+        view.position( (int)position);
+        view.limit( (int)position + length);
+        return view.slice().order( ByteOrder.LITTLE_ENDIAN);
     }
 
     public byte readByte() throws IOException {
-        return in.readByte();
+        if (mapped != null) return mapped.get();
+        return readBytes( 1)[0];
     }
     
     public int readInt() throws IOException{
-        int result = 0;
-        for (int i = 0; i < 4; i++) {
-            result |= (in.readUnsignedByte() << (8 * i));
-        }
-        return result;
+        if (mapped != null) return mapped.getInt();
+        return ByteBuffer.wrap( readBytes( 4)).order( ByteOrder.LITTLE_ENDIAN).getInt();
     }
 
     public short readShort() throws IOException {
-        short result = 0;
-        for (int i = 0; i < 2; i++) {
-            result |= (in.readUnsignedByte() << (8 * i));
-        }
-        return result;
+        if (mapped != null) return mapped.getShort();
+        return ByteBuffer.wrap( readBytes( 2)).order( ByteOrder.LITTLE_ENDIAN).getShort();
     }
 
     public String readString( int length) throws IOException {
+        return new String( readBytes( length));
+    }
+
+    public byte[] readBytes( int length) throws IOException {
 
         byte[] buffer = new byte[length];
-        for (int i = 0; i < length; i++) {
-            buffer[i] = in.readByte();
+        readFully( buffer);
+        return buffer;
+    }
+
+    private void readFully( byte[] buffer) throws IOException {
+        if (mapped != null) mapped.get( buffer);
+        else {
+            readFully( ByteBuffer.wrap( buffer), filePointer);
+            filePointer += buffer.length;
         }
-        return new String(buffer);
     }
 
-    public byte[] readBytes( int length) throws IOException {
+    /** Reads bytes into the buffer starting at the given file position, without using or moving
+     *  the file pointer.  Unlike the other read methods this is safe to call from several threads
+     *  at once.  Returns the number of bytes read, or -1 at the end of the file.
+     */
+    public int read( ByteBuffer dst, long position) throws IOException {
+        if (mapped != null) {
+            if (position >= fileLength) return -1;
+            int length = (int)Math.min( dst.remaining(), fileLength - position);
+            dst.put( slice( position, length));
+            return length;
+        }
+        return source.read( dst, position);
+    }
 
-        byte[] buffer = new byte[length];
-        for (int i = 0; i < length; i++) {
-            buffer[i] = in.readByte();
+    /** Fills the buffer from the given file position using positional reads. */
+    public void readFully( ByteBuffer dst, long position) throws IOException {
+        while (dst.hasRemaining()) {
+            int numRead = read( dst, position);
+            if (numRead < 0) throw new EOFException( String.format("EOF reached reading %s at position %d", inputFilename, position));
+            position += numRead;
         }
-        return buffer;
     }
 
     public int read( byte[] b, int offset, int length) throws IOException {
-        return in.read( b, offset, length);
+        if (mapped != null) {
+            if (!mapped.hasRemaining()) return -1;
+            length = Math.min( length, mapped.remaining());
+            mapped.get( b, offset, length);
+            return length;
+        }
+        int numRead = source.read( ByteBuffer.wrap( b, offset, length), filePointer);
+        if (numRead > 0) filePointer += numRead;
+        return numRead;
     }
 }
 
-
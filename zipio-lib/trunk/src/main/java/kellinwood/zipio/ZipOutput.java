@@ -19,10 +19,28 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.LinkedList;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import kellinwood.logging.LoggerInterface;
 import kellinwood.logging.LoggerManager;
 
@@ -36,10 +54,41 @@ public class ZipOutput
 
     String outputFilename;
     OutputStream out = null;
-    int filePointer = 0;
+    FileChannel channel = null;
+    // Whether data can be written at earlier positions of the channel, see isSeekable().
+    boolean seekable = false;
+    long filePointer = 0;
+
+    // Header fields are encoded into this buffer, which is written out when full.
+    static final int BUFFER_SIZE = 65536;
+    ByteBuffer buffer = ByteBuffer.allocate( BUFFER_SIZE).order( ByteOrder.LITTLE_ENDIAN);
 
     List<ZioEntry> entriesWritten = new LinkedList<ZioEntry>();
     Set<String> namesWritten = new HashSet<String>();
+    StreamedEntryOutputStream openEntry = null;
+    CompressionPipeline pipeline = null;
+    CompressionPolicy compressionPolicy = null;
+    AlignmentPolicy alignmentPolicy = new AlignmentPolicy();
+    // The threads of writeAll(), kept until close(), and the buffer each copies entry data through.
+    ExecutorService layoutExecutor = null;
+    int layoutThreads = 0;
+    ThreadLocal<ByteBuffer> layoutBuffer = new ThreadLocal<ByteBuffer>() {
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocate( BUFFER_SIZE);
+        }
+    };
+
+    // Update mode: the file being updated, and the space taken by each of its entries that
+    // hasn't been replaced or removed yet.  The central directory records of those entries are
+    // copied as they were, along with the file comment.
+    RandomAccessFile updateFile = null;
+    Map<String,Long> existingEntrySpace = null;
+    Map<String,byte[]> existingCentralRecords = null;
+    String fileComment = "";
+    long deadSpace = 0;
+
+    private ZipOutput() {
+    }
     
     public ZipOutput( String filename) throws IOException
     {
@@ -58,14 +107,183 @@ public class ZipOutput
     private void init( File ofile) throws IOException
     {
         if (ofile.exists()) ofile.delete();
-        out = new FileOutputStream( ofile);
+        FileOutputStream fos = new FileOutputStream( ofile);
+        out = fos;
+        channel = fos.getChannel();
+        seekable = true;
         if (getLogger().isDebugEnabled()) ZipListingHelper.listHeader( getLogger());
         
     }
 
+    /** Writes to the stream.  A FileOutputStream is written through its channel, and it is
+     *  seekable only if it is at the start of the file and not in append mode, since positions
+     *  in the output are counted from the start of the file.
+     */
     public ZipOutput( OutputStream os) throws IOException
     {
         out = os;
+        if (os instanceof FileOutputStream) {
+            channel = ((FileOutputStream)os).getChannel();
+            seekable = isAtStart( channel);
+        }
+    }
+
+    /** Returns true if the channel is at the start of a file and not in append mode, in which
+     *  positional writes go to the end of the file.
+     */
+    private static boolean isAtStart( FileChannel channel)
+    {
+        try {
+            if (channel.position() != 0) return false;
+            // The position of a channel in append mode is always the size of the file.
+            channel.position( 1);
+            boolean append = channel.position() != 1;
+            channel.position( 0);
+            return !append;
+        }
+        catch (IOException x) {
+            // Not a regular file, e.g., a pipe.
+            return false;
+        }
+    }
+
+    /** Opens an existing zip file to add, replace and remove entries without rewriting it.
+     *  The entries already in the file are kept where they are.  Entries written are appended
+     *  in place of the old central directory, and an entry with the name of an existing one
+     *  replaces it.  Closing writes the new central directory.  The space of replaced and
+     *  removed entries stays in the file until it is compacted, see compact().
+     */
+    public static ZipOutput openForUpdate( File file) throws IOException
+    {
+        ZipOutput output = new ZipOutput();
+        output.initUpdate( file);
+        return output;
+    }
+
+    public static ZipOutput openForUpdate( String filename) throws IOException {
+        return openForUpdate( new File( filename));
+    }
+
+    private void initUpdate( File file) throws IOException
+    {
+        outputFilename = file.getAbsolutePath();
+        long appendOffset;
+        List<ZioEntry> existing;
+        ZipInput input = ZipInput.read( outputFilename);
+        try {
+            appendOffset = input.getCentralEnd().centralStartOffset;
+            fileComment = input.getCentralEnd().fileComment;
+            existing = new ArrayList<ZioEntry>( input.getEntries().values());
+            existingCentralRecords = readCentralRecords( input);
+        }
+        finally {
+            input.close();
+        }
+
+        // The space of an entry runs to the next entry, so it includes any data descriptor.
+        List<ZioEntry> byOffset = new ArrayList<ZioEntry>( existing);
+        Collections.sort( byOffset, new Comparator<ZioEntry>() {
+            public int compare( ZioEntry a, ZioEntry b) {
+                long diff = a.getLocalHeaderOffset() - b.getLocalHeaderOffset();
+                return diff < 0 ? -1 : (diff == 0 ? 0 : 1);
+            }
+        });
+        existingEntrySpace = new HashMap<String,Long>();
+        for (int i = 0; i < byOffset.size(); i++) {
+            ZioEntry entry = byOffset.get( i);
+            long end = i + 1 < byOffset.size() ? byOffset.get( i + 1).getLocalHeaderOffset() : appendOffset;
+            existingEntrySpace.put( entry.getName(), end - entry.getLocalHeaderOffset());
+        }
+        for (ZioEntry entry : existing) {
+            entriesWritten.add( entry);
+            namesWritten.add( entry.getName());
+        }
+
+        updateFile = new RandomAccessFile( file, "rw");
+        channel = updateFile.getChannel();
+        seekable = true;
+        channel.position( appendOffset);
+        filePointer = appendOffset;
+        out = Channels.newOutputStream( channel);
+    }
+
+    /** Returns the raw central directory record of each entry by name.  The entries decoded by
+     *  ZipInput are normalized, e.g., empty entries lose their compression and data descriptor
+     *  flag, so rewriting them would no longer match their local headers.
+     */
+    private static Map<String,byte[]> readCentralRecords( ZipInput input) throws IOException
+    {
+        Map<String,byte[]> records = new HashMap<String,byte[]>();
+        ByteBuffer directory = input.readCentralDirectory();
+        while (true) {
+            int start = directory.position();
+            ZioEntry central = ZioEntry.read( null, directory);
+            if (central == null) break;
+            byte[] record = new byte[directory.position() - start];
+            directory.position( start);
+            directory.get( record);
+            records.put( central.getName(), record);
+        }
+        return records;
+    }
+
+    /** Removes an existing entry of a file opened for update.  Returns false if there is no
+     *  such entry, or it was already replaced or removed.
+     */
+    public boolean remove( String name) {
+        checkNoOpenEntry();
+        return removeExisting( name);
+    }
+
+    private boolean removeExisting( String name)
+    {
+        if (existingEntrySpace == null) return false;
+        Long space = existingEntrySpace.remove( name);
+        if (space == null) return false;
+        deadSpace += space;
+        existingCentralRecords.remove( name);
+        namesWritten.remove( name);
+        for (Iterator<ZioEntry> i = entriesWritten.iterator(); i.hasNext(); ) {
+            if (i.next().getName().equals( name)) {
+                i.remove();
+                break;
+            }
+        }
+        return true;
+    }
+
+    /** Returns the number of bytes taken by entries replaced or removed in update mode. */
+    public long getDeadSpace() {
+        return deadSpace;
+    }
+
+    /** Rewrites the zip file without the space left by entries replaced or removed in update
+     *  mode.  The entries are copied without recompressing them into a temporary file in the
+     *  same directory, which then replaces the original.
+     */
+    public static void compact( File file) throws IOException
+    {
+        File compacted = File.createTempFile( "compact", ".zip", file.getAbsoluteFile().getParentFile());
+        try {
+            ZipInput input = ZipInput.read( file.getAbsolutePath());
+            try {
+                ZipOutput output = new ZipOutput( compacted);
+                for (ZioEntry entry : input.getEntries().values()) output.write( entry);
+                output.close();
+            }
+            finally {
+                input.close();
+            }
+            if (!compacted.renameTo( file)) {
+                // Renaming onto an existing file fails on some platforms.
+                if (!file.delete() || !compacted.renameTo( file)) {
+                    throw new IOException( String.format("Unable to replace %s with %s", file, compacted));
+                }
+            }
+        }
+        finally {
+            if (compacted.exists()) compacted.delete();
+        }
     }
     
     private static LoggerInterface getLogger() {
@@ -74,7 +292,66 @@ public class ZipOutput
     }
 
     public void write( ZioEntry entry) throws IOException {
+        checkNoOpenEntry();
+        if (pipeline != null) pipeline.submit( entry);
+        else writeEntry( entry);
+    }
+
+    /** Writes a new entry with the given uncompressed data.  In parallel mode the data is
+     *  compressed by a worker thread and the entry written once it and all entries before it
+     *  are done, otherwise it is compressed and written immediately.  The compression policy,
+     *  if any, is applied to the entry first.  The content array must not be modified afterwards.
+     */
+    public void write( ZioEntry entry, byte[] content) throws IOException {
+        checkNoOpenEntry();
+        if (pipeline != null) pipeline.submit( entry, content);
+        else {
+            if (compressionPolicy != null) compressionPolicy.apply( entry, content);
+            OutputStream entryOut = entry.getOutputStream();
+            entryOut.write( content);
+            writeEntry( entry);
+        }
+    }
+
+    /** Switches to parallel mode, in which the data given to write(ZioEntry,byte[]) is compressed
+     *  on the given number of worker threads (all processors if zero).  The entries are still
+     *  written in order, and write() blocks while the data of entries waiting to be written
+     *  exceeds maxInFlightBytes.
+     */
+    public void setParallelCompression( int threads, long maxInFlightBytes) throws IOException {
+        if (pipeline != null) {
+            pipeline.drain();
+            pipeline.shutdown();
+        }
+        if (threads <= 0) threads = Runtime.getRuntime().availableProcessors();
+        pipeline = new CompressionPipeline( this, threads, maxInFlightBytes);
+    }
+
+    /** Sets the policy that chooses the compression of entries given to write(ZioEntry,byte[])
+     *  and beginEntry().  Entries written otherwise keep their own settings.
+     */
+    public void setCompressionPolicy( CompressionPolicy policy) {
+        compressionPolicy = policy;
+    }
+
+    public CompressionPolicy getCompressionPolicy() {
+        return compressionPolicy;
+    }
+
+    /** Sets the policy that chooses the alignment of stored entries' data.  By default, data is
+     *  4-byte aligned and native libraries are aligned on 4 KB pages.
+     */
+    public void setAlignmentPolicy( AlignmentPolicy policy) {
+        alignmentPolicy = policy;
+    }
+
+    public AlignmentPolicy getAlignmentPolicy() {
+        return alignmentPolicy;
+    }
+
+    void writeEntry( ZioEntry entry) throws IOException {
         String entryName = entry.getName();
+        removeExisting( entryName);
         if (namesWritten.contains( entryName)) {
             getLogger().warning("Skipping duplicate file in output: " + entryName);
             return;
@@ -86,71 +363,416 @@ public class ZipOutput
         
     }
 
+    /** Starts an entry whose data is written to the returned stream, which compresses it straight
+     *  into the output rather than buffering it first.  Closing the stream completes the entry.
+     *  When writing to a file the CRC and sizes are then patched into the local header, otherwise
+     *  they follow the data in a data descriptor.  No other entry may be written in the meantime.
+     *  Since the size isn't known, only the name rules of the compression policy apply, see
+     *  beginEntry(ZioEntry,long,byte[],int).
+     */
+    public OutputStream beginEntry( ZioEntry entry) throws IOException {
+        return beginEntry( entry, false);
+    }
+
+    /** Starts a streamed entry as above.  Set zip64 if the entry may reach 4GB, which reserves
+     *  room for ZIP64 sizes in its local header.
+     */
+    public OutputStream beginEntry( ZioEntry entry, boolean zip64) throws IOException {
+        return beginEntry( entry, zip64, -1, null, 0);
+    }
+
+    /** Starts a streamed entry of the given uncompressed size, so the size rules of the
+     *  compression policy apply too, as does its check of the sample if one is given, which
+     *  holds the first sampleLength bytes of the data.  Room for ZIP64 sizes is reserved if the
+     *  size reaches 4GB.
+     */
+    public OutputStream beginEntry( ZioEntry entry, long size, byte[] sample, int sampleLength) throws IOException {
+        return beginEntry( entry, size >= ZioEntry.ZIP64_LIMIT, size, sample, sampleLength);
+    }
+
+    private OutputStream beginEntry( ZioEntry entry, boolean zip64, long size, byte[] sample, int sampleLength) throws IOException {
+        checkNoOpenEntry();
+        if (pipeline != null) pipeline.drain();
+        removeExisting( entry.getName());
+        if (namesWritten.contains( entry.getName())) {
+            getLogger().warning("Skipping duplicate file in output: " + entry.getName());
+            return new OutputStream() {
+                public void write( int b) {}
+                public void write( byte[] b, int off, int len) {}
+            };
+        }
+        if (compressionPolicy != null) compressionPolicy.apply( entry, size, sample, sampleLength);
+        openEntry = new StreamedEntryOutputStream( this, entry, isSeekable(), zip64);
+        return openEntry;
+    }
+
+    /** Called when the stream of an entry started by beginEntry() is closed. */
+    void endEntry( StreamedEntryOutputStream entryStream) throws IOException {
+        openEntry = null;
+        ZioEntry entry = entryStream.entry;
+        if (entryStream.buffered) {
+            writeEntry( entry);
+            return;
+        }
+        entry.endStreamedEntry( this, entryStream.getCRC(), entryStream.getSize());
+        entriesWritten.add( entry);
+        namesWritten.add( entry.getName());
+        if (getLogger().isDebugEnabled()) ZipListingHelper.listEntry( getLogger(), entry);
+    }
+
+    private void checkNoOpenEntry() {
+        if (openEntry != null) {
+            throw new IllegalStateException( String.format("Entry %s is still being written", openEntry.entry.getName()));
+        }
+    }
+
+    /** Adds the files under a directory, named by their path relative to it with the prefix
+     *  in front, e.g., "assets/" or "" for none.  Empty directories are added as directory
+     *  entries.  Each file is read only once, by one of the given number of threads (all
+     *  processors if zero), which compresses it and computes its CRC in the same pass, and no
+     *  more files than threads are open at a time.  The entries are written in name order.
+     */
+    public void writeTree( File dir, String prefix, int threads) throws IOException {
+        checkNoOpenEntry();
+        if (pipeline != null) pipeline.drain();
+        if (prefix.length() > 0 && !prefix.endsWith("/")) prefix += "/";
+        new DirectoryTreeWriter( this, threads).write( dir, prefix);
+    }
+
+    /** Returns true if data already written can be patched, i.e., the output is a regular file
+     *  written from its start.
+     */
+    public boolean isSeekable() {
+        return seekable;
+    }
+
+    /** Overwrites data already written at the given position of the output file. */
+    void writeAt( ByteBuffer src, long position) throws IOException
+    {
+        flushBuffer();
+        writeFully( channel, src, position);
+    }
+
+    /** Writes all of the buffer at the given position of the channel, and returns the position
+     *  after it.
+     */
+    static long writeFully( FileChannel channel, ByteBuffer src, long position) throws IOException
+    {
+        while (src.hasRemaining()) position += channel.write( src, position);
+        return position;
+    }
+
+    /** Writes the entries using a precomputed layout.  First the position of every local header
+     *  is computed, including alignment, from the entries' names, extra data and compressed
+     *  sizes, and the file is extended to its new length.  Then threads each write whole entries
+     *  into their places with positional writes.  This needs a file output and a known
+     *  compressed size, so new entries are compressed first.  Otherwise, e.g., when writing to
+     *  a stream, the entries are written one after another as by write(ZioEntry).
+     *
+     *  A threads value of 0 uses one thread per processor.  The threads are kept for later
+     *  calls until close().
+     */
+    public void writeAll( List<ZioEntry> entries, int threads) throws IOException
+    {
+        checkNoOpenEntry();
+        if (pipeline != null) pipeline.drain();
+        if (!isSeekable()) {
+            for (ZioEntry entry : entries) writeEntry( entry);
+            return;
+        }
+        ExecutorService executor = getLayoutExecutor( threads);
+        List<Future<Object>> futures = new ArrayList<Future<Object>>();
+        boolean completed = false;
+        try {
+            // Local headers are read in parallel as well, since they may hold alignments.
+            for (final ZioEntry entry : entries) {
+                futures.add( executor.submit( new Callable<Object>() {
+                    public Object call() throws IOException {
+                        entry.prepareLayout();
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Object> future : futures) waitFor( future);
+            futures.clear();
+
+            flushBuffer();
+            List<ZioEntry> laidOut = new ArrayList<ZioEntry>();
+            List<ByteBuffer> headers = new ArrayList<ByteBuffer>();
+            long position = filePointer;
+            for (ZioEntry entry : entries) {
+                String entryName = entry.getName();
+                removeExisting( entryName);
+                if (namesWritten.contains( entryName)) {
+                    getLogger().warning("Skipping duplicate file in output: " + entryName);
+                    continue;
+                }
+                ByteBuffer header = entry.layoutLocalEntry( this, position);
+                position += header.remaining() + entry.getCompressedSize();
+                laidOut.add( entry);
+                headers.add( header);
+                entriesWritten.add( entry);
+                namesWritten.add( entryName);
+                if (getLogger().isDebugEnabled()) ZipListingHelper.listEntry( getLogger(), entry);
+            }
+
+            // Extend the file to its new length up front, rather than by each write past its end.
+            if (position > channel.size()) writeFully( channel, ByteBuffer.allocate( 1), position - 1);
+
+            for (int i = 0; i < laidOut.size(); i++) {
+                final ZioEntry entry = laidOut.get( i);
+                final ByteBuffer header = headers.get( i);
+                futures.add( executor.submit( new Callable<Object>() {
+                    public Object call() throws IOException {
+                        long dataPosition = writeFully( channel, header, entry.getLocalHeaderOffset());
+                        entry.writeDataAt( ZipOutput.this, dataPosition, layoutBuffer.get());
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Object> future : futures) waitFor( future);
+
+            filePointer = position;
+            channel.position( position);
+            completed = true;
+        }
+        finally {
+            if (!completed) {
+                // Skip the entries not started yet, and let the running ones finish rather than
+                // interrupting them, which would close the channels and hide the first error.
+                for (Future<Object> future : futures) future.cancel( false);
+                shutdownLayoutExecutor();
+            }
+        }
+    }
+
+    /** Returns the pool of writeAll(), created with the given number of threads (all processors
+     *  if zero) or replaced if it has a different number.
+     */
+    private ExecutorService getLayoutExecutor( int threads)
+    {
+        if (threads <= 0) threads = Runtime.getRuntime().availableProcessors();
+        if (layoutExecutor != null && layoutThreads == threads) return layoutExecutor;
+        shutdownLayoutExecutor();
+        layoutExecutor = Executors.newFixedThreadPool( threads, new ThreadFactory() {
+            int count = 0;
+            public synchronized Thread newThread( Runnable r) {
+                Thread thread = new Thread( r, "zipio-layout-" + (++count));
+                thread.setDaemon( true);
+                return thread;
+            }
+        });
+        layoutThreads = threads;
+        return layoutExecutor;
+    }
+
+    /** Shuts down the pool of writeAll(), if any, after its running tasks finish. */
+    private void shutdownLayoutExecutor()
+    {
+        if (layoutExecutor == null) return;
+        layoutExecutor.shutdown();
+        try {
+            layoutExecutor.awaitTermination( Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+        }
+        layoutExecutor = null;
+    }
+
+    private static void waitFor( Future<Object> future) throws IOException
+    {
+        try {
+            future.get();
+        }
+        catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+            throw new IOException( "Interrupted while writing entries");
+        }
+        catch (ExecutionException x) {
+            Throwable cause = x.getCause();
+            if (cause instanceof IOException) throw (IOException)cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+            throw new IllegalStateException( "Failed to write entries", cause);
+        }
+    }
+
 
     
     public void close() throws IOException
     {
+        checkNoOpenEntry();
+        shutdownLayoutExecutor();
+        if (pipeline != null) {
+            try {
+                pipeline.drain();
+            }
+            finally {
+                pipeline.shutdown();
+                pipeline = null;
+            }
+        }
         CentralEnd centralEnd = new CentralEnd();
         
-        centralEnd.centralStartOffset = (int)getFilePointer();
-        centralEnd.numCentralEntries = centralEnd.totalCentralEntries = (short)entriesWritten.size();
+        centralEnd.centralStartOffset = getFilePointer();
+        centralEnd.numCentralEntries = centralEnd.totalCentralEntries = entriesWritten.size();
         
         for (ZioEntry entry : entriesWritten) {
-            entry.write( this);
+            byte[] record = existingCentralRecords == null ? null : existingCentralRecords.get( entry.getName());
+            if (record != null) writeBytes( record);
+            else entry.write( this);
         }
         
-        centralEnd.centralDirectorySize = (int)(getFilePointer() - centralEnd.centralStartOffset);
-        centralEnd.fileComment = "";
+        centralEnd.centralDirectorySize = getFilePointer() - centralEnd.centralStartOffset;
+        centralEnd.fileComment = fileComment;
         
         centralEnd.write( this);
+        flushBuffer();
+        // The old central directory may have extended past the new one.
+        if (updateFile != null) channel.truncate( filePointer);
         
         if (out != null) try { out.close(); } catch( Throwable t) {}
+        if (updateFile != null) try { updateFile.close(); } catch( Throwable t) {}
+    }
+
+    /** Writes any buffered data to the underlying stream and flushes it. */
+    public void flush() throws IOException {
+        if (pipeline != null) pipeline.drain();
+        flushBuffer();
+        out.flush();
+    }
+
+    private void flushBuffer() throws IOException
+    {
+        if (buffer.position() == 0) return;
+        if (channel != null) {
+            buffer.flip();
+            while (buffer.hasRemaining()) channel.write( buffer);
+        }
+        else out.write( buffer.array(), 0, buffer.position());
+        buffer.clear();
     }
 
-    public int getFilePointer() throws IOException {
+    private void ensureRemaining( int length) throws IOException {
+        if (buffer.remaining() < length) flushBuffer();
+    }
+
+    public long getFilePointer() throws IOException {
         return filePointer;
     }
 
+    /** Copies count bytes starting at the given position of the source channel to the output
+     *  with FileChannel.transferTo(), which lets the OS copy the data without it passing through
+     *  the Java heap.  Returns false, without copying anything, if the output isn't a file or
+     *  the source is null.
+     */
+    public boolean transferFrom( FileChannel source, long position, long count) throws IOException
+    {
+        if (channel == null || source == null) return false;
 
-    public void writeInt( int value) throws IOException{
-        byte[] data = new byte[4];
-        for (int i = 0; i < 4; i++) {
-            data[i] = (byte)(value & 0xFF);
-            value = value >> 8;
+        flushBuffer();
+        long totalCount = 0;
+        while (totalCount < count) {
+            long numCopied = source.transferTo( position + totalCount, count - totalCount, channel);
+            if (numCopied <= 0) {
+                throw new IllegalStateException( String.format("EOF reached while copying %d bytes at position %d", count - totalCount, position + totalCount));
+            }
+            totalCount += numCopied;
         }
-        out.write( data);
+        filePointer += count;
+        return true;
+    }
+
+    /** Copies count bytes starting at the given position of the source channel to the given
+     *  position of the output file with FileChannel.transferTo(), as transferFrom() does.  Since
+     *  transferTo() writes at the output channel's current position, the threads of writeAll()
+     *  take turns.  Returns false if the output isn't seekable or the source is null.
+     */
+    boolean transferAt( FileChannel source, long sourcePosition, long count, long position) throws IOException
+    {
+        if (!seekable || source == null) return false;
+
+        synchronized (channel) {
+            channel.position( position);
+            long totalCount = 0;
+            while (totalCount < count) {
+                long numCopied = source.transferTo( sourcePosition + totalCount, count - totalCount, channel);
+                if (numCopied <= 0) {
+                    throw new IllegalStateException( String.format("EOF reached while copying %d bytes at position %d", count - totalCount, sourcePosition + totalCount));
+                }
+                totalCount += numCopied;
+            }
+        }
+        return true;
+    }
+
+
+    public void writeInt( int value) throws IOException{
+        ensureRemaining( 4);
+        buffer.putInt( value);
         filePointer += 4;
     }
 
+    public void writeLong( long value) throws IOException {
+        ensureRemaining( 8);
+        buffer.putLong( value);
+        filePointer += 8;
+    }
+
     public void writeShort( short value) throws IOException {
-        byte[] data = new byte[2];
-        for (int i = 0; i < 2; i++) {
-            data[i] = (byte)(value & 0xFF);
-            value = (short)(value >> 8);
-        }
-        out.write( data);
+        ensureRemaining( 2);
+        buffer.putShort( value);
         filePointer += 2;
     }
 
     public void writeString( String value) throws IOException {
 
         byte[] data = value.getBytes();
-        out.write( data);
-        filePointer += data.length;
+        writeBytes( data, 0, data.length);
     }
 
     public void writeBytes( byte[] value) throws IOException {
 
-        out.write( value);
-        filePointer += value.length;
+        writeBytes( value, 0, value.length);
+    }
+
+    /** Writes the bytes remaining in the buffer, which may be a direct buffer. */
+    public void writeBytes( ByteBuffer src) throws IOException {
+
+        int length = src.remaining();
+        if (length <= buffer.remaining()) buffer.put( src);
+        else {
+            flushBuffer();
+            if (channel != null) {
+                while (src.hasRemaining()) channel.write( src);
+            }
+            else {
+                while (src.hasRemaining()) {
+                    ByteBuffer part = src.duplicate();
+                    part.limit( part.position() + Math.min( part.remaining(), buffer.remaining()));
+                    buffer.put( part);
+                    src.position( part.position());
+                    flushBuffer();
+                }
+            }
+        }
+        filePointer += length;
     }
 
     public void writeBytes( byte[] value, int offset, int length) throws IOException {
 
-        out.write( value, offset, length);
+        if (length <= buffer.remaining()) buffer.put( value, offset, length);
+        else {
+            flushBuffer();
+            // Large blocks of data are written directly rather than copied through the buffer.
+            if (length < BUFFER_SIZE / 2) buffer.put( value, offset, length);
+            else if (channel != null) {
+                ByteBuffer src = ByteBuffer.wrap( value, offset, length);
+                while (src.hasRemaining()) channel.write( src);
+            }
+            else out.write( value, offset, length);
+        }
         filePointer += length;
     }    
 
 }
-
-
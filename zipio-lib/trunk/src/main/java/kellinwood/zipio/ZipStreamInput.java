@@ -0,0 +1,402 @@
+/*
+ * Copyright (C) 2010 Ken Ellinwood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kellinwood.zipio;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+import kellinwood.logging.LoggerInterface;
+import kellinwood.logging.LoggerManager;
+
+/**
+ * Forward-only reader for zip files arriving on a stream which can't seek, e.g., a pipe.  The
+ * local file headers are walked in file order and each entry is returned, with its raw data
+ * held in memory, as it streams past.  The data of an entry is only available until the next
+ * call to getNextEntry(), so memory use is bounded by the largest entry.  Entries may be
+ * written to a ZipOutput as they are returned.
+ * <p>
+ * When the central directory is reached it is checked against the entries already returned,
+ * and values only found there (file comments and attributes) are copied into those entries.
+ * Entries written to a ZipOutput pick these up as long as the output is closed afterwards.
+ */
+public class ZipStreamInput implements Closeable
+{
+    static LoggerInterface log;
+
+    static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    static final int DATA_DESCRIPTOR_SIGNATURE = 0x08074b50;
+    static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+
+    // Trails the APK Signing Block which v2/v3 signed APKs have in front of the central directory.
+    static final byte[] SIGNING_BLOCK_MAGIC = "APK Sig Block 42".getBytes();
+
+    InputStream in;
+    String name;
+    byte[] buffer = new byte[65536];
+    int bufferPos = 0;
+    int bufferLimit = 0;
+    // File offset of buffer[bufferPos]
+    long offset = 0;
+
+    ZioEntry current = null;
+    Map<Long,ZioEntry> entriesByOffset = new HashMap<Long,ZioEntry>();
+    int numEntries = 0;
+    CentralEnd centralEnd = null;
+
+    public ZipStreamInput( InputStream in) {
+        this( in, "<stream>");
+    }
+
+    public ZipStreamInput( InputStream in, String name) {
+        this.in = in;
+        this.name = name;
+    }
+
+    private static LoggerInterface getLogger() {
+        if (log == null) log = LoggerManager.getLogger(ZipStreamInput.class.getName());
+        return log;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /** Returns the number of bytes consumed from the stream so far. */
+    public long getOffset() {
+        return offset;
+    }
+
+    /** Returns the end of central directory record, or null if it hasn't been reached yet. */
+    public CentralEnd getCentralEnd() {
+        return centralEnd;
+    }
+
+    /** Returns the next entry, or null once the central directory has been read and checked.
+     *  The previously returned entry's data is released.
+     */
+    public ZioEntry getNextEntry() throws IOException
+    {
+        if (current != null) {
+            current.releaseStreamedData();
+            current = null;
+        }
+        if (centralEnd != null) return null;
+
+        if (!fill( 4)) throw new EOFException( String.format("EOF reached reading %s at position %d", name, offset));
+        if (numEntries > 0 && peekInt() != LOCAL_HEADER_SIGNATURE && peekInt() != CENTRAL_HEADER_SIGNATURE) {
+            skipToCentralDirectory();
+        }
+
+        long headerOffset = offset;
+        int signature = readInt();
+        if (signature == CENTRAL_HEADER_SIGNATURE) {
+            readCentralDirectory();
+            return null;
+        }
+        if (signature != LOCAL_HEADER_SIGNATURE) {
+            throw new ZipException( String.format("Local header not found at pos=0x%08x, file=%s", headerOffset, name));
+        }
+
+        ByteBuffer header = ByteBuffer.wrap( readBytes( 26)).order( ByteOrder.LITTLE_ENDIAN);
+        int variableLen = (header.getShort( 22) & 0xFFFF) + (header.getShort( 24) & 0xFFFF);
+        ByteBuffer record = ByteBuffer.allocate( 26 + variableLen).order( ByteOrder.LITTLE_ENDIAN);
+        record.put( header);
+        record.put( readBytes( variableLen));
+        record.flip();
+
+        ZioEntry entry = ZioEntry.readLocal( record, headerOffset);
+
+        if ((entry.getGeneralPurposeBits() & 0x0008) == 0) {
+            // Sizes are in the local header.
+            long compressedSize = entry.getCompressedSize();
+            if (compressedSize > Integer.MAX_VALUE) {
+                throw new ZipException( String.format("Entry %s is too large to stream, compressed size=%d", entry.getName(), compressedSize));
+            }
+            entry.setStreamedData( readBytes( (int)compressedSize), entry.getCrc32(), compressedSize, entry.getSize());
+        }
+        else if (entry.getCompression() == 8) {
+            readDescriptorEntry( entry);
+        }
+        else {
+            // Without a compressed stream to mark the end there is no reliable way to find the descriptor.
+            throw new ZipException( String.format("Entry %s is stored with a data descriptor and can't be read from a stream", entry.getName()));
+        }
+
+        entriesByOffset.put( headerOffset, entry);
+        numEntries += 1;
+        current = entry;
+        if (getLogger().isDebugEnabled()) ZipListingHelper.listEntry( getLogger(), entry);
+        return entry;
+    }
+
+    /** Skips the bytes between the last local entry and the central directory.  In v2/v3 signed
+     *  APKs these hold the APK Signing Block, which is skipped using its size field once its magic
+     *  checks out.  Anything else is scanned for the central directory signature.
+     */
+    private void skipToCentralDirectory() throws IOException
+    {
+        long start = offset;
+        if (fill( 8)) {
+            // The block size excludes the size field itself.
+            long blockSize = (peekInt() & 0xFFFFFFFFL) | ((long)peekInt( 4) << 32);
+            if (blockSize >= 8 + SIGNING_BLOCK_MAGIC.length && blockSize <= buffer.length - 8 && fill( 8 + (int)blockSize)) {
+                if (isSigningBlockMagic( bufferPos + 8 + (int)blockSize - SIGNING_BLOCK_MAGIC.length)) {
+                    consume( 8 + (int)blockSize);
+                    if (getLogger().isDebugEnabled()) getLogger().debug( String.format("Skipped the APK Signing Block at pos=0x%08x, size=%d, file=%s", start, 8 + blockSize, name));
+                    return;
+                }
+            }
+            else if (blockSize > buffer.length - 8 && blockSize <= Integer.MAX_VALUE) {
+                // Too large to check ahead of time, so this has to be a signing block.
+                consume( 8);
+                skip( blockSize - SIGNING_BLOCK_MAGIC.length);
+                if (!fill( SIGNING_BLOCK_MAGIC.length) || !isSigningBlockMagic( bufferPos)) {
+                    throw new ZipException( String.format("Unrecognized data before the central directory at pos=0x%08x, file=%s", start, name));
+                }
+                consume( SIGNING_BLOCK_MAGIC.length);
+                if (getLogger().isDebugEnabled()) getLogger().debug( String.format("Skipped the APK Signing Block at pos=0x%08x, size=%d, file=%s", start, 8 + blockSize, name));
+                return;
+            }
+        }
+
+        while (fill( 4) && peekInt() != CENTRAL_HEADER_SIGNATURE) consume( 1);
+        if (bufferLimit - bufferPos < 4) {
+            throw new ZipException( String.format("Central directory not found after pos=0x%08x, file=%s", start, name));
+        }
+        if (getLogger().isDebugEnabled()) getLogger().debug( String.format("Skipped %d bytes before the central directory at pos=0x%08x, file=%s", offset - start, start, name));
+    }
+
+    private boolean isSigningBlockMagic( int pos) {
+        for (int i = 0; i < SIGNING_BLOCK_MAGIC.length; i++) {
+            if (buffer[pos + i] != SIGNING_BLOCK_MAGIC[i]) return false;
+        }
+        return true;
+    }
+
+    /** Reads the deflated data of an entry whose sizes follow it in a data descriptor.  The
+     *  end of the data is found by inflating it.
+     */
+    private void readDescriptorEntry( ZioEntry entry) throws IOException
+    {
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        CRC32 crc = new CRC32();
+        long size = 0;
+        byte[] inflated = new byte[8192];
+
+        Inflater inflater = CodecPool.getInflater();
+        try {
+            int inputEnd = bufferPos;
+            while (!inflater.finished()) {
+                if (inflater.needsInput()) {
+                    if (bufferPos == bufferLimit && !fill( 1)) {
+                        throw new EOFException( String.format("EOF reached reading entry %s in %s", entry.getName(), name));
+                    }
+                    inflater.setInput( buffer, bufferPos, bufferLimit - bufferPos);
+                    inputEnd = bufferLimit;
+                }
+                int numInflated = inflater.inflate( inflated);
+                if (numInflated > 0) {
+                    crc.update( inflated, 0, numInflated);
+                    size += numInflated;
+                }
+                else if (!inflater.finished() && !inflater.needsInput()) {
+                    throw new ZipException( String.format("Entry %s in %s needs a preset dictionary", entry.getName(), name));
+                }
+                int consumed = inputEnd - inflater.getRemaining() - bufferPos;
+                raw.write( buffer, bufferPos, consumed);
+                consume( consumed);
+            }
+        }
+        catch (DataFormatException x) {
+            throw new ZipException( String.format("Invalid compressed data in entry %s in %s: %s", entry.getName(), name, x.getMessage()));
+        }
+        finally {
+            CodecPool.release( inflater);
+        }
+
+        // The descriptor signature is optional.
+        if (!fill( 4)) throw new EOFException( String.format("EOF reached reading data descriptor of %s in %s", entry.getName(), name));
+        if (peekInt() == DATA_DESCRIPTOR_SIGNATURE) consume( 4);
+        int crc32 = readInt();
+        long compressedSize;
+        long descriptorSize;
+        if (entry.hasZip64LocalHeader()) {
+            compressedSize = readLong();
+            descriptorSize = readLong();
+        }
+        else {
+            compressedSize = readInt() & 0xFFFFFFFFL;
+            descriptorSize = readInt() & 0xFFFFFFFFL;
+        }
+
+        if (crc32 != (int)crc.getValue() || compressedSize != raw.size() || descriptorSize != size) {
+            throw new ZipException( String.format("Data descriptor of %s doesn't match its data: crc=0x%08x/0x%08x, compressed size=%d/%d, size=%d/%d",
+                                                           entry.getName(), crc32, (int)crc.getValue(), compressedSize, raw.size(), descriptorSize, size));
+        }
+        entry.setStreamedData( raw.toByteArray(), crc32, compressedSize, size);
+    }
+
+    /** Reads the central directory and end records and reconciles them with the entries
+     *  already returned.  The central directory signature has already been consumed.
+     */
+    private void readCentralDirectory() throws IOException
+    {
+        boolean debug = getLogger().isDebugEnabled();
+        int numCentral = 0;
+        int signature = CENTRAL_HEADER_SIGNATURE;
+
+        while (signature == CENTRAL_HEADER_SIGNATURE) {
+            byte[] fixed = readBytes( 42);
+            ByteBuffer header = ByteBuffer.wrap( fixed).order( ByteOrder.LITTLE_ENDIAN);
+            int variableLen = (header.getShort( 24) & 0xFFFF) + (header.getShort( 26) & 0xFFFF) + (header.getShort( 28) & 0xFFFF);
+
+            ByteBuffer record = ByteBuffer.allocate( 4 + fixed.length + variableLen).order( ByteOrder.LITTLE_ENDIAN);
+            record.putInt( CENTRAL_HEADER_SIGNATURE);
+            record.put( fixed);
+            record.put( readBytes( variableLen));
+            record.flip();
+
+            ZioEntry central = ZioEntry.read( null, record);
+            ZioEntry local = entriesByOffset.remove( central.getLocalHeaderOffset());
+            if (local == null || !local.getName().equals( central.getName()) || local.getCrc32() != central.getCrc32() ||
+                local.getSize() != central.getSize() || (central.getSize() != 0 && local.getCompressedSize() != central.getCompressedSize()))
+            {
+                throw new ZipException( String.format("Central directory entry %s doesn't match the local entry at offset %d in %s",
+                                                               central.getName(), central.getLocalHeaderOffset(), name));
+            }
+            local.setCentralValues( central);
+            numCentral += 1;
+
+            signature = readInt();
+        }
+
+        if (signature == CentralEnd.ZIP64_END_SIGNATURE) {
+            long recordSize = readLong();
+            skip( recordSize);
+            signature = readInt();
+        }
+        if (signature == CentralEnd.ZIP64_LOCATOR_SIGNATURE) {
+            skip( CentralEnd.ZIP64_LOCATOR_SIZE - 4);
+            signature = readInt();
+        }
+        if (signature != 0x06054b50) {
+            throw new ZipException( String.format("End of central directory not found at pos=0x%08x, file=%s", offset - 4, name));
+        }
+
+        byte[] fixed = readBytes( 18);
+        int commentLen = ((fixed[16] & 0xFF) | ((fixed[17] & 0xFF) << 8));
+        ByteBuffer record = ByteBuffer.allocate( 22 + commentLen).order( ByteOrder.LITTLE_ENDIAN);
+        record.putInt( 0x06054b50);
+        record.put( fixed);
+        record.put( readBytes( commentLen));
+        record.flip();
+        centralEnd = CentralEnd.read( record);
+
+        if (!entriesByOffset.isEmpty()) {
+            throw new ZipException( String.format("%d local entries in %s are missing from the central directory", entriesByOffset.size(), name));
+        }
+        if (debug) getLogger().debug( String.format("Central directory of %s matches the %d entries read", name, numCentral));
+        entriesByOffset = null;
+    }
+
+    /** Makes at least n bytes available in the buffer.  Returns false if the stream ends first. */
+    private boolean fill( int n) throws IOException
+    {
+        if (bufferLimit - bufferPos >= n) return true;
+        if (bufferPos > 0) {
+            System.arraycopy( buffer, bufferPos, buffer, 0, bufferLimit - bufferPos);
+            bufferLimit -= bufferPos;
+            bufferPos = 0;
+        }
+        while (bufferLimit < n) {
+            int numRead = in.read( buffer, bufferLimit, buffer.length - bufferLimit);
+            if (numRead < 0) return false;
+            bufferLimit += numRead;
+        }
+        return true;
+    }
+
+    private void consume( int n) {
+        bufferPos += n;
+        offset += n;
+    }
+
+    private int peekInt() {
+        return peekInt( 0);
+    }
+
+    private int peekInt( int ahead) {
+        int pos = bufferPos + ahead;
+        return (buffer[pos] & 0xFF) | ((buffer[pos+1] & 0xFF) << 8) |
+            ((buffer[pos+2] & 0xFF) << 16) | ((buffer[pos+3] & 0xFF) << 24);
+    }
+
+    private int readInt() throws IOException {
+        if (!fill( 4)) throw new EOFException( String.format("EOF reached reading %s at position %d", name, offset));
+        int result = peekInt();
+        consume( 4);
+        return result;
+    }
+
+    private long readLong() throws IOException {
+        return (readInt() & 0xFFFFFFFFL) | ((long)readInt() << 32);
+    }
+
+    private byte[] readBytes( int length) throws IOException
+    {
+        byte[] result = new byte[length];
+        int count = Math.min( length, bufferLimit - bufferPos);
+        System.arraycopy( buffer, bufferPos, result, 0, count);
+        consume( count);
+        while (count < length) {
+            int numRead = in.read( result, count, length - count);
+            if (numRead < 0) throw new EOFException( String.format("EOF reached reading %s at position %d", name, offset));
+            count += numRead;
+            offset += numRead;
+        }
+        return result;
+    }
+
+    private void skip( long n) throws IOException {
+        while (n > 0) {
+            if (!fill( 1)) throw new EOFException( String.format("EOF reached reading %s at position %d", name, offset));
+            int count = (int)Math.min( n, bufferLimit - bufferPos);
+            consume( count);
+            n -= count;
+        }
+    }
+
+    /** Returns the number of entries read so far. */
+    public int getNumEntries() {
+        return numEntries;
+    }
+
+    public void close() throws IOException {
+        if (current != null) current.releaseStreamedData();
+        in.close();
+    }
+}
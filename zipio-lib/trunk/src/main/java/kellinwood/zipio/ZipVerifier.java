@@ -0,0 +1,445 @@
+/*
+ * Copyright (C) 2010 Ken Ellinwood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kellinwood.zipio;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Checks the integrity of a zip file.  Every entry is read with positional reads and inflated
+ * on a pool of threads, and its CRC-32 and size are compared with the central directory.  The
+ * local headers are checked against the central directory records, and entries that overlap
+ * each other or extend past the start of the central directory are reported.  The central
+ * directory is decoded again, so records sharing a name are each checked and reported too.
+ *
+ * Problems are collected rather than thrown, so one verify() call reports all of them.
+ */
+public class ZipVerifier {
+
+    /** A problem found in an entry, or in the file if the entry name is null. */
+    public static class Problem {
+        public final String entryName;
+        public final String message;
+
+        Problem( String entryName, String message) {
+            this.entryName = entryName;
+            this.message = message;
+        }
+
+        public String toString() {
+            return entryName == null ? message : entryName + ": " + message;
+        }
+    }
+
+    /** A central directory record.  The compression method, CRC and sizes are kept as stored,
+     *  since ZioEntry reads empty entries as stored with a zero CRC and sizes.
+     */
+    static class Record {
+        ZioEntry entry;
+        int compression;
+        int crc32;
+        long compressedSize;
+        long size;
+    }
+
+    static class EntryResult {
+        Record record;
+        ZioEntry entry;
+        long start;
+        long end;
+        List<Problem> problems = new ArrayList<Problem>();
+
+        void problem( String format, Object... args) {
+            problems.add( new Problem( entry.getName(), String.format( format, args)));
+        }
+    }
+
+    static final int BUFFER_SIZE = 65536;
+
+    ZipInput zipInput;
+    ExecutorService executor = null;
+    int threads = Runtime.getRuntime().availableProcessors();
+    long bytesVerified = 0;
+
+    public ZipVerifier( ZipInput zipInput) {
+        this.zipInput = zipInput;
+    }
+
+    /** Sets the number of threads of the pool created for each verify() call. */
+    public void setThreads( int threads) {
+        if (threads < 1) throw new IllegalArgumentException( "Invalid number of threads: " + threads);
+        this.threads = threads;
+    }
+
+    /** Verifies on the given executor instead of creating a pool, e.g., to share one between files. */
+    public void setExecutor( ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /** Returns the number of uncompressed bytes checked by the last verify() call. */
+    public long getBytesVerified() {
+        return bytesVerified;
+    }
+
+    /** Checks every entry and returns the problems found, an empty list if the file is intact. */
+    public List<Problem> verify() throws IOException
+    {
+        final long centralStart = zipInput.getCentralEnd().centralStartOffset;
+        ExecutorService pool = executor;
+        if (pool == null) {
+            pool = Executors.newFixedThreadPool( threads, new ThreadFactory() {
+                int count = 0;
+                public synchronized Thread newThread( Runnable r) {
+                    Thread thread = new Thread( r, "zipio-verify-" + (++count));
+                    thread.setDaemon( true);
+                    return thread;
+                }
+            });
+        }
+
+        List<Problem> problems = new ArrayList<Problem>();
+        List<Record> records = readCentralRecords( problems);
+
+        List<EntryResult> results = new ArrayList<EntryResult>();
+        List<Future<EntryResult>> futures = new ArrayList<Future<EntryResult>>();
+        try {
+            for (final Record record : records) {
+                futures.add( pool.submit( new Callable<EntryResult>() {
+                    public EntryResult call() throws IOException {
+                        return verifyEntry( record, centralStart);
+                    }
+                }));
+            }
+            for (Future<EntryResult> future : futures) results.add( getResult( future));
+        }
+        finally {
+            // After a failure, skip the entries not started yet but let the running ones finish,
+            // since interrupting a read closes the file's channel.
+            for (Future<EntryResult> future : futures) future.cancel( false);
+            if (pool != executor) {
+                pool.shutdown();
+                try {
+                    pool.awaitTermination( Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+                }
+                catch (InterruptedException x) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        bytesVerified = 0;
+        for (EntryResult result : results) {
+            problems.addAll( result.problems);
+            bytesVerified += result.record.size;
+        }
+        checkOverlaps( results, problems);
+        return problems;
+    }
+
+    /** Decodes every record of the central directory.  Records with the same name, which
+     *  ZipInput.getEntries() collapses into one, are reported and all of them verified.
+     */
+    List<Record> readCentralRecords( List<Problem> problems) throws IOException
+    {
+        CentralEnd centralEnd = zipInput.getCentralEnd();
+        ByteBuffer directory = zipInput.readCentralDirectory();
+        List<Record> records = new ArrayList<Record>( centralEnd.totalCentralEntries);
+        Map<String,ZioEntry> names = new HashMap<String,ZioEntry>();
+        for (int i = 0; i < centralEnd.totalCentralEntries; i++) {
+            int position = directory.position();
+            ZioEntry entry = ZioEntry.read( zipInput, directory);
+            if (entry == null) {
+                problems.add( new Problem( null, String.format("Central directory record %d of %d not found at offset %d",
+                                                               i, centralEnd.totalCentralEntries, centralEnd.centralStartOffset + position)));
+                break;
+            }
+            ZioEntry previous = names.put( entry.getName(), entry);
+            if (previous != null) {
+                problems.add( new Problem( entry.getName(), String.format("Duplicate central directory record, local headers at offsets %d and %d",
+                                                                          previous.getLocalHeaderOffset(), entry.getLocalHeaderOffset())));
+            }
+            // Values of 0xFFFFFFFF are in the ZIP64 extra field, as decoded into the entry.
+            Record record = new Record();
+            record.entry = entry;
+            record.compression = directory.getShort( position + 10) & 0xFFFF;
+            record.crc32 = directory.getInt( position + 16);
+            record.compressedSize = directory.getInt( position + 20) & 0xFFFFFFFFL;
+            if (record.compressedSize == ZioEntry.ZIP64_LIMIT) record.compressedSize = entry.getCompressedSize();
+            record.size = directory.getInt( position + 24) & 0xFFFFFFFFL;
+            if (record.size == ZioEntry.ZIP64_LIMIT) record.size = entry.getSize();
+            records.add( record);
+        }
+        return records;
+    }
+
+    private static EntryResult getResult( Future<EntryResult> future) throws IOException
+    {
+        try {
+            return future.get();
+        }
+        catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+            throw new IOException( "Interrupted while verifying");
+        }
+        catch (ExecutionException x) {
+            Throwable cause = x.getCause();
+            if (cause instanceof IOException) throw (IOException)cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+            throw new IllegalStateException( "Verification failed", cause);
+        }
+    }
+
+    private static void checkOverlaps( List<EntryResult> results, List<Problem> problems)
+    {
+        List<EntryResult> sorted = new ArrayList<EntryResult>( results);
+        Collections.sort( sorted, new Comparator<EntryResult>() {
+            public int compare( EntryResult a, EntryResult b) {
+                return a.start < b.start ? -1 : (a.start == b.start ? 0 : 1);
+            }
+        });
+        EntryResult previous = null;
+        for (EntryResult result : sorted) {
+            if (previous != null && result.start < previous.end) {
+                problems.add( new Problem( result.entry.getName(), String.format("Overlaps entry %s at offset %d",
+                                                                                 previous.entry.getName(), result.start)));
+            }
+            if (previous == null || result.end > previous.end) previous = result;
+        }
+    }
+
+    EntryResult verifyEntry( Record record, long centralStart) throws IOException
+    {
+        ZioEntry entry = record.entry;
+        EntryResult result = new EntryResult();
+        result.record = record;
+        result.entry = entry;
+        long offset = entry.getLocalHeaderOffset();
+        result.start = offset;
+        result.end = offset;
+
+        if (offset < 0 || offset + 30 > centralStart) {
+            result.problem( "Local header offset %d is outside the entry data", offset);
+            return result;
+        }
+
+        ByteBuffer header = ByteBuffer.allocate( 30).order( ByteOrder.LITTLE_ENDIAN);
+        zipInput.readFully( header, offset);
+        if (header.getInt( 0) != 0x04034b50) {
+            result.problem( "Local header not found at offset %d", offset);
+            return result;
+        }
+
+        int flags = header.getShort( 6) & 0xFFFF;
+        int compression = header.getShort( 8) & 0xFFFF;
+        int localCrc = header.getInt( 14);
+        long localCompressedSize = header.getInt( 18) & 0xFFFFFFFFL;
+        long localSize = header.getInt( 22) & 0xFFFFFFFFL;
+        int nameLen = header.getShort( 26) & 0xFFFF;
+        int extraLen = header.getShort( 28) & 0xFFFF;
+        long dataPosition = offset + 30 + nameLen + extraLen;
+        long dataEnd = dataPosition + record.compressedSize;
+        result.end = dataEnd;
+
+        if (dataEnd > centralStart) {
+            result.problem( "Data at %d-%d extends past the central directory at %d", dataPosition, dataEnd, centralStart);
+            return result;
+        }
+
+        ByteBuffer nameAndExtra = ByteBuffer.allocate( nameLen + extraLen).order( ByteOrder.LITTLE_ENDIAN);
+        zipInput.readFully( nameAndExtra, offset + 30);
+        String localName = new String( nameAndExtra.array(), 0, nameLen);
+        if (!localName.equals( entry.getName())) result.problem( "Local header name is %s", localName);
+        if (compression != record.compression) {
+            result.problem( "Local header compression method %d, central directory has %d", compression, record.compression);
+        }
+
+        // Sizes in a data descriptor are 8 bytes each after a local header with ZIP64 sizes, or
+        // for sizes too large for 4 bytes, since java.util.zip doesn't add the field in advance.
+        boolean zip64 = localCompressedSize == ZioEntry.ZIP64_LIMIT || localSize == ZioEntry.ZIP64_LIMIT ||
+            hasZip64Field( nameAndExtra, nameLen) || record.compressedSize >= ZioEntry.ZIP64_LIMIT || record.size >= ZioEntry.ZIP64_LIMIT;
+        if ((flags & 0x0008) == 0) {
+            if (localCrc != record.crc32) {
+                result.problem( "Local header CRC-32 0x%08x, central directory has 0x%08x", localCrc, record.crc32);
+            }
+            if (!zip64 && (localCompressedSize != record.compressedSize || localSize != record.size)) {
+                result.problem( "Local header sizes %d/%d, central directory has %d/%d",
+                                localCompressedSize, localSize, record.compressedSize, record.size);
+            }
+        }
+        else result.end = checkDataDescriptor( result, dataEnd, zip64, centralStart);
+
+        if (compression == 0 && record.compressedSize != record.size) {
+            result.problem( "Stored entry has compressed size %d and size %d", record.compressedSize, record.size);
+        }
+        if (compression != 0 && compression != 8) {
+            result.problem( "Unsupported compression method %d", compression);
+            return result;
+        }
+
+        checkData( result, dataPosition, record.compressedSize, compression);
+        return result;
+    }
+
+    /** Returns true if the local header's extra data, which follows the name in the buffer, has
+     *  a ZIP64 field, which makes the sizes in a data descriptor 8 bytes each.
+     */
+    private static boolean hasZip64Field( ByteBuffer nameAndExtra, int nameLen)
+    {
+        int position = nameLen;
+        while (position + 4 <= nameAndExtra.capacity()) {
+            if (nameAndExtra.getShort( position) == ZioEntry.ZIP64_EXTRA_ID) return true;
+            position += 4 + (nameAndExtra.getShort( position + 2) & 0xFFFF);
+        }
+        return false;
+    }
+
+    /** Checks the data descriptor following the data, and returns the position after it. */
+    private long checkDataDescriptor( EntryResult result, long position, boolean zip64, long centralStart) throws IOException
+    {
+        Record record = result.record;
+        int sizesLength = zip64 ? 16 : 8;
+        if (position + 4 + sizesLength > centralStart) {
+            result.problem( "Data descriptor at %d extends past the central directory", position);
+            return position;
+        }
+        ByteBuffer descriptor = ByteBuffer.allocate( 8 + sizesLength).order( ByteOrder.LITTLE_ENDIAN);
+        descriptor.limit( (int)Math.min( descriptor.capacity(), centralStart - position));
+        zipInput.readFully( descriptor, position);
+        // The signature is optional.
+        int crcOffset = descriptor.getInt( 0) == 0x08074b50 ? 4 : 0;
+        if (crcOffset + 4 + sizesLength > descriptor.limit()) {
+            result.problem( "Data descriptor at %d extends past the central directory", position);
+            return position;
+        }
+        int crc = descriptor.getInt( crcOffset);
+        long compressedSize = zip64 ? descriptor.getLong( crcOffset + 4) : descriptor.getInt( crcOffset + 4) & 0xFFFFFFFFL;
+        long size = zip64 ? descriptor.getLong( crcOffset + 12) : descriptor.getInt( crcOffset + 8) & 0xFFFFFFFFL;
+        if (crc != record.crc32) {
+            result.problem( "Data descriptor CRC-32 0x%08x, central directory has 0x%08x", crc, record.crc32);
+        }
+        if (compressedSize != record.compressedSize || size != record.size) {
+            result.problem( "Data descriptor sizes %d/%d, central directory has %d/%d",
+                            compressedSize, size, record.compressedSize, record.size);
+        }
+        return position + crcOffset + 4 + sizesLength;
+    }
+
+    /** Reads and, if compressed, inflates the data and checks its CRC-32 and size. */
+    private void checkData( EntryResult result, long position, long compressedSize, int compression) throws IOException
+    {
+        if (compression == 0 && compressedSize >= ParallelCRC32.PARALLEL_THRESHOLD && position + compressedSize <= zipInput.getFileLength()) {
+            // Large stored data is checksummed in chunks on several threads.
+            checkSizeAndCrc( result, compressedSize, ParallelCRC32.compute( zipInput, position, compressedSize));
+            return;
+        }
+
+        CRC32 crc = new CRC32();
+        long size = 0;
+        long remaining = compressedSize;
+        ByteBuffer input = ByteBuffer.allocate( (int)Math.min( BUFFER_SIZE, Math.max( remaining, 1)));
+
+        Inflater inflater = compression == 0 ? null : CodecPool.getInflater();
+        byte[] output = compression == 0 ? null : new byte[BUFFER_SIZE];
+        try {
+            while (remaining > 0) {
+                input.clear();
+                input.limit( (int)Math.min( input.capacity(), remaining));
+                try {
+                    zipInput.readFully( input, position);
+                }
+                catch (EOFException x) {
+                    result.problem( "Data is truncated at %d", position);
+                    return;
+                }
+                int length = input.position();
+                position += length;
+                remaining -= length;
+
+                if (inflater == null) {
+                    crc.update( input.array(), 0, length);
+                    size += length;
+                    continue;
+                }
+                inflater.setInput( input.array(), 0, length);
+                size += inflate( inflater, output, crc);
+                if (inflater.finished() && remaining > 0) {
+                    result.problem( "Compressed data ends %d bytes early", remaining + inflater.getRemaining());
+                    return;
+                }
+            }
+            if (inflater != null && !inflater.finished()) {
+                // Inflater needs a dummy byte after the data when the zlib header isn't used.
+                inflater.setInput( new byte[1]);
+                size += inflate( inflater, output, crc);
+                if (!inflater.finished()) {
+                    result.problem( "Compressed data is incomplete");
+                    return;
+                }
+            }
+        }
+        catch (DataFormatException x) {
+            result.problem( "Invalid compressed data: %s", x.getMessage());
+            return;
+        }
+        finally {
+            if (inflater != null) CodecPool.release( inflater);
+        }
+
+        checkSizeAndCrc( result, size, (int)crc.getValue());
+    }
+
+    private static void checkSizeAndCrc( EntryResult result, long size, int crc)
+    {
+        Record record = result.record;
+        if (size != record.size) result.problem( "Size is %d, central directory has %d", size, record.size);
+        if (crc != record.crc32) {
+            result.problem( "CRC-32 is 0x%08x, central directory has 0x%08x", crc, record.crc32);
+        }
+    }
+
+    private static long inflate( Inflater inflater, byte[] output, CRC32 crc) throws DataFormatException
+    {
+        long count = 0;
+        while (!inflater.finished()) {
+            int numInflated = inflater.inflate( output);
+            if (numInflated == 0) {
+                if (inflater.needsDictionary()) throw new DataFormatException( "Preset dictionary required");
+                if (inflater.needsInput()) break;
+            }
+            crc.update( output, 0, numInflated);
+            count += numInflated;
+        }
+        return count;
+    }
+}
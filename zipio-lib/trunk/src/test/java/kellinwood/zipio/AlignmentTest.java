@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2010 Ken Ellinwood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kellinwood.zipio;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import org.junit.* ;
+import static org.junit.Assert.* ;
+
+public class AlignmentTest extends AbstractTest {
+
+    static ZioEntry stored( String name, byte[] content) throws Exception {
+        ZioEntry entry = new ZioEntry( name);
+        entry.setCompression( 0);
+        entry.getOutputStream().write( content);
+        return entry;
+    }
+
+    /** Returns the alignment recorded in the local header at the offset, checking the data is aligned. */
+    static int checkLocalHeader( byte[] zip, long headerOffset) {
+        int offset = (int)headerOffset;
+        ByteBuffer header = ByteBuffer.wrap( zip).order( ByteOrder.LITTLE_ENDIAN);
+        assertEquals( 0x04034b50, header.getInt( offset));
+        int nameLen = header.getShort( offset + 26) & 0xFFFF;
+        int extraLen = header.getShort( offset + 28) & 0xFFFF;
+        int dataPos = offset + 30 + nameLen + extraLen;
+        for (int pos = offset + 30 + nameLen; pos + 4 <= offset + 30 + nameLen + extraLen; ) {
+            int id = header.getShort( pos) & 0xFFFF;
+            int len = header.getShort( pos + 2) & 0xFFFF;
+            if (id == 0xD935) {
+                int alignment = header.getShort( pos + 4) & 0xFFFF;
+                assertEquals( 0, dataPos % alignment);
+                return alignment;
+            }
+            pos += 4 + len;
+        }
+        return 0;
+    }
+
+    @Test
+    public void alignmentTest() {
+
+        try {
+            setupLogging();
+
+            byte[] content = new byte[5000];
+            Arrays.fill( content, (byte)7);
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ZipOutput zipOutput = new ZipOutput( bytes);
+            zipOutput.setAlignmentPolicy( new AlignmentPolicy().addRule( "assets/**.bin", 64));
+            ZioEntry text = stored( "a.txt", "abc".getBytes());
+            zipOutput.write( text);
+            ZioEntry lib = stored( "lib/arm64-v8a/libfoo.so", content);
+            zipOutput.write( lib);
+            ZioEntry asset = stored( "assets/data/table.bin", content);
+            zipOutput.write( asset);
+            ZioEntry big = stored( "lib/arm64-v8a/libbar.so", content);
+            big.setAlignment( AlignmentPolicy.PAGE_ALIGNMENT_16K);
+            zipOutput.write( big);
+            zipOutput.close();
+
+            byte[] zip = bytes.toByteArray();
+            assertEquals( 4, checkLocalHeader( zip, text.getLocalHeaderOffset()));
+            assertEquals( 4096, checkLocalHeader( zip, lib.getLocalHeaderOffset()));
+            assertEquals( 64, checkLocalHeader( zip, asset.getLocalHeaderOffset()));
+            assertEquals( 16384, checkLocalHeader( zip, big.getLocalHeaderOffset()));
+
+            // Copying the entries keeps their alignment, and the field isn't part of the extra data.
+            ZipInput zipInput = ZipInput.read( zip);
+            ZioEntry readLib = zipInput.getEntry( "lib/arm64-v8a/libfoo.so");
+            assertEquals( 0, readLib.getExtraData().length);
+            assertTrue( Arrays.equals( content, readLib.getData()));
+
+            bytes = new ByteArrayOutputStream();
+            zipOutput = new ZipOutput( bytes);
+            for (ZioEntry entry : zipInput.getEntries().values()) zipOutput.write( entry);
+            zipOutput.close();
+            zip = bytes.toByteArray();
+            zipInput.close();
+
+            zipInput = ZipInput.read( zip);
+            assertEquals( 4096, checkLocalHeader( zip, zipInput.getEntry( "lib/arm64-v8a/libfoo.so").getLocalHeaderOffset()));
+            assertEquals( 64, checkLocalHeader( zip, zipInput.getEntry( "assets/data/table.bin").getLocalHeaderOffset()));
+            assertEquals( 16384, checkLocalHeader( zip, zipInput.getEntry( "lib/arm64-v8a/libbar.so").getLocalHeaderOffset()));
+            assertTrue( Arrays.equals( content, zipInput.getEntry( "lib/arm64-v8a/libbar.so").getData()));
+            zipInput.close();
+        }
+        catch (Exception x) {
+            getLogger().error( x.getMessage(), x);
+            fail( x.getClass().getName() + ": " + x.getMessage());
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2010 Ken Ellinwood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kellinwood.zipio;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.junit.* ;
+import static org.junit.Assert.* ;
+
+public class CodecPoolTest extends AbstractTest {
+
+    @Test
+    public void reuseTest() {
+
+        try {
+            setupLogging();
+
+            CodecPool.clear();
+            CodecPool.resetStatistics();
+
+            String siblingFile = getClass().getResource("/simple_test.zip").getFile();
+            File sfile = new File(siblingFile);
+            File outputFile = new File(sfile.getParent(), "test_codec_pool.zip");
+
+            ZipOutput zipOutput = new ZipOutput( outputFile);
+            for (int i = 0; i < 10; i++) {
+                ZioEntry entry = new ZioEntry( String.format("entry%d.txt", i));
+                OutputStream entryOut = entry.getOutputStream();
+                entryOut.write( String.format("The quick brown fox %d jumps over the lazy dog %d", i, i).getBytes());
+                zipOutput.write(entry);
+            }
+            zipOutput.close();
+
+            // Entries are written one at a time, so only the first needs a new deflater.
+            assertEquals( 1L, CodecPool.getDeflaterMisses());
+            assertEquals( 9L, CodecPool.getDeflaterHits());
+
+            ZipInput zipInput = ZipInput.read( outputFile.getAbsolutePath());
+            for (int i = 0; i < 10; i++) {
+                ZioEntry entry = zipInput.getEntry( String.format("entry%d.txt", i));
+                assertEquals( String.format("The quick brown fox %d jumps over the lazy dog %d", i, i), new String( entry.getData()));
+            }
+
+            // A stream read to the end gives its inflater back even if it isn't closed.
+            InputStream in = zipInput.getEntry( "entry0.txt").getInputStream();
+            while (in.read() >= 0);
+
+            assertEquals( 1L, CodecPool.getInflaterMisses());
+            assertEquals( 10L, CodecPool.getInflaterHits());
+            zipInput.close();
+
+            // Beyond the pool's capacity released instances are ended rather than kept.
+            CodecPool.setMaxPerStripe( 1);
+            Inflater first = CodecPool.getInflater();
+            Inflater second = CodecPool.getInflater();
+            CodecPool.release( first);
+            CodecPool.release( second);
+            assertSame( first, CodecPool.getInflater());
+            assertNotSame( second, CodecPool.getInflater());
+
+            Deflater deflater = CodecPool.getDeflater( Deflater.BEST_SPEED);
+            CodecPool.release( deflater);
+            assertSame( deflater, CodecPool.getDeflater( Deflater.BEST_COMPRESSION));
+        }
+        catch (Exception x) {
+            getLogger().error( x.getMessage(), x);
+            fail( x.getClass().getName() + ": " + x.getMessage());
+        }
+        finally {
+            CodecPool.setMaxPerStripe( 4);
+        }
+    }
+}
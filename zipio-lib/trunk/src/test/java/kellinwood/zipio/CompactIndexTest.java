@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2010 Ken Ellinwood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kellinwood.zipio;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.* ;
+import static org.junit.Assert.* ;
+
+public class CompactIndexTest extends AbstractTest {
+
+    @Test
+    public void compactReadTest() {
+
+        try {
+            setupLogging();
+
+            String inputFile = getClass().getResource("/simple_test.zip").getFile();
+
+            ZipInput zipInput = ZipInput.read( inputFile);
+            ZipInput compactInput = ZipInput.read( inputFile, ZipInput.COMPACT_INDEX | ZipInput.MEMORY_MAPPED);
+
+            assertNull( zipInput.getIndex());
+            assertNotNull( compactInput.getIndex());
+            assertEquals( zipInput.getEntries().size(), compactInput.getEntries().size());
+
+            // Same names in the same order
+            List<String> names = new ArrayList<String>( compactInput.getEntries().keySet());
+            assertEquals( new ArrayList<String>( zipInput.getEntries().keySet()), names);
+
+            for (ZioEntry entry : zipInput.getEntries().values()) {
+                ZioEntry compactEntry = compactInput.getEntry( entry.getName());
+                assertNotNull( compactEntry);
+                assertEquals( entry.getCrc32(), compactEntry.getCrc32());
+                assertEquals( entry.getSize(), compactEntry.getSize());
+                assertTrue( Arrays.equals( entry.getData(), compactEntry.getData()));
+
+                CentralDirectoryIndex index = compactInput.getIndex();
+                int i = index.find( entry.getName());
+                assertEquals( entry.getLocalHeaderOffset(), index.getLocalHeaderOffset( i));
+                assertEquals( entry.getCompressedSize(), index.getCompressedSize( i));
+            }
+
+            assertNull( compactInput.getEntry( "missing.txt"));
+            assertFalse( compactInput.getEntries().containsKey( "missing.txt"));
+
+            zipInput.close();
+            compactInput.close();
+        }
+        catch (Exception x) {
+            getLogger().error( x.getMessage(), x);
+            fail( x.getClass().getName() + ": " + x.getMessage());
+        }
+    }
+
+    @Test
+    public void compactCopyTest() {
+
+        try {
+            setupLogging();
+
+            String siblingFile = getClass().getResource("/simple_test.zip").getFile();
+            ZipInput zipInput = ZipInput.read( siblingFile, ZipInput.COMPACT_INDEX);
+
+            File sfile = new File(siblingFile);
+            File outputFile = new File(sfile.getParent(), "test_compact_copy.zip");
+
+            ZipOutput zipOutput = new ZipOutput( outputFile);
+            for (ZioEntry e : zipInput.getEntries().values()) {
+                zipOutput.write(e);
+            }
+            zipOutput.close();
+
+            // verify the result
+            ZipInput copyInput = ZipInput.read( outputFile.getAbsolutePath());
+            assertEquals( zipInput.getEntries().size(), copyInput.getEntries().size());
+            for (ZioEntry entry : copyInput.getEntries().values()) {
+                assertTrue( Arrays.equals( entry.getData(), zipInput.getEntry( entry.getName()).getData()));
+            }
+
+            zipInput.close();
+            copyInput.close();
+        }
+        catch (Exception x) {
+            getLogger().error( x.getMessage(), x);
+            fail( x.getClass().getName() + ": " + x.getMessage());
+        }
+    }
+}
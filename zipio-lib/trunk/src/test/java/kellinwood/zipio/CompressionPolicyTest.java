@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2010 Ken Ellinwood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kellinwood.zipio;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import org.junit.* ;
+import static org.junit.Assert.* ;
+
+public class CompressionPolicyTest extends AbstractTest {
+
+    static byte[] text( int length) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; sb.length() < length; i++) sb.append( "line ").append( i).append( '\n');
+        return sb.toString().substring( 0, length).getBytes();
+    }
+
+    @Test
+    public void rulesTest() {
+
+        CompressionPolicy policy = new CompressionPolicy( 6, Deflater.DEFAULT_STRATEGY)
+            .addExtensionRule( "png", Deflater.NO_COMPRESSION, Deflater.DEFAULT_STRATEGY)
+            .addGlobRule( "assets/**.dat", Deflater.BEST_SPEED, Deflater.FILTERED)
+            .addGlobRule( "res/raw/*", Deflater.NO_COMPRESSION, Deflater.DEFAULT_STRATEGY)
+            .addSizeRule( 1000000, -1, Deflater.BEST_SPEED, Deflater.DEFAULT_STRATEGY);
+
+        ZioEntry entry = new ZioEntry( "res/drawable/ICON.PNG");
+        policy.apply( entry, text( 1000));
+        assertEquals( 0, (int)entry.getCompression());
+
+        entry = new ZioEntry( "assets/maps/level1.dat");
+        policy.apply( entry, text( 1000));
+        assertEquals( 8, (int)entry.getCompression());
+        assertEquals( Deflater.BEST_SPEED, entry.getLevel());
+        assertEquals( Deflater.FILTERED, entry.getStrategy());
+
+        entry = new ZioEntry( "res/raw/sound.wav");
+        policy.apply( entry, text( 1000));
+        assertEquals( 0, (int)entry.getCompression());
+
+        // '*' doesn't match across directories.
+        entry = new ZioEntry( "res/raw/sub/sound.wav");
+        policy.apply( entry, text( 1000));
+        assertEquals( 8, (int)entry.getCompression());
+        assertEquals( 6, entry.getLevel());
+
+        // Size rules only match when the size is known.
+        entry = new ZioEntry( "classes.dex");
+        policy.apply( entry, 2000000, null, 0);
+        assertEquals( Deflater.BEST_SPEED, entry.getLevel());
+        entry = new ZioEntry( "classes.dex");
+        policy.apply( entry, -1, null, 0);
+        assertEquals( 6, entry.getLevel());
+
+        // Empty entries are always stored.
+        entry = new ZioEntry( "empty.txt");
+        policy.apply( entry, new byte[0]);
+        assertEquals( 0, (int)entry.getCompression());
+    }
+
+    @Test
+    public void presetTest() {
+
+        try {
+            setupLogging();
+
+            byte[] noise = new byte[20000];
+            new Random( 3).nextBytes( noise);
+            byte[] text = text( 20000);
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ZipOutput zipOutput = new ZipOutput( bytes);
+            zipOutput.setCompressionPolicy( CompressionPolicy.getPreset( CompressionPolicy.PRESET_BALANCED));
+            ZioEntry photo = new ZioEntry( "photo.jpg");
+            zipOutput.write( photo, text);
+            ZioEntry random = new ZioEntry( "random.bin");
+            zipOutput.write( random, noise);
+            ZioEntry document = new ZioEntry( "document.txt");
+            zipOutput.write( document, text);
+            zipOutput.close();
+
+            assertEquals( 0, (int)photo.getCompression());
+            assertEquals( 0, (int)random.getCompression());
+            assertEquals( 8, (int)document.getCompression());
+            assertEquals( 6, document.getLevel());
+            assertTrue( document.getCompressedSize() < text.length / 2);
+
+            ZipInput zipInput = ZipInput.read( bytes.toByteArray());
+            assertTrue( Arrays.equals( text, zipInput.getEntry( "photo.jpg").getData()));
+            assertTrue( Arrays.equals( noise, zipInput.getEntry( "random.bin").getData()));
+            assertTrue( Arrays.equals( text, zipInput.getEntry( "document.txt").getData()));
+            zipInput.close();
+
+            try {
+                CompressionPolicy.getPreset( "smallest");
+                fail( "Expected IllegalArgumentException");
+            }
+            catch (IllegalArgumentException x) {}
+        }
+        catch (Exception x) {
+            getLogger().error( x.getMessage(), x);
+            fail( x.getClass().getName() + ": " + x.getMessage());
+        }
+    }
+}
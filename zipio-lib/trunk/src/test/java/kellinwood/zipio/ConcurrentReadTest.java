@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2010 Ken Ellinwood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kellinwood.zipio;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.* ;
+import static org.junit.Assert.* ;
+
+public class ConcurrentReadTest extends AbstractTest {
+
+    static final int NUM_ENTRIES = 32;
+    static final int NUM_THREADS = 8;
+
+    static byte[] content( int i) {
+        StringBuilder sb = new StringBuilder();
+        for (int j = 0; j < 2000 + i * 37; j++) {
+            sb.append( "entry ").append( i).append( " line ").append( j).append( '\n');
+        }
+        return sb.toString().getBytes();
+    }
+
+    @Test
+    public void concurrentStreamsTest() {
+
+        try {
+            setupLogging();
+
+            String siblingFile = getClass().getResource("/simple_test.zip").getFile();
+            File sfile = new File(siblingFile);
+            File outputFile = new File(sfile.getParent(), "test_concurrent.zip");
+
+            ZipOutput zipOutput = new ZipOutput( outputFile);
+            for (int i = 0; i < NUM_ENTRIES; i++) {
+                ZioEntry entry = new ZioEntry( String.format("entry%d.txt", i));
+                OutputStream entryOut = entry.getOutputStream();
+                entryOut.write( content(i));
+                zipOutput.write(entry);
+            }
+            zipOutput.close();
+
+            // Streams from both read modes share one ZipInput between all the threads.
+            final ZipInput[] inputs = new ZipInput[] {
+                ZipInput.read( outputFile.getAbsolutePath()),
+                ZipInput.read( outputFile.getAbsolutePath(), ZipInput.MEMORY_MAPPED)
+            };
+
+            final List<String> failures = new ArrayList<String>();
+            List<Thread> threads = new ArrayList<Thread>();
+            for (int t = 0; t < NUM_THREADS; t++) {
+                final int offset = t;
+                Thread thread = new Thread() {
+                    public void run() {
+                        try {
+                            for (int n = 0; n < NUM_ENTRIES; n++) {
+                                int i = (n + offset) % NUM_ENTRIES;
+                                ZioEntry entry = inputs[offset % 2].getEntry( String.format("entry%d.txt", i));
+                                InputStream in = entry.getInputStream();
+                                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                                byte[] buffer = new byte[517];
+                                int numRead;
+                                while ((numRead = in.read( buffer)) > 0) bytes.write( buffer, 0, numRead);
+                                in.close();
+                                if (!Arrays.equals( content(i), bytes.toByteArray())) {
+                                    synchronized (failures) { failures.add( entry.getName()); }
+                                }
+                            }
+                        }
+                        catch (Exception x) {
+                            synchronized (failures) { failures.add( x.getClass().getName() + ": " + x.getMessage()); }
+                        }
+                    }
+                };
+                threads.add( thread);
+                thread.start();
+            }
+            for (Thread thread : threads) thread.join();
+
+            assertTrue( "Mismatched reads: " + failures, failures.isEmpty());
+
+            inputs[0].close();
+            inputs[1].close();
+        }
+        catch (Exception x) {
+            getLogger().error( x.getMessage(), x);
+            fail( x.getClass().getName() + ": " + x.getMessage());
+        }
+    }
+}
@@ -15,9 +15,12 @@
  */
 package kellinwood.zipio;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.OutputStream;
+import java.util.Arrays;
 import java.util.Properties;
 
 import kellinwood.logging.LoggerInterface;
@@ -168,4 +171,46 @@ public class CreateZipFileTest extends AbstractTest {
             fail( x.getClass().getName() + ": " + x.getMessage());
         }      
     }    
+
+    @Test
+    public void transferCopyTest() {
+
+        try {
+            setupLogging();
+
+            // Raw copies to a file use FileChannel.transferTo(), copies to other streams go
+            // through a buffer.  Both must produce the same bytes.
+            String siblingFile = getClass().getResource("/simple_test.zip").getFile();
+            ZipInput zipInput = ZipInput.read( siblingFile);
+
+            File sfile = new File(siblingFile);
+            File outputFile = new File(sfile.getParent(), "test_transfer.zip");
+
+            ZipOutput fileOutput = new ZipOutput( outputFile);
+            for (ZioEntry e : zipInput.getEntries().values()) {
+                fileOutput.write(e);
+            }
+            fileOutput.close();
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ZipOutput streamOutput = new ZipOutput( bytes);
+            for (ZioEntry e : zipInput.getEntries().values()) {
+                streamOutput.write(e);
+            }
+            streamOutput.close();
+            zipInput.close();
+
+            byte[] fileBytes = new byte[(int)outputFile.length()];
+            FileInputStream fis = new FileInputStream( outputFile);
+            int count = 0;
+            while (count < fileBytes.length) count += fis.read( fileBytes, count, fileBytes.length - count);
+            fis.close();
+
+            assertTrue( Arrays.equals( bytes.toByteArray(), fileBytes));
+        }
+        catch (Exception x) {
+            getLogger().error( x.getMessage(), x);
+            fail( x.getClass().getName() + ": " + x.getMessage());
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2010 Ken Ellinwood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kellinwood.zipio;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.* ;
+import static org.junit.Assert.* ;
+
+public class DataCacheTest extends AbstractTest {
+
+    @Test
+    public void cacheTest() {
+
+        try {
+            setupLogging();
+
+            String siblingFile = getClass().getResource("/simple_test.zip").getFile();
+            File file = new File( new File( siblingFile).getParent(), "test_data_cache.zip");
+            final byte[][] contents = new byte[4][];
+            Random random = new Random( 9);
+            ZipOutput zipOutput = new ZipOutput( file);
+            for (int i = 0; i < contents.length; i++) {
+                contents[i] = new byte[i == 3 ? 5000 : 1000];
+                for (int j = 0; j < contents[i].length; j++) contents[i][j] = (byte)('a' + random.nextInt( 4));
+                zipOutput.write( new ZioEntry( "entry" + i), contents[i]);
+            }
+            zipOutput.close();
+
+            final ZipInput zipInput = ZipInput.read( file.getAbsolutePath());
+            assertNull( zipInput.getDataCache());
+            zipInput.setDataCache( 2500);
+            DataCache cache = zipInput.getDataCache();
+
+            ZioEntry entry0 = zipInput.getEntry( "entry0");
+            byte[] data = entry0.getData();
+            assertTrue( Arrays.equals( contents[0], data));
+            assertEquals( 1L, cache.getMisses());
+            // Callers get their own copy.
+            data[0] = 0;
+            assertTrue( Arrays.equals( contents[0], entry0.getData()));
+            assertEquals( 1L, cache.getHits());
+
+            zipInput.getEntry( "entry1").getData();
+            assertEquals( 2000L, cache.getBytes());
+            // Using entry0 makes entry1 the least recently used.
+            entry0.getData();
+            zipInput.getEntry( "entry2").getData();
+            assertEquals( 1L, cache.getEvictions());
+            assertEquals( 2, cache.getNumEntries());
+            assertTrue( Arrays.equals( contents[0], entry0.getData()));
+            assertEquals( 3L, cache.getHits());
+
+            // Too large to cache.
+            assertTrue( Arrays.equals( contents[3], zipInput.getEntry( "entry3").getData()));
+            assertEquals( 2000L, cache.getBytes());
+
+            // Concurrent readers.
+            cache.clear();
+            cache.resetStatistics();
+            final AtomicInteger failures = new AtomicInteger( 0);
+            List<Thread> threads = new ArrayList<Thread>();
+            for (int t = 0; t < 4; t++) {
+                Thread thread = new Thread( new Runnable() {
+                    public void run() {
+                        try {
+                            for (int i = 0; i < 200; i++) {
+                                int n = i % contents.length;
+                                if (!Arrays.equals( contents[n], zipInput.getEntry( "entry" + n).getData())) failures.incrementAndGet();
+                            }
+                        }
+                        catch (Exception x) {
+                            failures.incrementAndGet();
+                        }
+                    }
+                });
+                thread.start();
+                threads.add( thread);
+            }
+            for (Thread thread : threads) thread.join();
+            assertEquals( 0, failures.get());
+            assertEquals( 800L, cache.getHits() + cache.getMisses());
+            assertTrue( cache.getBytes() <= 2500);
+
+            zipInput.setDataCache( 0);
+            assertNull( zipInput.getDataCache());
+            zipInput.close();
+        }
+        catch (Exception x) {
+            getLogger().error( x.getMessage(), x);
+            fail( x.getClass().getName() + ": " + x.getMessage());
+        }
+    }
+}
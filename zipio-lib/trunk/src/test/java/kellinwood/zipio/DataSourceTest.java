@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2010 Ken Ellinwood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kellinwood.zipio;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.* ;
+import static org.junit.Assert.* ;
+
+public class DataSourceTest extends AbstractTest {
+
+    static byte[] readFile( String filename) throws Exception {
+        File file = new File( filename);
+        byte[] data = new byte[(int)file.length()];
+        FileInputStream in = new FileInputStream( file);
+        int count = 0;
+        while (count < data.length) count += in.read( data, count, data.length - count);
+        in.close();
+        return data;
+    }
+
+    static void assertSameEntries( ZipInput expected, ZipInput actual) throws Exception {
+        assertEquals( expected.getEntries().keySet(), actual.getEntries().keySet());
+        for (ZioEntry entry : expected.getEntries().values()) {
+            ZioEntry other = actual.getEntry( entry.getName());
+            assertEquals( entry.getCrc32(), other.getCrc32());
+            assertTrue( Arrays.equals( entry.getData(), other.getData()));
+        }
+    }
+
+    @Test
+    public void sourcesTest() {
+
+        try {
+            setupLogging();
+
+            String inputFile = getClass().getResource("/simple_test.zip").getFile();
+            byte[] data = readFile( inputFile);
+
+            ZipInput fileInput = ZipInput.read( inputFile);
+
+            ZipInput arrayInput = ZipInput.read( data);
+            assertTrue( arrayInput.isMemoryMapped());
+            assertSameEntries( fileInput, arrayInput);
+
+            // A direct buffer with the zip file somewhere in the middle of it.
+            ByteBuffer direct = ByteBuffer.allocateDirect( data.length + 100);
+            direct.position( 37);
+            direct.put( data);
+            direct.position( 37);
+            direct.limit( 37 + data.length);
+            ZipInput bufferInput = ZipInput.read( direct);
+            assertSameEntries( fileInput, bufferInput);
+            assertEquals( 37, direct.position());
+
+            RandomAccessFile raf = new RandomAccessFile( inputFile, "r");
+            ZipInput channelInput = ZipInput.read( new FileDataSource( raf.getChannel(), inputFile), ZipInput.COMPACT_INDEX);
+            assertSameEntries( fileInput, channelInput);
+
+            fileInput.close();
+            arrayInput.close();
+            bufferInput.close();
+            channelInput.close();
+        }
+        catch (Exception x) {
+            getLogger().error( x.getMessage(), x);
+            fail( x.getClass().getName() + ": " + x.getMessage());
+        }
+    }
+
+    @Test
+    public void memoryCopyTest() {
+
+        try {
+            setupLogging();
+
+            String inputFile = getClass().getResource("/simple_test.zip").getFile();
+            ZipInput zipInput = ZipInput.read( readFile( inputFile));
+
+            // Copy to a file, where the channel transfer isn't available for a memory source.
+            File outputFile = new File( new File( inputFile).getParent(), "test_memory_copy.zip");
+            ZipOutput zipOutput = new ZipOutput( outputFile);
+            for (ZioEntry e : zipInput.getEntries().values()) zipOutput.write(e);
+            zipOutput.close();
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            zipOutput = new ZipOutput( bytes);
+            for (ZioEntry e : zipInput.getEntries().values()) zipOutput.write(e);
+            zipOutput.close();
+
+            assertTrue( Arrays.equals( readFile( outputFile.getAbsolutePath()), bytes.toByteArray()));
+
+            ZipInput copyInput = ZipInput.read( bytes.toByteArray());
+            assertSameEntries( zipInput, copyInput);
+
+            zipInput.close();
+            copyInput.close();
+        }
+        catch (Exception x) {
+            getLogger().error( x.getMessage(), x);
+            fail( x.getClass().getName() + ": " + x.getMessage());
+        }
+    }
+}
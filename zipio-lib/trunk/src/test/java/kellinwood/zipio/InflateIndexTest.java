@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2010 Ken Ellinwood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kellinwood.zipio;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.* ;
+import static org.junit.Assert.* ;
+
+public class InflateIndexTest extends AbstractTest {
+
+    static byte[] readRange( InputStream in, int length) throws Exception {
+        byte[] range = new byte[length];
+        int count = 0;
+        while (count < length) {
+            int numRead = in.read( range, count, length - count);
+            if (numRead < 0) break;
+            count += numRead;
+        }
+        in.close();
+        return count == length ? range : Arrays.copyOf( range, count);
+    }
+
+    static void checkRanges( ZioEntry entry, byte[] content) throws Exception {
+        int[] offsets = { 0, 1, 70000, content.length / 2, content.length - 5000, content.length - 1, content.length };
+        for (int offset : offsets) {
+            int length = Math.min( 10000, content.length - offset);
+            byte[] expected = Arrays.copyOfRange( content, offset, offset + length);
+            assertTrue( entry.getName() + "@" + offset, Arrays.equals( expected, readRange( entry.getInputStream( (long)offset), length)));
+        }
+    }
+
+    /** Reads up to each block boundary with a buffer that fills exactly there, and checks the
+     *  boundary is still reported.
+     */
+    static void checkAlignedReads( ZioEntry entry) throws Exception {
+        List<Long> boundaries = new ArrayList<Long>();
+        CheckpointInflater inflater = new CheckpointInflater( entry.getRawInputStream());
+        byte[] buffer = new byte[64 * 1024];
+        while (inflater.read( buffer, 0, buffer.length) >= 0) {
+            if (inflater.atBlockBoundary()) boundaries.add( inflater.getTotalOut());
+        }
+        inflater.close();
+        assertTrue( entry.getName(), boundaries.size() > 1);
+
+        inflater = new CheckpointInflater( entry.getRawInputStream());
+        for (long boundary : boundaries) {
+            while (inflater.getTotalOut() < boundary) {
+                int length = (int)Math.min( buffer.length, boundary - inflater.getTotalOut());
+                assertTrue( inflater.read( buffer, 0, length) > 0);
+            }
+            assertTrue( entry.getName() + "@" + boundary, inflater.atBlockBoundary());
+        }
+        inflater.close();
+    }
+
+    @Test
+    public void indexTest() {
+
+        try {
+            setupLogging();
+
+            // Text made of a small vocabulary deflates into dynamic blocks, random bytes into stored
+            // blocks, and short data into a fixed block.
+            Random random = new Random( 3);
+            String[] words = { "zip", "entry", "deflate", "window", "checkpoint", "index", "block", "data", "\n" };
+            StringBuilder text = new StringBuilder();
+            while (text.length() < 1500000) text.append( words[random.nextInt( words.length)]).append( random.nextInt( 100)).append( ' ');
+            byte[] textContent = text.toString().getBytes( "UTF-8");
+            byte[] randomContent = new byte[400000];
+            random.nextBytes( randomContent);
+            byte[] mixedContent = new byte[textContent.length + randomContent.length];
+            System.arraycopy( randomContent, 0, mixedContent, 0, randomContent.length);
+            System.arraycopy( textContent, 0, mixedContent, randomContent.length, textContent.length);
+
+            String siblingFile = getClass().getResource("/simple_test.zip").getFile();
+            File file = new File( new File( siblingFile).getParent(), "test_inflate_index.zip");
+            ZipOutput zipOutput = new ZipOutput( file);
+            zipOutput.write( new ZioEntry( "text.txt"), textContent);
+            zipOutput.write( new ZioEntry( "mixed.bin"), mixedContent);
+            zipOutput.write( new ZioEntry( "short.txt"), "short text".getBytes( "UTF-8"));
+            zipOutput.close();
+
+            ZipInput zipInput = ZipInput.read( file.getAbsolutePath());
+            ZioEntry textEntry = zipInput.getEntry( "text.txt");
+            checkRanges( textEntry, textContent);
+            checkAlignedReads( textEntry);
+            InflateIndex index = textEntry.buildInflateIndex( 64 * 1024);
+            assertTrue( index.getNumCheckpoints() > 10);
+            checkRanges( textEntry, textContent);
+
+            ZioEntry mixedEntry = zipInput.getEntry( "mixed.bin");
+            assertTrue( mixedEntry.buildInflateIndex( 64 * 1024).getNumCheckpoints() > 10);
+            checkRanges( mixedEntry, mixedContent);
+            checkAlignedReads( mixedEntry);
+
+            ZioEntry shortEntry = zipInput.getEntry( "short.txt");
+            assertEquals( 1, shortEntry.buildInflateIndex( InflateIndex.DEFAULT_SPACING).getNumCheckpoints());
+            assertEquals( "text", new String( readRange( shortEntry.getInputStream( 6L), 10), "UTF-8"));
+
+            // Written out and attached to the entry read again.
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            index.write( bytes);
+            zipInput.close();
+            zipInput = ZipInput.read( file.getAbsolutePath());
+            textEntry = zipInput.getEntry( "text.txt");
+            InflateIndex loaded = InflateIndex.read( new ByteArrayInputStream( bytes.toByteArray()));
+            assertEquals( index.getNumCheckpoints(), loaded.getNumCheckpoints());
+            textEntry.setInflateIndex( loaded);
+            checkRanges( textEntry, textContent);
+
+            try {
+                zipInput.getEntry( "mixed.bin").setInflateIndex( loaded);
+                fail( "Expected IllegalArgumentException");
+            }
+            catch (IllegalArgumentException x) {}
+            zipInput.close();
+        }
+        catch (Exception x) {
+            getLogger().error( x.getMessage(), x);
+            fail( x.getClass().getName() + ": " + x.getMessage());
+        }
+    }
+}
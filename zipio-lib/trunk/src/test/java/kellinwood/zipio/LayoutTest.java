@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2010 Ken Ellinwood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kellinwood.zipio;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.* ;
+import static org.junit.Assert.* ;
+
+public class LayoutTest extends AbstractTest {
+
+    static ZioEntry newEntry( String name, int length, int seed, boolean stored) throws Exception {
+        ZioEntry entry = new ZioEntry( name);
+        entry.setTime( 1262304000000L);
+        if (stored) entry.setCompression( 0);
+        byte[] content = new byte[length];
+        Random random = new Random( seed);
+        for (int i = 0; i < length; i++) content[i] = (byte)(random.nextInt( 16) + 'a');
+        entry.getOutputStream().write( content);
+        return entry;
+    }
+
+    /** Entries from the input file followed by new ones, including a spilled one and a duplicate. */
+    static List<ZioEntry> entries( ZipInput zipInput) throws Exception {
+        List<ZioEntry> entries = new ArrayList<ZioEntry>( zipInput.getEntries().values());
+        entries.add( newEntry( "new/empty.txt", 0, 1, false));
+        entries.add( newEntry( "new/stored.bin", 3000, 2, true));
+        entries.add( newEntry( "lib/x86/libnew.so", 5000, 3, true));
+        entries.add( newEntry( "new/spilled.txt", 30000, 4, false));
+        entries.add( newEntry( "new/stored.bin", 10, 5, true));
+        return entries;
+    }
+
+    @Test
+    public void layoutTest() {
+
+        try {
+            setupLogging();
+
+            String siblingFile = getClass().getResource("/simple_test.zip").getFile();
+            File dir = new File( siblingFile).getParentFile();
+            File inputFile = new File( dir, "test_layout_in.zip");
+            ZipOutput zipOutput = new ZipOutput( inputFile);
+            for (int i = 0; i < 30; i++) {
+                String name = i % 5 == 0 ? String.format("lib/arm64-v8a/lib%d.so", i) : String.format("res/file%d.txt", i);
+                zipOutput.write( newEntry( name, i * 3000, i, i % 2 == 0));
+            }
+            zipOutput.close();
+
+            long defaultThreshold = ZioEntry.getSpillThreshold();
+            ZioEntry.setSpillThreshold( 10000);
+            try {
+                // Sequential output for comparison.
+                File expectedFile = new File( dir, "test_layout_expected.zip");
+                ZipInput zipInput = ZipInput.read( inputFile.getAbsolutePath());
+                zipOutput = new ZipOutput( expectedFile);
+                zipOutput.write( newEntry( "first.txt", 100, 9, false));
+                for (ZioEntry entry : entries( zipInput)) zipOutput.write( entry);
+                zipOutput.write( newEntry( "last.txt", 100, 10, false));
+                zipOutput.close();
+                zipInput.close();
+                byte[] expected = DataSourceTest.readFile( expectedFile.getAbsolutePath());
+
+                File outputFile = new File( dir, "test_layout_out.zip");
+                zipInput = ZipInput.read( inputFile.getAbsolutePath());
+                zipOutput = new ZipOutput( outputFile);
+                zipOutput.write( newEntry( "first.txt", 100, 9, false));
+                zipOutput.writeAll( entries( zipInput), 4);
+                zipOutput.write( newEntry( "last.txt", 100, 10, false));
+                zipOutput.close();
+                zipInput.close();
+                assertTrue( Arrays.equals( expected, DataSourceTest.readFile( outputFile.getAbsolutePath())));
+
+                // Streams are written sequentially.
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                zipInput = ZipInput.read( inputFile.getAbsolutePath());
+                zipOutput = new ZipOutput( bytes);
+                zipOutput.write( newEntry( "first.txt", 100, 9, false));
+                zipOutput.writeAll( entries( zipInput), 0);
+                zipOutput.write( newEntry( "last.txt", 100, 10, false));
+                zipOutput.close();
+                zipInput.close();
+                assertTrue( Arrays.equals( expected, bytes.toByteArray()));
+
+                // File streams that aren't at the start of the file, or are in append mode, are
+                // written sequentially too, rather than at positions counted from the start.
+                File streamFile = new File( dir, "test_layout_stream.zip");
+                byte[] prefix = "prefix".getBytes();
+                for (boolean append : new boolean[] { false, true }) {
+                    FileOutputStream fileOut = new FileOutputStream( streamFile);
+                    fileOut.write( prefix);
+                    if (append) {
+                        fileOut.close();
+                        fileOut = new FileOutputStream( streamFile, true);
+                    }
+                    zipInput = ZipInput.read( inputFile.getAbsolutePath());
+                    zipOutput = new ZipOutput( fileOut);
+                    assertFalse( zipOutput.isSeekable());
+                    zipOutput.write( newEntry( "first.txt", 100, 9, false));
+                    zipOutput.writeAll( entries( zipInput), 0);
+                    zipOutput.write( newEntry( "last.txt", 100, 10, false));
+                    zipOutput.close();
+                    zipInput.close();
+                    byte[] written = DataSourceTest.readFile( streamFile.getAbsolutePath());
+                    assertTrue( Arrays.equals( prefix, Arrays.copyOf( written, prefix.length)));
+                    assertTrue( Arrays.equals( expected, Arrays.copyOfRange( written, prefix.length, written.length)));
+                }
+                zipOutput = new ZipOutput( new FileOutputStream( streamFile));
+                assertTrue( zipOutput.isSeekable());
+                zipOutput.close();
+
+                zipInput = ZipInput.read( outputFile.getAbsolutePath());
+                assertEquals( "[]", new ZipVerifier( zipInput).verify().toString());
+                zipInput.close();
+            }
+            finally {
+                ZioEntry.setSpillThreshold( defaultThreshold);
+            }
+        }
+        catch (Exception x) {
+            getLogger().error( x.getMessage(), x);
+            fail( x.getClass().getName() + ": " + x.getMessage());
+        }
+    }
+}
@@ -15,6 +15,7 @@
  */
 package kellinwood.zipio;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileReader;
 import java.io.OutputStream;
@@ -98,4 +99,56 @@ public class ListTest extends AbstractTest {
         }      
     }
     
+    @Test
+    public void listTreeTest() {
+
+        try {
+            setupLogging();
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ZipOutput zipOutput = new ZipOutput( bytes);
+            String[] names = { "res/", "res/raw/b.ogg", "res/raw/a.ogg", "res/values/strings.xml",
+                               "lib/arm64-v8a/libfoo.so", "a+b(c).txt" };
+            for (String name : names) {
+                ZioEntry entry = new ZioEntry( name);
+                entry.getOutputStream().write( name.getBytes());
+                zipOutput.write( entry);
+            }
+            zipOutput.close();
+
+            for (int options : new int[] { 0, ZipInput.COMPACT_INDEX }) {
+                ZipInput zipInput = ZipInput.read( new ByteBufferDataSource( bytes.toByteArray()), options);
+
+                assertEquals( "[a+b(c).txt, lib/, res/]", zipInput.list( "/").toString());
+                assertEquals( "[raw/, values/]", zipInput.list( "res/").toString());
+                assertEquals( "[a.ogg, b.ogg]", zipInput.list( "/res/raw/").toString());
+                assertEquals( "[arm64-v8a/]", zipInput.list( "lib/").toString());
+                assertTrue( zipInput.list( "missing/").isEmpty());
+                assertTrue( zipInput.list( "res/raw/a.ogg/").isEmpty());
+
+                for (String name : names) {
+                    assertEquals( name, new String( zipInput.getEntry( name).getData()));
+                }
+                assertNull( zipInput.getEntry( "res/raw"));
+                // Names with other characters are encoded to look them up.
+                assertNull( zipInput.getEntry( "caf\u00e9.txt"));
+
+                if (options == 0) {
+                    // Removing one entry and adding another keeps the count, but not the listing.
+                    ZioEntry removed = zipInput.getEntries().remove( "a+b(c).txt");
+                    zipInput.getEntries().put( "docs/readme.txt", removed);
+                    assertEquals( "[docs/, lib/, res/]", zipInput.list( "/").toString());
+                    zipInput.getEntries().keySet().remove( "lib/arm64-v8a/libfoo.so");
+                    assertEquals( "[docs/, res/]", zipInput.list( "/").toString());
+                    zipInput.getEntries().clear();
+                    assertTrue( zipInput.list( "/").isEmpty());
+                }
+                zipInput.close();
+            }
+        }
+        catch (Exception x) {
+            getLogger().error( x.getMessage(), x);
+            fail( x.getClass().getName() + ": " + x.getMessage());
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2010 Ken Ellinwood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kellinwood.zipio;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.junit.* ;
+import static org.junit.Assert.* ;
+
+public class MemoryMappedTest extends AbstractTest {
+
+    @Test
+    public void mappedReadTest() {
+
+        try {
+            setupLogging();
+
+            String inputFile = getClass().getResource("/simple_test.zip").getFile();
+
+            ZipInput fileInput = ZipInput.read( inputFile);
+            ZipInput mappedInput = ZipInput.read( inputFile, true);
+
+            assertFalse( fileInput.isMemoryMapped());
+            assertTrue( mappedInput.isMemoryMapped());
+            assertEquals( fileInput.getEntries().keySet(), mappedInput.getEntries().keySet());
+
+            for (ZioEntry entry : fileInput.getEntries().values()) {
+                ZioEntry mappedEntry = mappedInput.getEntry( entry.getName());
+                assertEquals( entry.getCrc32(), mappedEntry.getCrc32());
+                assertEquals( entry.getLocalHeaderOffset(), mappedEntry.getLocalHeaderOffset());
+                assertTrue( Arrays.equals( entry.getData(), mappedEntry.getData()));
+            }
+
+            fileInput.close();
+            mappedInput.close();
+        }
+        catch (Exception x) {
+            getLogger().error( x.getMessage(), x);
+            fail( x.getClass().getName() + ": " + x.getMessage());
+        }
+    }
+
+    @Test
+    public void mappedCopyTest() {
+
+        try {
+            setupLogging();
+
+            String siblingFile = getClass().getResource("/simple_test.zip").getFile();
+            ZipInput zipInput = ZipInput.read( siblingFile, true);
+
+            File sfile = new File(siblingFile);
+            File outputFile = new File(sfile.getParent(), "test_mapped_copy.zip");
+
+            ZipOutput zipOutput = new ZipOutput( outputFile);
+            for (ZioEntry e : zipInput.getEntries().values()) {
+                zipOutput.write(e);
+            }
+            zipOutput.close();
+
+            // verify the result
+            ZipInput copyInput = ZipInput.read( outputFile.getAbsolutePath(), true);
+            assertEquals( zipInput.getEntries().size(), copyInput.getEntries().size());
+            for (ZioEntry entry : zipInput.getEntries().values()) {
+                assertTrue( Arrays.equals( entry.getData(), copyInput.getEntry( entry.getName()).getData()));
+            }
+
+            zipInput.close();
+            copyInput.close();
+        }
+        catch (Exception x) {
+            getLogger().error( x.getMessage(), x);
+            fail( x.getClass().getName() + ": " + x.getMessage());
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2010 Ken Ellinwood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kellinwood.zipio;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import org.junit.* ;
+import static org.junit.Assert.* ;
+
+public class ParallelCRC32Test extends AbstractTest {
+
+    @Test
+    public void crcTest() {
+
+        try {
+            setupLogging();
+
+            // Several chunks and a partial one at the end.
+            byte[] content = new byte[(int)ParallelCRC32.PARALLEL_THRESHOLD + ParallelCRC32.CHUNK_SIZE / 2 + 123];
+            new Random( 11).nextBytes( content);
+            CRC32 crc = new CRC32();
+            crc.update( content);
+            int expected = (int)crc.getValue();
+
+            ByteBuffer heap = ByteBuffer.wrap( content);
+            heap.position( 0);
+            assertEquals( expected, ParallelCRC32.compute( heap));
+            assertEquals( 0, heap.position());
+            ByteBuffer direct = ByteBuffer.allocateDirect( content.length + 10);
+            direct.position( 10);
+            direct.put( content);
+            direct.position( 10);
+            assertEquals( expected, ParallelCRC32.compute( direct));
+
+            crc.reset();
+            crc.update( content, 5, 1000);
+            assertEquals( (int)crc.getValue(), ParallelCRC32.compute( ByteBuffer.wrap( content, 5, 1000)));
+            assertEquals( 0, ParallelCRC32.compute( ByteBuffer.allocate( 0)));
+
+            String siblingFile = getClass().getResource("/simple_test.zip").getFile();
+            File file = new File( new File( siblingFile).getParent(), "test_parallel_crc.bin");
+            FileOutputStream out = new FileOutputStream( file);
+            out.write( new byte[7]);
+            out.write( content);
+            out.close();
+
+            RandomAccessFile raf = new RandomAccessFile( file, "r");
+            assertEquals( expected, ParallelCRC32.compute( raf.getChannel(), 7, content.length));
+            raf.close();
+
+            ZioEntry entry = new ZioEntry( "data.bin", file.getAbsolutePath());
+            crc.reset();
+            crc.update( new byte[7]);
+            crc.update( content);
+            assertEquals( (int)crc.getValue(), entry.getCrc32());
+            entry.getZipInput().close();
+        }
+        catch (Exception x) {
+            getLogger().error( x.getMessage(), x);
+            fail( x.getClass().getName() + ": " + x.getMessage());
+        }
+    }
+}
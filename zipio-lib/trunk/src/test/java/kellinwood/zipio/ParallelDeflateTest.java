@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2010 Ken Ellinwood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kellinwood.zipio;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.junit.* ;
+import static org.junit.Assert.* ;
+
+public class ParallelDeflateTest extends AbstractTest {
+
+    static int crc( byte[] data, int off, int len) {
+        CRC32 crc = new CRC32();
+        crc.update( data, off, len);
+        return (int)crc.getValue();
+    }
+
+    @Test
+    public void crcCombineTest() {
+        byte[] data = new byte[100000];
+        new Random( 1).nextBytes( data);
+        for (int split : new int[] { 0, 1, 7, 32768, 99999, 100000 }) {
+            int combined = CRC32Combine.combine( crc( data, 0, split), crc( data, split, data.length - split), data.length - split);
+            assertEquals( crc( data, 0, data.length), combined);
+        }
+    }
+
+    @Test
+    public void parallelDeflateTest() {
+
+        try {
+            setupLogging();
+
+            // Repetitive text with some random stretches, a bit over 40 blocks of 64K.
+            Random random = new Random( 7);
+            ByteArrayOutputStream contentBytes = new ByteArrayOutputStream();
+            for (int i = 0; contentBytes.size() < 40 * 65536 + 1234; i++) {
+                if (i % 500 == 0) {
+                    byte[] noise = new byte[random.nextInt( 20000)];
+                    random.nextBytes( noise);
+                    contentBytes.write( noise);
+                }
+                contentBytes.write( String.format("line %d of the large entry\n", i % 3000).getBytes());
+            }
+            byte[] content = contentBytes.toByteArray();
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ZipOutput zipOutput = new ZipOutput( bytes);
+            ZioEntry entry = new ZioEntry( "assets/data.pak");
+            entry.setParallelDeflate( 65536);
+            OutputStream entryOut = entry.getOutputStream();
+            for (int off = 0; off < content.length; off += 10000) {
+                entryOut.write( content, off, Math.min( 10000, content.length - off));
+            }
+            zipOutput.write( entry);
+
+            // A small entry fits in one block and is compressed as usual.
+            ZioEntry small = new ZioEntry( "small.txt");
+            small.setParallelDeflate( 65536);
+            small.getOutputStream().write( "small".getBytes());
+            zipOutput.write( small);
+            zipOutput.close();
+
+            assertEquals( crc( content, 0, content.length), entry.getCrc32());
+            assertTrue( entry.getCompressedSize() < content.length / 2);
+
+            ZipInput zipInput = ZipInput.read( bytes.toByteArray());
+            assertTrue( Arrays.equals( content, zipInput.getEntry( "assets/data.pak").getData()));
+            assertEquals( "small", new String( zipInput.getEntry( "small.txt").getData()));
+            zipInput.close();
+
+            // The JDK checks the CRC when the entry has been read.
+            ZipInputStream jdkInput = new ZipInputStream( new ByteArrayInputStream( bytes.toByteArray()));
+            ZipEntry jdkEntry = jdkInput.getNextEntry();
+            assertEquals( "assets/data.pak", jdkEntry.getName());
+            byte[] buffer = new byte[65536];
+            long total = 0;
+            int numRead;
+            while ((numRead = jdkInput.read( buffer)) > 0) total += numRead;
+            assertEquals( (long)content.length, total);
+            jdkInput.close();
+        }
+        catch (Exception x) {
+            getLogger().error( x.getMessage(), x);
+            fail( x.getClass().getName() + ": " + x.getMessage());
+        }
+    }
+}
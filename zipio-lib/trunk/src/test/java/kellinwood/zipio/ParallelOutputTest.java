@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2010 Ken Ellinwood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kellinwood.zipio;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import org.junit.* ;
+import static org.junit.Assert.* ;
+
+public class ParallelOutputTest extends AbstractTest {
+
+    static byte[] content( int i) {
+        StringBuilder sb = new StringBuilder();
+        for (int j = 0; j < 100 * (i % 7); j++) sb.append( "entry ").append( i).append( " line ").append( j).append( '\n');
+        return sb.toString().getBytes();
+    }
+
+    static byte[] writeEntries( ZipInput zipInput, boolean parallel) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ZipOutput zipOutput = new ZipOutput( bytes);
+        if (parallel) zipOutput.setParallelCompression( 4, 20000);
+        for (int i = 0; i < 50; i++) {
+            ZioEntry entry = new ZioEntry( String.format("res/entry%d.txt", i));
+            entry.setTime( 1234567890000L);
+            if (i % 5 == 0) entry.setCompression( 0);
+            zipOutput.write( entry, content( i));
+
+            // Entries copied from another zip keep their place among the compressed ones.
+            if (i % 10 == 0) {
+                for (ZioEntry e : zipInput.getEntries().values()) zipOutput.write( e.getClonedEntry( i + "/" + e.getName()));
+            }
+        }
+        zipOutput.close();
+        return bytes.toByteArray();
+    }
+
+    @Test
+    public void parallelTest() {
+
+        try {
+            setupLogging();
+
+            String inputFile = getClass().getResource("/simple_test.zip").getFile();
+            ZipInput zipInput = ZipInput.read( inputFile);
+
+            byte[] sequential = writeEntries( zipInput, false);
+            byte[] parallel = writeEntries( zipInput, true);
+            assertTrue( Arrays.equals( sequential, parallel));
+
+            ZipInput copyInput = ZipInput.read( parallel);
+            for (int i = 0; i < 50; i++) {
+                assertTrue( Arrays.equals( content( i), copyInput.getEntry( String.format("res/entry%d.txt", i)).getData()));
+            }
+            copyInput.close();
+            zipInput.close();
+        }
+        catch (Exception x) {
+            getLogger().error( x.getMessage(), x);
+            fail( x.getClass().getName() + ": " + x.getMessage());
+        }
+    }
+}
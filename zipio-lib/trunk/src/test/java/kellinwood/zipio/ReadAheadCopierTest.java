@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2010 Ken Ellinwood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kellinwood.zipio;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.* ;
+import static org.junit.Assert.* ;
+
+public class ReadAheadCopierTest extends AbstractTest {
+
+    @Test
+    public void copyTest() {
+
+        try {
+            setupLogging();
+
+            String siblingFile = getClass().getResource("/simple_test.zip").getFile();
+            File inputFile = new File( new File(siblingFile).getParent(), "test_read_ahead.zip");
+            Random random = new Random( 5);
+            ZipOutput zipOutput = new ZipOutput( inputFile);
+            for (int i = 0; i < 20; i++) {
+                ZioEntry entry = new ZioEntry( String.format("entry%02d.bin", i));
+                entry.setTime( 1262304000000L);
+                if (i % 3 == 0) entry.setCompression( 0);
+                byte[] content = new byte[i == 5 ? 0 : random.nextInt( 100000)];
+                random.nextBytes( content);
+                entry.getOutputStream().write( content);
+                zipOutput.write( entry);
+            }
+            zipOutput.close();
+
+            ZipInput zipInput = ZipInput.read( inputFile.getAbsolutePath());
+            List<ZioEntry> entries = new ArrayList<ZioEntry>( zipInput.getEntries().values());
+
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            zipOutput = new ZipOutput( expected);
+            for (ZioEntry entry : entries) zipOutput.write( entry);
+            zipOutput.close();
+
+            // Buffers much smaller than the entries, to a file and to a stream.
+            File outputFile = new File( inputFile.getParent(), "test_read_ahead_out.zip");
+            zipOutput = new ZipOutput( outputFile);
+            ReadAheadCopier copier = new ReadAheadCopier( 3, 7000);
+            copier.start( entries);
+            for (ZioEntry entry : entries) copier.write( entry, zipOutput);
+            copier.close();
+            zipOutput.close();
+            assertTrue( Arrays.equals( expected.toByteArray(), DataSourceTest.readFile( outputFile.getAbsolutePath())));
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            zipOutput = new ZipOutput( bytes);
+            copier = new ReadAheadCopier( 2, 100000);
+            copier.start( entries);
+            for (ZioEntry entry : entries) copier.write( entry, zipOutput);
+            copier.close();
+            zipOutput.close();
+            assertTrue( Arrays.equals( expected.toByteArray(), bytes.toByteArray()));
+
+            // Entries the output skips are passed over, and abandoning the copy stops the reader.
+            zipOutput = new ZipOutput( new ByteArrayOutputStream());
+            copier = new ReadAheadCopier( 2, 5000);
+            List<ZioEntry> duplicated = new ArrayList<ZioEntry>( entries);
+            duplicated.add( 1, entries.get( 0));
+            copier.start( duplicated);
+            for (int i = 0; i < 5; i++) copier.write( duplicated.get( i), zipOutput);
+            copier.close();
+            assertFalse( copier.reader.isAlive());
+            zipOutput.close();
+
+            try {
+                copier = new ReadAheadCopier();
+                copier.start( entries);
+                copier.write( entries.get( 1), new ZipOutput( new ByteArrayOutputStream()));
+                fail( "Expected IllegalStateException");
+            }
+            catch (IllegalStateException x) {}
+            finally {
+                copier.close();
+            }
+            zipInput.close();
+        }
+        catch (Exception x) {
+            getLogger().error( x.getMessage(), x);
+            fail( x.getClass().getName() + ": " + x.getMessage());
+        }
+    }
+}
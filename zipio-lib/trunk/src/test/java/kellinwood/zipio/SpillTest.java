@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2010 Ken Ellinwood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kellinwood.zipio;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.* ;
+import static org.junit.Assert.* ;
+
+public class SpillTest extends AbstractTest {
+
+    static void writeEntries( ZipOutput zipOutput, byte[] content) throws Exception {
+        for (int i = 0; i < 2; i++) {
+            ZioEntry entry = new ZioEntry( String.format("entry%d.bin", i));
+            // A fixed time, so outputs written a few seconds apart are identical.
+            entry.setTime( 1262304000000L);
+            if (i == 1) entry.setCompression( 0);
+            OutputStream entryOut = entry.getOutputStream();
+            entryOut.write( content);
+            zipOutput.write( entry);
+        }
+        zipOutput.close();
+    }
+
+    @Test
+    public void spillTest() {
+
+        try {
+            setupLogging();
+
+            byte[] content = new byte[200000];
+            new Random( 42).nextBytes( content);
+
+            ByteArrayOutputStream memoryBytes = new ByteArrayOutputStream();
+            writeEntries( new ZipOutput( memoryBytes), content);
+
+            String siblingFile = getClass().getResource("/simple_test.zip").getFile();
+            File spillDirectory = new File( new File(siblingFile).getParent(), "spill");
+            spillDirectory.mkdirs();
+            long defaultThreshold = ZioEntry.getSpillThreshold();
+            try {
+                ZioEntry.setSpillThreshold( 10000);
+                ZioEntry.setSpillDirectory( spillDirectory);
+
+                // Spilled data can be read back before the entry is written.
+                ZioEntry entry = new ZioEntry( "spilled.bin");
+                OutputStream entryOut = entry.getOutputStream();
+                entryOut.write( content);
+                assertTrue( Arrays.equals( content, entry.getData()));
+                ZipOutput zipOutput = new ZipOutput( new ByteArrayOutputStream());
+                zipOutput.write( entry);
+                zipOutput.close();
+
+                // Spilled data is copied by channel transfer to a file and by buffer to a stream.
+                File outputFile = new File( spillDirectory.getParent(), "test_spill.zip");
+                writeEntries( new ZipOutput( outputFile), content);
+                ByteArrayOutputStream spillBytes = new ByteArrayOutputStream();
+                writeEntries( new ZipOutput( spillBytes), content);
+
+                assertTrue( Arrays.equals( memoryBytes.toByteArray(), spillBytes.toByteArray()));
+                assertTrue( Arrays.equals( memoryBytes.toByteArray(), DataSourceTest.readFile( outputFile.getAbsolutePath())));
+
+                // Data written again replaces the spilled data, and an entry that isn't written
+                // after all is disposed, along with its open stream.
+                entry = new ZioEntry( "rewritten.bin");
+                entry.getOutputStream().write( content);
+                entry.getOutputStream().write( content, 0, 100);
+                assertEquals( 0, spillDirectory.list().length);
+                assertTrue( Arrays.equals( Arrays.copyOf( content, 100), entry.getData()));
+                entry = new ZioEntry( "abandoned.bin");
+                entry.getOutputStream().write( content);
+                assertEquals( 1, spillDirectory.list().length);
+                entry.dispose();
+                assertEquals( 0, spillDirectory.list().length);
+            }
+            finally {
+                ZioEntry.setSpillThreshold( defaultThreshold);
+                ZioEntry.setSpillDirectory( null);
+            }
+
+            // The temporary files are removed once the entries are written.
+            assertEquals( 0, spillDirectory.list().length);
+
+            ZipInput zipInput = ZipInput.read( memoryBytes.toByteArray());
+            assertTrue( Arrays.equals( content, zipInput.getEntry( "entry0.bin").getData()));
+            assertTrue( Arrays.equals( content, zipInput.getEntry( "entry1.bin").getData()));
+            zipInput.close();
+        }
+        catch (Exception x) {
+            getLogger().error( x.getMessage(), x);
+            fail( x.getClass().getName() + ": " + x.getMessage());
+        }
+    }
+}
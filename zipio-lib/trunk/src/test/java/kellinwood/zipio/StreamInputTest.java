@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2010 Ken Ellinwood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kellinwood.zipio;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.* ;
+import static org.junit.Assert.* ;
+
+public class StreamInputTest extends AbstractTest {
+
+    @Test
+    public void streamCopyTest() {
+
+        try {
+            setupLogging();
+
+            String inputFile = getClass().getResource("/simple_test.zip").getFile();
+            ZipInput zipInput = ZipInput.read( inputFile);
+
+            ZipStreamInput streamInput = new ZipStreamInput( new FileInputStream( inputFile));
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ZipOutput zipOutput = new ZipOutput( bytes);
+
+            ZioEntry entry;
+            while ((entry = streamInput.getNextEntry()) != null) {
+                ZioEntry fileEntry = zipInput.getEntry( entry.getName());
+                assertNotNull( fileEntry);
+                assertEquals( fileEntry.getLocalHeaderOffset(), entry.getLocalHeaderOffset());
+                assertTrue( Arrays.equals( fileEntry.getData(), entry.getData()));
+                zipOutput.write( entry);
+            }
+            assertNotNull( streamInput.getCentralEnd());
+            assertEquals( zipInput.getEntries().size(), streamInput.getNumEntries());
+            streamInput.close();
+            zipOutput.close();
+
+            ZipInput copyInput = ZipInput.read( bytes.toByteArray());
+            assertEquals( zipInput.getEntries().keySet(), copyInput.getEntries().keySet());
+            for (ZioEntry copyEntry : copyInput.getEntries().values()) {
+                ZioEntry fileEntry = zipInput.getEntry( copyEntry.getName());
+                assertEquals( fileEntry.getExternalAttributes(), copyEntry.getExternalAttributes());
+                assertTrue( Arrays.equals( fileEntry.getData(), copyEntry.getData()));
+            }
+
+            zipInput.close();
+        }
+        catch (Exception x) {
+            getLogger().error( x.getMessage(), x);
+            fail( x.getClass().getName() + ": " + x.getMessage());
+        }
+    }
+
+    @Test
+    public void dataDescriptorTest() {
+
+        try {
+            setupLogging();
+
+            // The JDK writes deflated entries with a data descriptor (general purpose bit 3).
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ZipOutputStream jdkOutput = new ZipOutputStream( bytes);
+            for (int i = 0; i < 5; i++) {
+                StringBuilder sb = new StringBuilder();
+                for (int j = 0; j < 1000 * i; j++) sb.append( "line ").append( j).append( '\n');
+                byte[] content = sb.toString().getBytes();
+
+                ZipEntry jdkEntry = new ZipEntry( String.format("entry%d.txt", i));
+                if (i == 3) {
+                    CRC32 crc = new CRC32();
+                    crc.update( content);
+                    jdkEntry.setMethod( ZipEntry.STORED);
+                    jdkEntry.setSize( content.length);
+                    jdkEntry.setCrc( crc.getValue());
+                }
+                jdkOutput.putNextEntry( jdkEntry);
+                jdkOutput.write( content);
+                jdkOutput.closeEntry();
+            }
+            jdkOutput.close();
+
+            ZipInput zipInput = ZipInput.read( bytes.toByteArray());
+            ZipStreamInput streamInput = new ZipStreamInput( new ByteArrayInputStream( bytes.toByteArray()));
+            ZioEntry entry;
+            int count = 0;
+            while ((entry = streamInput.getNextEntry()) != null) {
+                ZioEntry fileEntry = zipInput.getEntry( entry.getName());
+                assertEquals( fileEntry.getCrc32(), entry.getCrc32());
+                assertEquals( fileEntry.getSize(), entry.getSize());
+                assertEquals( 0, entry.getGeneralPurposeBits() & 0x0008);
+                assertTrue( Arrays.equals( fileEntry.getData(), entry.getData()));
+                count += 1;
+            }
+            assertEquals( 5, count);
+            assertEquals( (long)bytes.size(), streamInput.getOffset());
+            zipInput.close();
+        }
+        catch (Exception x) {
+            getLogger().error( x.getMessage(), x);
+            fail( x.getClass().getName() + ": " + x.getMessage());
+        }
+    }
+
+    /** Inserts the given bytes in front of the central directory and fixes the central directory offset. */
+    static byte[] insertBeforeCentral( byte[] zip, byte[] inserted) {
+        ByteBuffer end = ByteBuffer.wrap( zip, zip.length - 22, 22).slice().order( ByteOrder.LITTLE_ENDIAN);
+        assertEquals( 0x06054b50, end.getInt( 0));
+        int centralStart = end.getInt( 16);
+
+        byte[] result = new byte[zip.length + inserted.length];
+        System.arraycopy( zip, 0, result, 0, centralStart);
+        System.arraycopy( inserted, 0, result, centralStart, inserted.length);
+        System.arraycopy( zip, centralStart, result, centralStart + inserted.length, zip.length - centralStart);
+        ByteBuffer.wrap( result).order( ByteOrder.LITTLE_ENDIAN).putInt( result.length - 22 + 16, centralStart + inserted.length);
+        return result;
+    }
+
+    static byte[] signingBlock( int pairsLength) {
+        byte[] magic = "APK Sig Block 42".getBytes();
+        ByteBuffer block = ByteBuffer.allocate( 8 + pairsLength + 8 + magic.length).order( ByteOrder.LITTLE_ENDIAN);
+        long blockSize = pairsLength + 8 + magic.length;
+        block.putLong( blockSize);
+        // One id-value pair filled with bytes that look like central directory headers.
+        block.putLong( pairsLength - 8);
+        block.putInt( 0x7109871a);
+        while (block.position() < 8 + pairsLength) block.putInt( ZipStreamInput.CENTRAL_HEADER_SIGNATURE);
+        block.putLong( blockSize);
+        block.put( magic);
+        return block.array();
+    }
+
+    @Test
+    public void signingBlockTest() {
+
+        try {
+            setupLogging();
+
+            String inputFile = getClass().getResource("/simple_test.zip").getFile();
+            ZipInput zipInput = ZipInput.read( inputFile);
+            ByteArrayOutputStream original = new ByteArrayOutputStream();
+            ZipOutput zipOutput = new ZipOutput( original);
+            for (ZioEntry fileEntry : zipInput.getEntries().values()) zipOutput.write( fileEntry);
+            zipOutput.close();
+
+            byte[][] gaps = new byte[][] { signingBlock( 4096), signingBlock( 100000), "not a signing block".getBytes() };
+            for (byte[] gap : gaps) {
+                byte[] bytes = insertBeforeCentral( original.toByteArray(), gap);
+                ZipStreamInput streamInput = new ZipStreamInput( new ByteArrayInputStream( bytes));
+                List<ZioEntry> entries = new ArrayList<ZioEntry>();
+                ZioEntry entry;
+                while ((entry = streamInput.getNextEntry()) != null) {
+                    assertTrue( Arrays.equals( zipInput.getEntry( entry.getName()).getData(), entry.getData()));
+                    entries.add( entry);
+                }
+                assertEquals( zipInput.getEntries().size(), entries.size());
+                assertNotNull( streamInput.getCentralEnd());
+                // Values only found in the central directory have been reconciled.
+                for (ZioEntry streamEntry : entries) {
+                    assertEquals( zipInput.getEntry( streamEntry.getName()).getExternalAttributes(), streamEntry.getExternalAttributes());
+                }
+                assertEquals( (long)bytes.length, streamInput.getOffset());
+                streamInput.close();
+            }
+
+            zipInput.close();
+        }
+        catch (Exception x) {
+            getLogger().error( x.getMessage(), x);
+            fail( x.getClass().getName() + ": " + x.getMessage());
+        }
+    }
+}
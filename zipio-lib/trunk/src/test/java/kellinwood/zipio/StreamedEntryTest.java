@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2010 Ken Ellinwood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kellinwood.zipio;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.junit.* ;
+import static org.junit.Assert.* ;
+
+public class StreamedEntryTest extends AbstractTest {
+
+    static byte[] content( int i) {
+        StringBuilder sb = new StringBuilder();
+        for (int j = 0; j < 2000 * i; j++) sb.append( "line ").append( j).append( '\n');
+        return sb.toString().getBytes();
+    }
+
+    static void writeEntries( ZipOutput zipOutput) throws Exception {
+        for (int i = 0; i < 4; i++) {
+            ZioEntry entry = new ZioEntry( String.format("entry%d.txt", i));
+            if (i == 2) entry.setCompression( 0);
+            OutputStream out = zipOutput.beginEntry( entry, i == 3);
+            byte[] data = content( i);
+            out.write( data, 0, data.length / 2);
+            out.write( data, data.length / 2, data.length - data.length / 2);
+            out.close();
+        }
+        zipOutput.close();
+    }
+
+    // Returns the general purpose bits from the local header, the central values are cleared on read.
+    static int localFlags( byte[] zipData, ZioEntry entry) {
+        int offset = (int)entry.getLocalHeaderOffset() + 6;
+        return (zipData[offset] & 0xff) | ((zipData[offset + 1] & 0xff) << 8);
+    }
+
+    static void checkEntries( byte[] zipData, boolean jdkCheck) throws Exception {
+        ZipInput zipInput = ZipInput.read( zipData);
+        assertEquals( 4, zipInput.getEntries().size());
+        for (int i = 0; i < 4; i++) {
+            assertTrue( Arrays.equals( content( i), zipInput.getEntry( String.format("entry%d.txt", i)).getData()));
+        }
+        zipInput.close();
+        if (!jdkCheck) return;
+
+        // Check the local headers with the JDK's streaming reader.
+        ZipInputStream jdkInput = new ZipInputStream( new ByteArrayInputStream( zipData));
+        ZipEntry jdkEntry;
+        int count = 0;
+        while ((jdkEntry = jdkInput.getNextEntry()) != null) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int numRead;
+            while ((numRead = jdkInput.read( buffer)) > 0) bytes.write( buffer, 0, numRead);
+            assertTrue( jdkEntry.getName(), Arrays.equals( content( count), bytes.toByteArray()));
+            count += 1;
+        }
+        assertEquals( 4, count);
+    }
+
+    @Test
+    public void streamedEntryTest() {
+
+        try {
+            setupLogging();
+
+            // Written to a file the local headers are patched.
+            String siblingFile = getClass().getResource("/simple_test.zip").getFile();
+            File outputFile = new File( new File(siblingFile).getParent(), "test_streamed_entries.zip");
+            writeEntries( new ZipOutput( outputFile));
+            byte[] fileData = DataSourceTest.readFile( outputFile.getAbsolutePath());
+            checkEntries( fileData, true);
+            ZipInput zipInput = ZipInput.read( fileData);
+            for (ZioEntry entry : zipInput.getEntries().values()) {
+                assertEquals( 0, localFlags( fileData, entry) & 0x0008);
+            }
+            zipInput.close();
+
+            // Written to a stream, compressed entries have data descriptors.  The JDK's reader
+            // only expects ZIP64 descriptors for entries that are actually larger than 4GB.
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            writeEntries( new ZipOutput( bytes));
+            checkEntries( bytes.toByteArray(), false);
+            zipInput = ZipInput.read( bytes.toByteArray());
+            assertEquals( 0x0008, localFlags( bytes.toByteArray(), zipInput.getEntry( "entry1.txt")) & 0x0008);
+            assertEquals( 0, localFlags( bytes.toByteArray(), zipInput.getEntry( "entry2.txt")) & 0x0008);
+            zipInput.close();
+
+            // The forward-only reader handles both data descriptor forms.
+            ZipStreamInput streamInput = new ZipStreamInput( new ByteArrayInputStream( bytes.toByteArray()));
+            ZioEntry entry;
+            int count = 0;
+            while ((entry = streamInput.getNextEntry()) != null) {
+                assertTrue( Arrays.equals( content( count), entry.getData()));
+                count += 1;
+            }
+            assertEquals( 4, count);
+
+            // Other entries can't be written until the streamed entry is complete.
+            ZipOutput zipOutput = new ZipOutput( new ByteArrayOutputStream());
+            OutputStream out = zipOutput.beginEntry( new ZioEntry( "open.txt"));
+            try {
+                zipOutput.write( new ZioEntry( "other.txt"));
+                fail( "Expected IllegalStateException");
+            }
+            catch (IllegalStateException x) {}
+            out.close();
+            zipOutput.close();
+        }
+        catch (Exception x) {
+            getLogger().error( x.getMessage(), x);
+            fail( x.getClass().getName() + ": " + x.getMessage());
+        }
+    }
+
+    // Streams the data as one entry with the policy, and returns the entry read back.
+    static ZioEntry streamWithPolicy( CompressionPolicy policy, byte[] data, boolean knownSize) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ZipOutput zipOutput = new ZipOutput( bytes);
+        if (policy != null) zipOutput.setCompressionPolicy( policy);
+        ZioEntry entry = new ZioEntry( "data.txt");
+        OutputStream out = knownSize ? zipOutput.beginEntry( entry, data.length, null, 0) : zipOutput.beginEntry( entry);
+        out.write( data);
+        out.close();
+        zipOutput.close();
+        ZipInput zipInput = ZipInput.read( bytes.toByteArray());
+        ZioEntry result = zipInput.getEntry( "data.txt");
+        assertTrue( Arrays.equals( data, result.getData()));
+        zipInput.close();
+        return result;
+    }
+
+    @Test
+    public void policyTest() {
+
+        try {
+            setupLogging();
+
+            byte[] data = content( 3);
+            long best = streamWithPolicy( null, data, false).getCompressedSize();
+            long fast = streamWithPolicy( new CompressionPolicy( Deflater.BEST_SPEED, Deflater.DEFAULT_STRATEGY), data, false).getCompressedSize();
+            long huffman = streamWithPolicy( new CompressionPolicy( Deflater.BEST_COMPRESSION, Deflater.HUFFMAN_ONLY), data, false).getCompressedSize();
+            // The policy's level and strategy are used, not always the best compression.
+            assertTrue( fast != best);
+            assertTrue( huffman > best);
+
+            // Size rules only apply when the size is given.
+            CompressionPolicy policy = new CompressionPolicy().addSizeRule( 0, 1000000, Deflater.NO_COMPRESSION, Deflater.DEFAULT_STRATEGY);
+            assertEquals( 8, (int)streamWithPolicy( policy, data, false).getCompression());
+            assertEquals( 0, (int)streamWithPolicy( policy, data, true).getCompression());
+        }
+        catch (Exception x) {
+            getLogger().error( x.getMessage(), x);
+            fail( x.getClass().getName() + ": " + x.getMessage());
+        }
+    }
+}
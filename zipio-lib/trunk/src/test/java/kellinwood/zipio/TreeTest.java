@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2010 Ken Ellinwood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kellinwood.zipio;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.* ;
+import static org.junit.Assert.* ;
+
+public class TreeTest extends AbstractTest {
+
+    static void writeFile( File file, byte[] content) throws Exception {
+        file.getParentFile().mkdirs();
+        FileOutputStream out = new FileOutputStream( file);
+        out.write( content);
+        out.close();
+    }
+
+    static void delete( File file) throws Exception {
+        // Don't follow links into the directories they point to.
+        File[] children = isLink( file) ? null : file.listFiles();
+        if (children != null) {
+            for (File child : children) delete( child);
+        }
+        file.delete();
+    }
+
+    static boolean isLink( File file) throws Exception {
+        File parent = file.getAbsoluteFile().getParentFile();
+        return parent != null && !file.getCanonicalFile().equals( new File( parent.getCanonicalFile(), file.getName()));
+    }
+
+    @Test
+    public void writeTreeTest() {
+
+        try {
+            setupLogging();
+
+            String siblingFile = getClass().getResource("/simple_test.zip").getFile();
+            File dir = new File( siblingFile).getParentFile();
+            File root = new File( dir, "test_tree");
+            delete( root);
+
+            Map<String,byte[]> files = new LinkedHashMap<String,byte[]>();
+            Random random = new Random( 7);
+            for (int i = 0; i < 40; i++) {
+                byte[] content = new byte[ i == 3 ? 0 : random.nextInt( i % 10 == 0 ? 50000 : 5000)];
+                for (int j = 0; j < content.length; j++) content[j] = (byte)(random.nextInt( i % 2 == 0 ? 256 : 8) + 'a');
+                files.put( String.format("d%d/sub%d/file%02d.txt", i % 3, i % 2, i), content);
+            }
+            files.put( "top.bin", new byte[100]);
+            for (Map.Entry<String,byte[]> file : files.entrySet()) writeFile( new File( root, file.getKey()), file.getValue());
+            new File( root, "empty/dir").mkdirs();
+
+            long defaultThreshold = ZioEntry.getSpillThreshold();
+            ZioEntry.setSpillThreshold( 20000);
+            File outputFile = new File( dir, "test_tree.zip");
+            try {
+                ZipOutput zipOutput = new ZipOutput( outputFile);
+                zipOutput.setCompressionPolicy( CompressionPolicy.getPreset( CompressionPolicy.PRESET_FAST));
+                zipOutput.write( LayoutTest.newEntry( "first.txt", 100, 1, false));
+                zipOutput.writeTree( root, "assets", 3);
+                zipOutput.close();
+            }
+            finally {
+                ZioEntry.setSpillThreshold( defaultThreshold);
+            }
+
+            ZipInput zipInput = ZipInput.read( outputFile.getAbsolutePath());
+            Map<String,ZioEntry> entries = zipInput.getEntries();
+            assertEquals( files.size() + 2, entries.size());
+            assertEquals( "first.txt", entries.keySet().iterator().next());
+            assertNotNull( entries.get( "assets/empty/dir/"));
+            for (Map.Entry<String,byte[]> file : files.entrySet()) {
+                ZioEntry entry = entries.get( "assets/" + file.getKey());
+                assertNotNull( file.getKey(), entry);
+                assertTrue( file.getKey(), Arrays.equals( file.getValue(), entry.getData()));
+            }
+            ArrayList<String> names = new ArrayList<String>( entries.keySet());
+            ArrayList<String> sorted = new ArrayList<String>( names.subList( 1, names.size()));
+            Collections.sort( sorted);
+            assertEquals( sorted, names.subList( 1, names.size()));
+            assertEquals( "[]", new ZipVerifier( zipInput).verify().toString());
+            zipInput.close();
+        }
+        catch (Exception x) {
+            getLogger().error( x.getMessage(), x);
+            fail( x.getClass().getName() + ": " + x.getMessage());
+        }
+    }
+
+    @Test
+    public void linkLoopTest() {
+
+        try {
+            setupLogging();
+
+            String siblingFile = getClass().getResource("/simple_test.zip").getFile();
+            File dir = new File( siblingFile).getParentFile();
+            File root = new File( dir, "test_tree_loop");
+            delete( root);
+            writeFile( new File( root, "a/file.txt"), "content".getBytes());
+            writeFile( new File( root, "b/other.txt"), "other".getBytes());
+
+            try {
+                // Links back to the containing directory and the root, and one to a sibling directory.
+                String[][] links = new String[][] { { "a/loop", ".." }, { "a/self", "." }, { "b/root", new File( root, ".").getAbsolutePath() }, { "b/a", "../a" } };
+                for (String[] link : links) {
+                    Process process = Runtime.getRuntime().exec( new String[] { "ln", "-s", link[1], new File( root, link[0]).getPath() });
+                    assertEquals( 0, process.waitFor());
+                }
+
+                File outputFile = new File( dir, "test_tree_loop.zip");
+                ZipOutput zipOutput = new ZipOutput( outputFile);
+                zipOutput.writeTree( root, "", 2);
+                zipOutput.close();
+
+                ZipInput zipInput = ZipInput.read( outputFile.getAbsolutePath());
+                assertEquals( "[a/file.txt, b/a/file.txt, b/other.txt]", new ArrayList<String>( zipInput.getEntries().keySet()).toString());
+                zipInput.close();
+            }
+            finally {
+                // A leftover loop would trip up anything else walking the build directory.
+                delete( root);
+            }
+        }
+        catch (Exception x) {
+            getLogger().error( x.getMessage(), x);
+            fail( x.getClass().getName() + ": " + x.getMessage());
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2010 Ken Ellinwood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kellinwood.zipio;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.* ;
+import static org.junit.Assert.* ;
+
+public class UpdateTest extends AbstractTest {
+
+    static byte[] content( int seed, int length) {
+        byte[] data = new byte[length];
+        new Random( seed).nextBytes( data);
+        return data;
+    }
+
+    static void assertContent( ZipInput zipInput, String name, byte[] expected) throws Exception {
+        ZioEntry entry = zipInput.getEntry( name);
+        assertNotNull( name, entry);
+        assertTrue( name, Arrays.equals( expected, entry.getData()));
+    }
+
+    @Test
+    public void updateTest() {
+
+        try {
+            setupLogging();
+
+            String siblingFile = getClass().getResource("/simple_test.zip").getFile();
+            File file = new File( new File(siblingFile).getParent(), "test_update.zip");
+
+            ZipOutput zipOutput = new ZipOutput( file);
+            for (int i = 0; i < 3; i++) {
+                ZioEntry entry = new ZioEntry( String.format("entry%d.bin", i));
+                entry.setCompression( 0);
+                entry.getOutputStream().write( content( i, 50000));
+                zipOutput.write( entry);
+            }
+            zipOutput.close();
+            long originalLength = file.length();
+
+            // Replace one entry, remove another and add two, one of them streamed.
+            zipOutput = ZipOutput.openForUpdate( file);
+            ZioEntry entry = new ZioEntry( "entry1.bin");
+            entry.getOutputStream().write( content( 11, 1000));
+            zipOutput.write( entry);
+            assertTrue( zipOutput.remove( "entry2.bin"));
+            assertFalse( zipOutput.remove( "entry2.bin"));
+            assertFalse( zipOutput.remove( "missing.bin"));
+            entry = new ZioEntry( "added.bin");
+            entry.getOutputStream().write( content( 3, 1000));
+            zipOutput.write( entry);
+            OutputStream entryOut = zipOutput.beginEntry( new ZioEntry( "streamed.bin"));
+            entryOut.write( content( 4, 1000));
+            entryOut.close();
+            assertTrue( zipOutput.getDeadSpace() > 100000);
+            zipOutput.close();
+
+            // The existing entries weren't rewritten, so the file only grew by the new ones.
+            assertTrue( file.length() > originalLength);
+            assertTrue( file.length() < originalLength + 4000);
+
+            ZipInput zipInput = ZipInput.read( file.getAbsolutePath());
+            assertEquals( 4, zipInput.getEntries().size());
+            assertContent( zipInput, "entry0.bin", content( 0, 50000));
+            assertContent( zipInput, "entry1.bin", content( 11, 1000));
+            assertContent( zipInput, "added.bin", content( 3, 1000));
+            assertContent( zipInput, "streamed.bin", content( 4, 1000));
+            assertEquals( 0, new ZipVerifier( zipInput).verify().size());
+            zipInput.close();
+
+            ZipOutput.compact( file);
+            assertTrue( file.length() < originalLength / 2);
+            zipInput = ZipInput.read( file.getAbsolutePath());
+            assertEquals( 4, zipInput.getEntries().size());
+            assertContent( zipInput, "entry0.bin", content( 0, 50000));
+            assertContent( zipInput, "entry1.bin", content( 11, 1000));
+            assertContent( zipInput, "streamed.bin", content( 4, 1000));
+            assertEquals( 0, new ZipVerifier( zipInput).verify().size());
+            zipInput.close();
+        }
+        catch (Exception x) {
+            getLogger().error( x.getMessage(), x);
+            fail( x.getClass().getName() + ": " + x.getMessage());
+        }
+    }
+
+    @Test
+    public void keepCentralRecordsTest() {
+
+        try {
+            setupLogging();
+
+            String siblingFile = getClass().getResource("/simple_test.zip").getFile();
+            File file = new File( new File(siblingFile).getParent(), "test_update_jdk.zip");
+
+            // The JDK writes an empty deflated entry with a data descriptor.
+            ZipOutputStream jdkOutput = new ZipOutputStream( new FileOutputStream( file));
+            jdkOutput.setComment( "update test comment");
+            jdkOutput.putNextEntry( new ZipEntry( "empty.txt"));
+            jdkOutput.closeEntry();
+            jdkOutput.putNextEntry( new ZipEntry( "kept.bin"));
+            jdkOutput.write( content( 5, 1000));
+            jdkOutput.closeEntry();
+            jdkOutput.close();
+
+            ZipOutput zipOutput = ZipOutput.openForUpdate( file);
+            ZioEntry entry = new ZioEntry( "added.bin");
+            entry.getOutputStream().write( content( 6, 1000));
+            zipOutput.write( entry);
+            zipOutput.close();
+
+            ZipFile zipFile = new ZipFile( file);
+            assertEquals( "update test comment", zipFile.getComment());
+            ZipEntry empty = zipFile.getEntry( "empty.txt");
+            assertEquals( ZipEntry.DEFLATED, empty.getMethod());
+            assertEquals( 2L, empty.getCompressedSize());
+            assertEquals( 0L, empty.getSize());
+            assertNotNull( zipFile.getEntry( "added.bin"));
+            zipFile.close();
+
+            ZipInput zipInput = ZipInput.read( file.getAbsolutePath());
+            assertEquals( 3, zipInput.getEntries().size());
+            assertContent( zipInput, "empty.txt", new byte[0]);
+            assertContent( zipInput, "kept.bin", content( 5, 1000));
+            assertContent( zipInput, "added.bin", content( 6, 1000));
+            assertEquals( 0, new ZipVerifier( zipInput).verify().size());
+            zipInput.close();
+        }
+        catch (Exception x) {
+            getLogger().error( x.getMessage(), x);
+            fail( x.getClass().getName() + ": " + x.getMessage());
+        }
+    }
+}
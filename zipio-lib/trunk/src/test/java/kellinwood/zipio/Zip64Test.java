@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2010 Ken Ellinwood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kellinwood.zipio;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.util.zip.ZipFile;
+
+import org.junit.* ;
+import static org.junit.Assert.* ;
+
+public class Zip64Test extends AbstractTest {
+
+    // More than fit in the 16-bit entry counts of the regular end of central directory record.
+    static final int NUM_ENTRIES = 70000;
+
+    @Test
+    public void manyEntriesTest() {
+
+        try {
+            setupLogging();
+
+            String siblingFile = getClass().getResource("/simple_test.zip").getFile();
+            File sfile = new File(siblingFile);
+            File outputFile = new File(sfile.getParent(), "test_zip64.zip");
+
+            ZipOutput zipOutput = new ZipOutput( outputFile);
+            for (int i = 0; i < NUM_ENTRIES; i++) {
+                ZioEntry entry = new ZioEntry( String.format("dir%d/entry%d.txt", i % 100, i));
+                entry.setCompression(0);
+                OutputStream entryOut = entry.getOutputStream();
+                entryOut.write( Integer.toString(i).getBytes());
+                zipOutput.write(entry);
+            }
+            zipOutput.close();
+
+            // verify the result
+            ZipInput zipInput = ZipInput.read( outputFile.getAbsolutePath());
+            assertEquals( NUM_ENTRIES, zipInput.getEntries().size());
+
+            ZioEntry entry = zipInput.getEntry( "dir99/entry69999.txt");
+            assertNotNull( entry);
+            assertEquals( "69999", new String( entry.getData()));
+            zipInput.close();
+
+            zipInput = ZipInput.read( outputFile.getAbsolutePath(), ZipInput.COMPACT_INDEX);
+            assertEquals( NUM_ENTRIES, zipInput.getEntries().size());
+            assertEquals( "12345", new String( zipInput.getEntry( "dir45/entry12345.txt").getData()));
+            zipInput.close();
+
+            // The JDK's reader should agree with the ZIP64 end of central directory record.
+            ZipFile zipFile = new ZipFile( outputFile);
+            assertEquals( NUM_ENTRIES, zipFile.size());
+            zipFile.close();
+        }
+        catch (Exception x) {
+            getLogger().error( x.getMessage(), x);
+            fail( x.getClass().getName() + ": " + x.getMessage());
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2010 Ken Ellinwood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kellinwood.zipio;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+
+import org.junit.* ;
+import static org.junit.Assert.* ;
+
+public class ZipVerifierTest extends AbstractTest {
+
+    static byte[] createZip() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ZipOutput zipOutput = new ZipOutput( bytes);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 20000; i++) text.append( "line ").append( i).append( '\n');
+
+        ZioEntry entry = new ZioEntry( "deflated.txt");
+        entry.getOutputStream().write( text.toString().getBytes());
+        zipOutput.write( entry);
+
+        entry = new ZioEntry( "stored.txt");
+        entry.setCompression( 0);
+        entry.getOutputStream().write( text.toString().getBytes());
+        zipOutput.write( entry);
+
+        // Written with a data descriptor, since the output isn't seekable.
+        OutputStream entryOut = zipOutput.beginEntry( new ZioEntry( "streamed.txt"));
+        entryOut.write( text.toString().getBytes());
+        entryOut.close();
+        zipOutput.close();
+        return bytes.toByteArray();
+    }
+
+    static List<ZipVerifier.Problem> verify( byte[] zip) throws Exception {
+        ZipInput zipInput = ZipInput.read( zip);
+        ZipVerifier verifier = new ZipVerifier( zipInput);
+        verifier.setThreads( 3);
+        List<ZipVerifier.Problem> problems = verifier.verify();
+        zipInput.close();
+        return problems;
+    }
+
+    static boolean hasProblem( List<ZipVerifier.Problem> problems, String entryName, String text) {
+        for (ZipVerifier.Problem problem : problems) {
+            if (entryName.equals( problem.entryName) && problem.message.contains( text)) return true;
+        }
+        return false;
+    }
+
+    @Test
+    public void verifyTest() {
+
+        try {
+            setupLogging();
+
+            byte[] zip = createZip();
+            ZipInput zipInput = ZipInput.read( zip);
+            ZioEntry deflated = zipInput.getEntry( "deflated.txt");
+            deflated.readLocalHeader();
+            long deflatedData = deflated.getDataPosition();
+            ZioEntry stored = zipInput.getEntry( "stored.txt");
+            stored.readLocalHeader();
+            long storedHeader = stored.getLocalHeaderOffset();
+            long storedData = stored.getDataPosition();
+            long streamedHeader = zipInput.getEntry( "streamed.txt").getLocalHeaderOffset();
+            long centralStart = zipInput.getCentralEnd().centralStartOffset;
+            zipInput.close();
+
+            zipInput = ZipInput.read( zip);
+            ZipVerifier verifier = new ZipVerifier( zipInput);
+            assertEquals( 0, verifier.verify().size());
+            assertEquals( 3 * deflated.getSize(), verifier.getBytesVerified());
+            zipInput.close();
+
+            // Corrupt data.
+            byte[] corrupt = zip.clone();
+            corrupt[(int)storedData + 100] ^= 1;
+            List<ZipVerifier.Problem> problems = verify( corrupt);
+            assertEquals( 1, problems.size());
+            assertTrue( hasProblem( problems, "stored.txt", "CRC-32 is"));
+
+            corrupt = zip.clone();
+            corrupt[(int)deflatedData + 1000] ^= 0x55;
+            problems = verify( corrupt);
+            assertEquals( 1, problems.size());
+            assertEquals( "deflated.txt", problems.get( 0).entryName);
+
+            // A local header that doesn't match the central directory.
+            corrupt = zip.clone();
+            corrupt[(int)storedHeader + 30] = 'S';
+            problems = verify( corrupt);
+            assertTrue( hasProblem( problems, "stored.txt", "Local header name is Stored.txt"));
+
+            // Point the second central directory record at the first entry.
+            corrupt = zip.clone();
+            ByteBuffer central = ByteBuffer.wrap( corrupt).order( ByteOrder.LITTLE_ENDIAN);
+            int record = (int)centralStart;
+            record += 46 + central.getShort( record + 28) + central.getShort( record + 30) + central.getShort( record + 32);
+            central.putInt( record + 42, 0);
+            problems = verify( corrupt);
+            assertTrue( hasProblem( problems, "stored.txt", "Overlaps entry deflated.txt"));
+
+            // An offset past the entries.
+            central.putInt( record + 42, (int)centralStart - 10);
+            problems = verify( corrupt);
+            assertTrue( hasProblem( problems, "stored.txt", "outside the entry data"));
+
+            // Two central directory records with the same name, which ZipInput maps to one entry.
+            corrupt = zip.clone();
+            central = ByteBuffer.wrap( corrupt).order( ByteOrder.LITTLE_ENDIAN);
+            record = (int)centralStart;
+            for (int i = 0; i < 2; i++) record += 46 + central.getShort( record + 28) + central.getShort( record + 30) + central.getShort( record + 32);
+            byte[] name = "deflated.txt".getBytes();
+            System.arraycopy( name, 0, corrupt, record + 46, name.length);
+            System.arraycopy( name, 0, corrupt, (int)streamedHeader + 30, name.length);
+            assertEquals( 2, ZipInput.read( corrupt).getEntries().size());
+            zipInput = ZipInput.read( corrupt);
+            verifier = new ZipVerifier( zipInput);
+            problems = verifier.verify();
+            assertEquals( 1, problems.size());
+            assertTrue( hasProblem( problems, "deflated.txt", "Duplicate central directory record"));
+            assertEquals( 3 * deflated.getSize(), verifier.getBytesVerified());
+            zipInput.close();
+        }
+        catch (Exception x) {
+            getLogger().error( x.getMessage(), x);
+            fail( x.getClass().getName() + ": " + x.getMessage());
+        }
+    }
+
+    /** Returns the position of the data descriptor following the entry's data. */
+    static int descriptorPosition( byte[] zip, String name) throws Exception {
+        ZipInput zipInput = ZipInput.read( zip);
+        ZioEntry entry = zipInput.getEntry( name);
+        entry.readLocalHeader();
+        int position = (int)(entry.getDataPosition() + entry.getCompressedSize());
+        zipInput.close();
+        return position;
+    }
+
+    @Test
+    public void dataDescriptorTest() {
+
+        try {
+            setupLogging();
+
+            // Written by java.util.zip, which gives an empty deflated entry 2 bytes of data and
+            // puts the CRC and sizes of deflated entries in data descriptors.
+            byte[] text = "some text, some text, some text".getBytes();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            java.util.zip.ZipOutputStream zipOut = new java.util.zip.ZipOutputStream( bytes);
+            zipOut.putNextEntry( new java.util.zip.ZipEntry( "empty.txt"));
+            zipOut.closeEntry();
+            zipOut.putNextEntry( new java.util.zip.ZipEntry( "text.txt"));
+            zipOut.write( text);
+            zipOut.closeEntry();
+            zipOut.close();
+            byte[] zip = bytes.toByteArray();
+            assertEquals( "[]", verify( zip).toString());
+
+            int descriptor = descriptorPosition( zip, "text.txt");
+            ByteBuffer buffer = ByteBuffer.wrap( zip).order( ByteOrder.LITTLE_ENDIAN);
+            assertEquals( 0x08074b50, buffer.getInt( descriptor));
+            byte[] corrupt = zip.clone();
+            ByteBuffer.wrap( corrupt).order( ByteOrder.LITTLE_ENDIAN).putInt( descriptor + 12, text.length + 1);
+            List<ZipVerifier.Problem> problems = verify( corrupt);
+            assertEquals( 1, problems.size());
+            assertTrue( hasProblem( problems, "text.txt", "Data descriptor sizes"));
+
+            // ZIP64 sizes in the data descriptor, which follow a local header with a ZIP64 field.
+            bytes = new ByteArrayOutputStream();
+            ZipOutput zipOutput = new ZipOutput( bytes);
+            OutputStream entryOut = zipOutput.beginEntry( new ZioEntry( "zip64.txt"), true);
+            entryOut.write( text);
+            entryOut.close();
+            zipOutput.beginEntry( new ZioEntry( "empty64.txt"), true).close();
+            zipOutput.close();
+            zip = bytes.toByteArray();
+            assertEquals( "[]", verify( zip).toString());
+
+            descriptor = descriptorPosition( zip, "zip64.txt");
+            corrupt = zip.clone();
+            ByteBuffer.wrap( corrupt).order( ByteOrder.LITTLE_ENDIAN).putLong( descriptor + 16, text.length + 1);
+            problems = verify( corrupt);
+            assertEquals( 1, problems.size());
+            assertTrue( hasProblem( problems, "zip64.txt", "Data descriptor sizes"));
+
+            corrupt = zip.clone();
+            ByteBuffer.wrap( corrupt).order( ByteOrder.LITTLE_ENDIAN).putInt( descriptor + 4, 0);
+            assertTrue( hasProblem( verify( corrupt), "zip64.txt", "Data descriptor CRC-32"));
+        }
+        catch (Exception x) {
+            getLogger().error( x.getMessage(), x);
+            fail( x.getClass().getName() + ": " + x.getMessage());
+        }
+    }
+}
@@ -17,7 +17,9 @@ package kellinwood.zipsigner.cmdline;
 
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileReader;
+import java.io.OutputStream;
 import java.net.URL;
 import java.util.*;
 import java.security.KeyStore;
@@ -40,6 +42,7 @@ import org.apache.log4j.PropertyConfigurator;
 import kellinwood.logging.log4j.Log4jLoggerFactory;
 import kellinwood.logging.LoggerManager;
 import kellinwood.security.zipsigner.ZipSigner;
+import kellinwood.zipio.CompressionPolicy;
 
 
 
@@ -60,12 +63,29 @@ public class Main
             "java -jar zipsigner-cmdline-<version>.jar input.zip output-signed.zip (signs in auto-testkey mode)\n\n"+
             "java -jar zipsigner-cmdline-<version>.jar -m <keyMode> input.zip output-signed.zip (signs in specified mode)\n\n"+
             "java -jar zipsigner-cmdline-<version>.jar -s <keystore file> input.zip output-signed.zip (signs with first key in the keystore)\n\n"+
-            "java -jar zipsigner-cmdline-<version>.jar -s <keystore file> -a <key alias> input.zip output-signed.zip (signs with specified key in keystore)",
+            "java -jar zipsigner-cmdline-<version>.jar -s <keystore file> -a <key alias> input.zip output-signed.zip (signs with specified key in keystore)\n\n"+
+            "java -jar zipsigner-cmdline-<version>.jar -z balanced input.zip output-signed.zip (stores media files and deflates the rest at level 6)\n\n"+
+            "curl <url> | java -jar zipsigner-cmdline-<version>.jar - output-signed.zip (signs the zip read from standard input)",
                 options, "");
 
         System.exit(1);
     }
 
+    /** Signs the input file, or the zip read from standard input if the input is "-". */
+    static void signZip( ZipSigner signer, String input, String output) throws Exception
+    {
+        if (input.equals("-")) {
+            OutputStream out = new FileOutputStream( output);
+            try {
+                signer.signZip( System.in, out);
+            }
+            finally {
+                out.close();
+            }
+        }
+        else signer.signZip( input, output);
+    }
+
     static char[] readPassword( String prompt)  {
         System.out.print(prompt + ": ");
         System.out.flush();
@@ -99,6 +119,9 @@ public class Main
             
             Option aliasOption = new Option("a", "alias", false, "Alias for key/cert in the keystore");
             aliasOption.setArgs(1);
+
+            Option compressionOption = new Option("z", "compression", false, "Recompress the entries using a preset, one of: fast, balanced, max");
+            compressionOption.setArgs(1);
             
             options.addOption( helpOption);
             options.addOption( modeOption);
@@ -108,6 +131,7 @@ public class Main
             options.addOption( pwOption);
             options.addOption( keystoreOption);
             options.addOption( aliasOption);
+            options.addOption( compressionOption);
 
             Parser parser = new BasicParser();
 
@@ -143,6 +167,16 @@ public class Main
                 }
             });
 
+            if (cmdLine.hasOption( compressionOption.getOpt())) {
+                try {
+                    signer.setCompressionPolicy( CompressionPolicy.getPreset( compressionOption.getValue()));
+                }
+                catch (IllegalArgumentException x) {
+                    System.out.println( x.getMessage());
+                    usage( options);
+                }
+            }
+
             Class bcProviderClass = Class.forName("org.bouncycastle.jce.provider.BouncyCastleProvider");
             Provider bcProvider = (Provider)bcProviderClass.newInstance();
 
@@ -189,11 +223,11 @@ public class Main
 
             if (cmdLine.hasOption( keyOption.getOpt())) {
                 signer.setKeys( "custom", cert, privateKey, sigBlockTemplate);
-                signer.signZip( argList.get(0), argList.get(1));
+                signZip( signer, argList.get(0), argList.get(1));
             }
             else if (cmdLine.hasOption( modeOption.getOpt())) {
                 signer.setKeymode(modeOption.getValue());
-                signer.signZip( argList.get(0), argList.get(1));
+                signZip( signer, argList.get(0), argList.get(1));
             }
             else if (cmdLine.hasOption(( keystoreOption.getOpt()))) {
                 String alias = null;
@@ -217,11 +251,20 @@ public class Main
                     if (keypw.equals("")) keypw = null;
                 }
 
-                CustomKeySigner.signZip( signer,  keystoreOption.getValue(), null, alias, keypw.toCharArray(), "SHA1withRSA", argList.get(0), argList.get(1));
+                if (argList.get(0).equals("-")) {
+                    OutputStream out = new FileOutputStream( argList.get(1));
+                    try {
+                        CustomKeySigner.signZip( signer,  keystoreOption.getValue(), null, alias, keypw.toCharArray(), "SHA1withRSA", System.in, out);
+                    }
+                    finally {
+                        out.close();
+                    }
+                }
+                else CustomKeySigner.signZip( signer,  keystoreOption.getValue(), null, alias, keypw.toCharArray(), "SHA1withRSA", argList.get(0), argList.get(1));
             }
             else {
                 signer.setKeymode("auto-testkey");
-                signer.signZip( argList.get(0), argList.get(1));
+                signZip( signer, argList.get(0), argList.get(1));
             }
             
         }
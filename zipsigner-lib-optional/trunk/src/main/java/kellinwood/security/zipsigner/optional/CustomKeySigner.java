@@ -2,6 +2,8 @@ package kellinwood.security.zipsigner.optional;
 
 import kellinwood.security.zipsigner.ZipSigner;
 
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.security.Key;
 import java.security.KeyStore;
 import java.security.PrivateKey;
@@ -22,6 +24,34 @@ public class CustomKeySigner {
                          String inputZipFilename,
                          String outputZipFilename)
         throws Exception
+    {
+        setKeys( zipSigner, keystorePath, keystorePw, certAlias, certPw, signatureAlgorithm);
+        zipSigner.signZip( inputZipFilename, outputZipFilename);
+    }
+
+    /** As above, signing the zip read from the input stream, e.g., a pipe, into the output stream.
+     *  The streams are not closed. */
+    public static void signZip( ZipSigner zipSigner,
+                         String keystorePath,
+                         char[] keystorePw,
+                         String certAlias,
+                         char[] certPw,
+                         String signatureAlgorithm,
+                         InputStream input,
+                         OutputStream output)
+        throws Exception
+    {
+        setKeys( zipSigner, keystorePath, keystorePw, certAlias, certPw, signatureAlgorithm);
+        zipSigner.signZip( input, output);
+    }
+
+    private static void setKeys( ZipSigner zipSigner,
+                         String keystorePath,
+                         char[] keystorePw,
+                         String certAlias,
+                         char[] certPw,
+                         String signatureAlgorithm)
+        throws Exception
     {
         zipSigner.issueLoadingCertAndKeysProgressEvent();
         KeyStore keystore = KeyStoreFileManager.loadKeyStore( keystorePath, keystorePw);
@@ -31,7 +61,6 @@ public class CustomKeySigner {
         PrivateKey privateKey = (PrivateKey)key;
 
         zipSigner.setKeys( "custom", publicKey, privateKey, signatureAlgorithm, null);
-        zipSigner.signZip( inputZipFilename, outputZipFilename);
     }
 
 }
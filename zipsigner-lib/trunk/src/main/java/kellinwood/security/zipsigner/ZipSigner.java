@@ -31,8 +31,12 @@ package kellinwood.security.zipsigner;
 import kellinwood.logging.LoggerInterface;
 import kellinwood.logging.LoggerManager;
 import kellinwood.zipio.ZioEntry;
+import kellinwood.zipio.ByteBufferDataSource;
+import kellinwood.zipio.CompressionPolicy;
+import kellinwood.zipio.ReadAheadCopier;
 import kellinwood.zipio.ZipInput;
 import kellinwood.zipio.ZipOutput;
+import kellinwood.zipio.ZipStreamInput;
 
 import javax.crypto.Cipher;
 import javax.crypto.EncryptedPrivateKeyInfo;
@@ -68,6 +72,13 @@ public class ZipSigner
 
     private ProgressHelper progressHelper = new ProgressHelper();
     private ResourceAdapter resourceAdapter = new DefaultResourceAdapter();
+    private CompressionPolicy compressionPolicy = null;
+
+    // Uncompressed bytes of entries recompressed in parallel at a time, larger entries are streamed.
+    private static final long PARALLEL_COMPRESSION_BYTES = 64L * 1024 * 1024;
+
+    // Compressed bytes of copied entries laid out and written together.
+    private static final long LAYOUT_BATCH_BYTES = 64L * 1024 * 1024;
     
     static LoggerInterface log = null;
 
@@ -112,6 +123,19 @@ public class ZipSigner
         
     }
 
+    /** Sets the policy for recompressing the entries of the signed zip, e.g.,
+     *  CompressionPolicy.getPreset("balanced").  By default (null) the compressed data of the
+     *  input entries is copied unchanged.  Entries stored in the input are always kept stored,
+     *  e.g., native libraries that are loaded from the APK in place.
+     */
+    public void setCompressionPolicy( CompressionPolicy policy) {
+        compressionPolicy = policy;
+    }
+
+    public CompressionPolicy getCompressionPolicy() {
+        return compressionPolicy;
+    }
+
     public ResourceAdapter getResourceAdapter() {
         return resourceAdapter;
     }
@@ -379,16 +403,11 @@ public class ZipSigner
         ZioEntry manifestEntry = entries.get(JarFile.MANIFEST_NAME);
         if (manifestEntry != null) {
             input = new Manifest();
-            input.read( manifestEntry.getInputStream());
-        }
-        Manifest output = new Manifest();
-        Attributes main = output.getMainAttributes();
-        if (input != null) {
-            main.putAll(input.getMainAttributes());
-        } else {
-            main.putValue("Manifest-Version", "1.0");
-            main.putValue("Created-By", "1.0 (Android SignApk)");
+            InputStream manifestData = manifestEntry.getInputStream();
+            input.read( manifestData);
+            manifestData.close();
         }
+        Manifest output = newManifest( input);
 
         // BASE64Encoder base64 = new BASE64Encoder();
         MessageDigest md = MessageDigest.getInstance("SHA1");
@@ -399,19 +418,18 @@ public class ZipSigner
         // output manifest in sorted order.  We expect that the output
         // map will be deterministic.
 
-        TreeMap<String, ZioEntry> byName = new TreeMap<String, ZioEntry>();
-        byName.putAll( entries);
+        // Only the names are sorted, so that entries from a compact ZipInput index are
+        // created one at a time as they are digested.
+        List<String> names = new ArrayList<String>( entries.keySet());
+        Collections.sort( names);
 
         boolean debug = getLogger().isDebugEnabled();
         if (debug) getLogger().debug("Manifest entries:");
-        for (ZioEntry entry: byName.values()) {
+        for (String name: names) {
             if (canceled) break;
-            String name = entry.getName();
+            ZioEntry entry = entries.get( name);
             if (debug) getLogger().debug(name);
-            if (!entry.isDirectory() && !name.equals(JarFile.MANIFEST_NAME) &&
-                    !name.equals(CERT_SF_NAME) && !name.equals(CERT_RSA_NAME) &&
-                    (stripPattern == null ||
-                     !stripPattern.matcher(name).matches()))
+            if (isSignedEntry( entry))
             {
 
                 progressHelper.progress( ProgressEvent.PRORITY_NORMAL, resourceAdapter.getString(ResourceAdapter.Item.GENERATING_MANIFEST));
@@ -419,21 +437,55 @@ public class ZipSigner
                 while ((num = data.read(buffer)) > 0) {
                     md.update(buffer, 0, num);
                 }
+                data.close();
                     
-                Attributes attr = null;
-                if (input != null) {
-                    java.util.jar.Attributes inAttr = input.getAttributes(name); 
-                    if (inAttr != null) attr = new Attributes( inAttr);
-                }
-                if (attr == null) attr = new Attributes();
-                attr.putValue("SHA1-Digest", Base64.encode(md.digest()));
-                output.getEntries().put(name, attr);
+                addDigest( output, input, name, Base64.encode(md.digest()));
             }
         }
 
         return output;
     }
 
+    /** Creates the output manifest, with the main attributes of the input manifest if there is one. */
+    private Manifest newManifest( Manifest input)
+    {
+        Manifest output = new Manifest();
+        Attributes main = output.getMainAttributes();
+        if (input != null) {
+            main.putAll(input.getMainAttributes());
+        } else {
+            main.putValue("Manifest-Version", "1.0");
+            main.putValue("Created-By", "1.0 (Android SignApk)");
+        }
+        return output;
+    }
+
+    /** Adds an entry's digest to the output manifest, keeping any other attributes the input
+     *  manifest has for the entry.
+     */
+    private void addDigest( Manifest output, Manifest input, String name, String digest)
+    {
+        Attributes attr = null;
+        if (input != null) {
+            java.util.jar.Attributes inAttr = input.getAttributes(name); 
+            if (inAttr != null) attr = new Attributes( inAttr);
+        }
+        if (attr == null) attr = new Attributes();
+        attr.putValue("SHA1-Digest", digest);
+        output.getEntries().put(name, attr);
+    }
+
+    /** Returns true if the entry is digested and copied to the signed output, i.e., it is not a
+     *  directory and not one of the manifest or signature files that are regenerated.
+     */
+    private boolean isSignedEntry( ZioEntry entry)
+    {
+        String name = entry.getName();
+        return !entry.isDirectory() && !name.equals(JarFile.MANIFEST_NAME) &&
+            !name.equals(CERT_SF_NAME) && !name.equals(CERT_RSA_NAME) &&
+            (stripPattern == null || !stripPattern.matcher(name).matches());
+    }
+
 
     /** Write the signature file to the given output stream. */
     private void generateSignatureFile(Manifest manifest, OutputStream out)
@@ -473,6 +525,43 @@ public class ZipSigner
 
     }
 
+    /** Write MANIFEST.MF, CERT.SF and CERT.RSA to the output. */
+    private void writeSignatureFiles( Manifest manifest, ZipOutput zipOutput, long timestamp)
+        throws IOException, GeneralSecurityException
+    {
+        boolean debug =  getLogger().isDebugEnabled();
+
+        ZioEntry ze = new ZioEntry( JarFile.MANIFEST_NAME);
+        ze.setTime(timestamp);
+        OutputStream entryOut = zipOutput.beginEntry(ze);
+        manifest.write(entryOut);
+        entryOut.close();
+
+
+        // CERT.SF
+        ze = new ZioEntry(CERT_SF_NAME);
+        ze.setTime(timestamp);
+            
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        generateSignatureFile(manifest, out);
+        if (canceled) return;
+        byte[] sfBytes = out.toByteArray();
+        if (debug) {
+            getLogger().debug( "Signature File: \n" + new String( sfBytes) + "\n" + 
+                    HexDumpEncoder.encode( sfBytes));
+        }
+        ze.getOutputStream().write(sfBytes);
+        zipOutput.write(ze);
+
+        // CERT.RSA
+        progressHelper.progress( ProgressEvent.PRORITY_NORMAL, resourceAdapter.getString(ResourceAdapter.Item.GENERATING_SIGNATURE_BLOCK));
+        ze = new ZioEntry(CERT_RSA_NAME);
+        ze.setTime(timestamp);
+        entryOut = zipOutput.beginEntry(ze);
+        writeSignatureBlock(keySet, sfBytes, entryOut);
+        entryOut.close();
+    }
+
     /** Write a .RSA file with a digital signature. */
     @SuppressWarnings("unchecked")
     private void writeSignatureBlock( KeySet keySet, byte[] signatureFileBytes, OutputStream out)
@@ -533,16 +622,9 @@ public class ZipSigner
         Map<String, Attributes> entries = manifest.getEntries();
         List<String> names = new ArrayList<String>(entries.keySet());
         Collections.sort(names);
-        int i = 1;
-        for (String name : names) {
-            if (canceled) break;
-            progressHelper.progress(ProgressEvent.PRORITY_NORMAL, resourceAdapter.getString(ResourceAdapter.Item.COPYING_ZIP_ENTRY, i, names.size()));
-            i += 1;
-            ZioEntry inEntry = input.get(name);
-            inEntry.setTime(timestamp);
-            output.write(inEntry);
-
-        }
+        List<ZioEntry> inEntries = new ArrayList<ZioEntry>(names.size());
+        for (String name : names) inEntries.add(input.get(name));
+        copyEntries(inEntries, output, timestamp);
     }
 
     /**
@@ -551,12 +633,98 @@ public class ZipSigner
     private void copyFiles(Map<String,ZioEntry> input, ZipOutput output)
         throws IOException 
     {
-        int i = 1;
-        for (ZioEntry inEntry : input.values()) {
-            if (canceled) break;
-            progressHelper.progress( ProgressEvent.PRORITY_NORMAL, resourceAdapter.getString(ResourceAdapter.Item.COPYING_ZIP_ENTRY, i, input.size()));
-            i += 1;
-            output.write(inEntry);
+        copyEntries(new ArrayList<ZioEntry>(input.values()), output, null);
+    }
+
+    /** Copies the entries, setting their time if timestamp isn't null.  Entries copied as-is,
+     *  i.e., when there is no compression policy, are written in batches laid out in advance and
+     *  written in parallel when the output is a file, otherwise their data is read ahead so
+     *  reading the input overlaps writing the output.
+     */
+    private void copyEntries(List<ZioEntry> inEntries, ZipOutput output, Long timestamp)
+        throws IOException
+    {
+        boolean layout = compressionPolicy == null && output.isSeekable();
+        ReadAheadCopier copier = null;
+        if (compressionPolicy == null && !layout) {
+            copier = new ReadAheadCopier();
+            copier.start(inEntries);
+        }
+        List<ZioEntry> batch = new ArrayList<ZioEntry>();
+        long batchBytes = 0;
+        try {
+            int i = 1;
+            for (ZioEntry inEntry : inEntries) {
+                if (canceled) break;
+                progressHelper.progress(ProgressEvent.PRORITY_NORMAL, resourceAdapter.getString(ResourceAdapter.Item.COPYING_ZIP_ENTRY, i, inEntries.size()));
+                i += 1;
+                if (timestamp != null) inEntry.setTime(timestamp);
+                if (!layout) {
+                    writeEntry(inEntry, output, copier);
+                    continue;
+                }
+                batch.add(inEntry);
+                batchBytes += inEntry.getCompressedSize();
+                if (batchBytes >= LAYOUT_BATCH_BYTES) {
+                    output.writeAll(batch, 0);
+                    batch.clear();
+                    batchBytes = 0;
+                }
+            }
+            if (!canceled && !batch.isEmpty()) output.writeAll(batch, 0);
+        }
+        finally {
+            if (copier != null) copier.close();
+        }
+    }
+
+    /** Creates the output, which recompresses entries in parallel if there is a compression policy. */
+    private ZipOutput newZipOutput( OutputStream outputStream) throws IOException
+    {
+        ZipOutput zipOutput = new ZipOutput( outputStream);
+        if (compressionPolicy != null) {
+            zipOutput.setCompressionPolicy( compressionPolicy);
+            zipOutput.setParallelCompression( 0, PARALLEL_COMPRESSION_BYTES);
+        }
+        return zipOutput;
+    }
+
+    /** Writes an input entry, through the copier if there is one, otherwise recompressed according
+     *  to the compression policy if there is one and the entry isn't stored.
+     */
+    private void writeEntry( ZioEntry entry, ZipOutput output, ReadAheadCopier copier) throws IOException
+    {
+        if (copier != null) {
+            copier.write( entry, output);
+            return;
+        }
+        if (compressionPolicy == null || entry.getName().endsWith("/") || entry.getCompression() == 0) {
+            output.write( entry);
+            return;
+        }
+        if (entry.getSize() <= PARALLEL_COMPRESSION_BYTES) {
+            output.write( entry.getClonedEntry( entry.getName()), entry.getData());
+            return;
+        }
+
+        // Larger entries, which may exceed 2GB, are streamed instead of read into memory.
+        InputStream in = entry.getInputStream();
+        try {
+            byte[] buffer = new byte[Math.max( 64 * 1024, compressionPolicy.getSampleSize())];
+            int count = 0;
+            while (count < compressionPolicy.getSampleSize()) {
+                int numRead = in.read( buffer, count, compressionPolicy.getSampleSize() - count);
+                if (numRead < 0) break;
+                count += numRead;
+            }
+            OutputStream out = output.beginEntry( entry.getClonedEntry( entry.getName()), entry.getSize(), buffer, count);
+            do {
+                out.write( buffer, 0, count);
+            } while ((count = in.read( buffer)) >= 0);
+            out.close();
+        }
+        finally {
+            in.close();
         }
     }
 
@@ -646,7 +814,7 @@ public class ZipSigner
         ZipInput input = null;
         OutputStream outStream = null;
         try {
-            input = ZipInput.read( inputZipFilename);
+            input = ZipInput.read( inputZipFilename, ZipInput.COMPACT_INDEX);
             outStream = new FileOutputStream( outputZipFilename);
             signZip(input.getEntries(), outStream, outputZipFilename);
         }
@@ -656,6 +824,27 @@ public class ZipSigner
         }
     }
     
+    /** Sign a zip file held in memory and return the signed zip file.  Nothing is written
+     *  to disk.  Returns null if signing was canceled.
+     */
+    public byte[] signZip( byte[] inputZip)
+        throws IOException, GeneralSecurityException
+    {
+        progressHelper.initProgress();        
+        progressHelper.progress( ProgressEvent.PRORITY_IMPORTANT, resourceAdapter.getString(ResourceAdapter.Item.PARSING_CENTRAL_DIRECTORY));
+
+        ZipInput input = null;
+        ByteArrayOutputStream outStream = new ByteArrayOutputStream( inputZip.length + 8192);
+        try {
+            input = ZipInput.read( new ByteBufferDataSource( inputZip), ZipInput.COMPACT_INDEX);
+            signZip(input.getEntries(), outStream, null);
+        }
+        finally {
+            if(input != null) input.close();
+        }
+        return canceled ? null : outStream.toByteArray();
+    }
+
     /** Sign the 
      *  and signature block template.  The signature block template
      *  parameter may be null, but if so
@@ -664,23 +853,8 @@ public class ZipSigner
     public void signZip( Map<String,ZioEntry> zioEntries, OutputStream outputStream, String outputZipFilename)
         throws IOException, GeneralSecurityException    
     {
-        boolean debug =  getLogger().isDebugEnabled();
-        
         progressHelper.initProgress();
-        if (keySet == null) {
-            if (!keymode.startsWith(MODE_AUTO)) 
-                throw new IllegalStateException("No keys configured for signing the file!");
-            
-            // Auto-determine which keys to use
-            String keyName = this.autoDetectKey( keymode, zioEntries);
-            if (keyName == null) 
-                throw new AutoKeyException( resourceAdapter.getString(ResourceAdapter.Item.AUTO_KEY_SELECTION_ERROR, new File( outputZipFilename).getName()));
-            
-            autoKeyObservable.notifyObservers(keyName);
-
-            loadKeys( keyName);
-            
-        }
+        if (keySet == null) resolveKeys( zioEntries, outputZipFilename);
 
 
         
@@ -689,7 +863,7 @@ public class ZipSigner
         try {
 
 
-            zipOutput = new ZipOutput( outputStream);
+            zipOutput = newZipOutput( outputStream);
 
             if (KEY_NONE.equals(keySet.getName())) {
                 progressHelper.setProgressTotalItems(zioEntries.size());
@@ -701,11 +875,7 @@ public class ZipSigner
             // Calculate total steps to complete for accurate progress percentages.
             int progressTotalItems = 0;
             for (ZioEntry entry: zioEntries.values()) {
-                String name = entry.getName();
-                if (!entry.isDirectory() && !name.equals(JarFile.MANIFEST_NAME) &&
-                        !name.equals(CERT_SF_NAME) && !name.equals(CERT_RSA_NAME) &&
-                        (stripPattern == null ||
-                                !stripPattern.matcher(name).matches()))
+                if (isSignedEntry( entry))
                 {
                     progressTotalItems += 3;  // digest for manifest, digest in sig file, copy data
                 }
@@ -714,40 +884,13 @@ public class ZipSigner
             progressHelper.setProgressTotalItems(progressTotalItems);
             progressHelper.setProgressCurrentItem(0);
 
-            // Assume the certificate is valid for at least an hour.
-            long timestamp = keySet.getPublicKey().getNotBefore().getTime() + 3600L * 1000;
+            long timestamp = getSignatureTimestamp();
             
             // MANIFEST.MF
             // progress(ProgressEvent.PRORITY_NORMAL, JarFile.MANIFEST_NAME);
             Manifest manifest = addDigestsToManifest(zioEntries);
             if (canceled) return;
-            ZioEntry ze = new ZioEntry( JarFile.MANIFEST_NAME);
-            ze.setTime(timestamp);
-            manifest.write(ze.getOutputStream());
-            zipOutput.write(ze);
-
-
-            // CERT.SF
-            ze = new ZioEntry(CERT_SF_NAME);
-            ze.setTime(timestamp);
-            
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
-            generateSignatureFile(manifest, out);
-            if (canceled) return;
-            byte[] sfBytes = out.toByteArray();
-            if (debug) {
-                getLogger().debug( "Signature File: \n" + new String( sfBytes) + "\n" + 
-                        HexDumpEncoder.encode( sfBytes));
-            }
-            ze.getOutputStream().write(sfBytes);
-            zipOutput.write(ze);
-
-            // CERT.RSA
-            progressHelper.progress( ProgressEvent.PRORITY_NORMAL, resourceAdapter.getString(ResourceAdapter.Item.GENERATING_SIGNATURE_BLOCK));
-            ze = new ZioEntry(CERT_RSA_NAME);
-            ze.setTime(timestamp);
-            writeSignatureBlock(keySet, sfBytes, ze.getOutputStream());
-            zipOutput.write( ze);
+            writeSignatureFiles( manifest, zipOutput, timestamp);
             if (canceled) return;
 
             // Everything else
@@ -768,6 +911,117 @@ public class ZipSigner
         }
     }
     
+    /** Sign a zip file read from a stream which can't seek, e.g., a pipe, and write the result
+     *  to the output stream.  Entries are digested and copied as they arrive, and the manifest
+     *  and signature files are written after them, at the end of the output, so memory use is
+     *  bounded by the largest entry.  When the key mode is automatic the key is determined from
+     *  the META-INF entries preceding the first entry outside META-INF, which is where APKs
+     *  normally have them.  The input stream is read to the end but not closed.
+     */
+    public void signZip( InputStream inputStream, OutputStream outputStream)
+        throws IOException, GeneralSecurityException
+    {
+        progressHelper.initProgress();
+
+        ZipStreamInput input = new ZipStreamInput( inputStream);
+        ZipOutput zipOutput = null;
+
+        // META-INF entries that arrive before the keys are known.
+        Map<String,ZioEntry> pending = new LinkedHashMap<String,ZioEntry>();
+        Manifest inputManifest = null;
+        SortedMap<String,String> digests = new TreeMap<String,String>();
+
+        try {
+            zipOutput = newZipOutput( outputStream);
+
+            ZioEntry entry;
+            while (!canceled && (entry = input.getNextEntry()) != null) {
+                if (entry.getName().equals(JarFile.MANIFEST_NAME)) {
+                    InputStream manifestData = entry.getInputStream();
+                    inputManifest = new Manifest( manifestData);
+                    manifestData.close();
+                }
+                if (keySet == null) {
+                    if (entry.getName().startsWith("META-INF/")) {
+                        // The clone keeps the data after the stream moves on to the next entry.
+                        pending.put( entry.getName(), entry.getClonedEntry( entry.getName()));
+                        continue;
+                    }
+                    resolveKeys( pending, null);
+                    for (ZioEntry pendingEntry : pending.values()) writeStreamedEntry( pendingEntry, zipOutput, digests);
+                    pending.clear();
+                }
+                writeStreamedEntry( entry, zipOutput, digests);
+            }
+            if (canceled) return;
+
+            if (keySet == null) {
+                resolveKeys( pending, null);
+                for (ZioEntry pendingEntry : pending.values()) writeStreamedEntry( pendingEntry, zipOutput, digests);
+            }
+
+            if (KEY_NONE.equals(keySet.getName())) return;
+
+            Manifest manifest = newManifest( inputManifest);
+            for (Map.Entry<String,String> digest : digests.entrySet()) {
+                addDigest( manifest, inputManifest, digest.getKey(), digest.getValue());
+            }
+            writeSignatureFiles( manifest, zipOutput, getSignatureTimestamp());
+        }
+        finally {
+            if (zipOutput != null) zipOutput.close();
+        }
+    }
+
+    /** Digests and writes an entry read by signZip(InputStream,OutputStream). */
+    private void writeStreamedEntry( ZioEntry entry, ZipOutput zipOutput, Map<String,String> digests)
+        throws IOException, GeneralSecurityException
+    {
+        if (KEY_NONE.equals(keySet.getName())) {
+            writeEntry( entry, zipOutput, null);
+            return;
+        }
+        // Like ZipOutput, the first of several entries with the same name is kept.
+        if (!isSignedEntry( entry) || digests.containsKey( entry.getName())) return;
+
+        progressHelper.progress( ProgressEvent.PRORITY_NORMAL, resourceAdapter.getString(ResourceAdapter.Item.GENERATING_MANIFEST));
+        MessageDigest md = MessageDigest.getInstance("SHA1");
+        byte[] buffer = new byte[512];
+        int num;
+        InputStream data = entry.getInputStream();
+        while ((num = data.read(buffer)) > 0) {
+            md.update(buffer, 0, num);
+        }
+        data.close();
+        digests.put( entry.getName(), Base64.encode(md.digest()));
+
+        entry.setTime( getSignatureTimestamp());
+        writeEntry( entry, zipOutput, null);
+    }
+
+    /** Loads the keys for an automatic key mode, determined from the given entries. */
+    private void resolveKeys( Map<String,ZioEntry> zioEntries, String outputZipFilename)
+        throws IOException, GeneralSecurityException
+    {
+        if (!keymode.startsWith(MODE_AUTO)) 
+            throw new IllegalStateException("No keys configured for signing the file!");
+            
+        // Auto-determine which keys to use
+        String keyName = this.autoDetectKey( keymode, zioEntries);
+        if (keyName == null) 
+            throw new AutoKeyException( resourceAdapter.getString(ResourceAdapter.Item.AUTO_KEY_SELECTION_ERROR, outputZipFilename == null ? "" : new File( outputZipFilename).getName()));
+            
+        autoKeyObservable.notifyObservers(keyName);
+
+        loadKeys( keyName);
+    }
+
+    /** Returns the time given to the signed entries. */
+    private long getSignatureTimestamp() {
+        // Assume the certificate is valid for at least an hour.
+        return keySet.getPublicKey().getNotBefore().getTime() + 3600L * 1000;
+    }
+
     public void addProgressListener( ProgressListener l)
     {
         progressHelper.addProgressListener(l);
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2010 Ken Ellinwood
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kellinwood.security.zipsigner;
+
+import java.io.File;
+
+import kellinwood.zipio.CompressionPolicy;
+import kellinwood.zipio.ZioEntry;
+import kellinwood.zipio.ZipInput;
+import kellinwood.zipio.ZipOutput;
+
+import org.junit.* ;
+import static org.junit.Assert.* ;
+
+public class CompressionPresetTest {
+
+    static void addEntry( ZipOutput zipOutput, String name, boolean stored) throws Exception {
+        ZioEntry entry = new ZioEntry( name);
+        if (stored) entry.setCompression( 0);
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 2000; i++) content.append( name).append( ' ').append( i).append( '\n');
+        entry.getOutputStream().write( content.toString().getBytes());
+        zipOutput.write( entry);
+    }
+
+    static void checkStored( ZipInput zipInput, String name, int alignment) throws Exception {
+        ZioEntry entry = zipInput.getEntry( name);
+        assertEquals( name, 0, (int)entry.getCompression());
+        entry.readLocalHeader();
+        assertEquals( name, 0L, entry.getDataPosition() % alignment);
+    }
+
+    @Test
+    public void presetTest() {
+
+        try {
+            File input = File.createTempFile( "preset_in", ".apk");
+            input.deleteOnExit();
+            ZipOutput zipOutput = new ZipOutput( input);
+            addEntry( zipOutput, "AndroidManifest.xml", false);
+            addEntry( zipOutput, "classes.dex", false);
+            addEntry( zipOutput, "lib/arm64-v8a/libstored.so", true);
+            addEntry( zipOutput, "lib/arm64-v8a/libdeflated.so", false);
+            addEntry( zipOutput, "resources.arsc", true);
+            addEntry( zipOutput, "res/raw/stored.txt", true);
+            zipOutput.close();
+
+            String[] presets = { CompressionPolicy.PRESET_FAST, CompressionPolicy.PRESET_BALANCED, CompressionPolicy.PRESET_MAX };
+            for (String preset : presets) {
+                File output = File.createTempFile( "preset_" + preset, ".apk");
+                output.deleteOnExit();
+                ZipSigner signer = new ZipSigner();
+                signer.setKeymode( "testkey");
+                signer.setCompressionPolicy( CompressionPolicy.getPreset( preset));
+                signer.signZip( input.getAbsolutePath(), output.getAbsolutePath());
+
+                ZipInput zipInput = ZipInput.read( output.getAbsolutePath());
+                // Native libraries are stored and page aligned, resources.arsc 4-byte aligned, and
+                // other entries stored in the input stay stored.
+                checkStored( zipInput, "lib/arm64-v8a/libstored.so", 4096);
+                checkStored( zipInput, "lib/arm64-v8a/libdeflated.so", 4096);
+                checkStored( zipInput, "resources.arsc", 4);
+                checkStored( zipInput, "res/raw/stored.txt", 4);
+                assertEquals( preset, 8, (int)zipInput.getEntry( "classes.dex").getCompression());
+                zipInput.close();
+            }
+        }
+        catch (Exception x) {
+            x.printStackTrace();
+            fail( x.getClass().getName() + ": " + x.getMessage());
+        }
+    }
+}